@@ -0,0 +1,144 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Generates synthetic documents with controllable shape: text fields of a
+ * given mean length drawn from a Zipf-distributed vocabulary, a number of
+ * document variables and categories of a given cardinality.
+ * <p>
+ * Document {@code n} only depends on the seed, the settings and {@code n},
+ * so corpora are repeatable and can be generated in parallel.
+ *
+ * @author flaptor
+ */
+public class CorpusGenerator {
+
+    private final long seed;
+    private int vocabularySize = 10000;
+    private final Map<String, Integer> fields = new LinkedHashMap<String, Integer>();
+    private int variables = 3;
+    private final Map<String, Integer> categories = new LinkedHashMap<String, Integer>();
+
+    public CorpusGenerator(long seed) {
+        this.seed = seed;
+        fields.put("title", 8);
+        fields.put("text", 200);
+    }
+
+    public CorpusGenerator withVocabulary(int words) {
+        this.vocabularySize = words;
+        return this;
+    }
+
+    /**
+     * Adds or resizes a text field. Each document gets between half and one
+     * and a half times the mean number of words.
+     */
+    public CorpusGenerator withField(String name, int meanWords) {
+        if (meanWords <= 0) {
+            fields.remove(name);
+        } else {
+            fields.put(name, meanWords);
+        }
+        return this;
+    }
+
+    public CorpusGenerator withVariables(int count) {
+        this.variables = count;
+        return this;
+    }
+
+    /**
+     * Adds a category whose values are uniformly drawn from
+     * {@code cardinality} distinct ones.
+     */
+    public CorpusGenerator withCategory(String name, int cardinality) {
+        categories.put(name, cardinality);
+        return this;
+    }
+
+    public Document document(long n) {
+        Random random = new Random(seed * 31 + n);
+        Map<String, String> documentFields = new HashMap<String, String>();
+        for (Entry<String, Integer> field : fields.entrySet()) {
+            int mean = field.getValue();
+            int words = mean / 2 + random.nextInt(mean + 1);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    text.append(' ');
+                }
+                text.append(word(random));
+            }
+            documentFields.put(field.getKey(), text.toString());
+        }
+        documentFields.put("timestamp", String.valueOf(1300000000 + n));
+
+        Map<Integer, Float> documentVariables = null;
+        if (variables > 0) {
+            documentVariables = new HashMap<Integer, Float>();
+            for (int i = 0; i < variables; i++) {
+                documentVariables.put(i, random.nextFloat() * 100);
+            }
+        }
+        Map<String, String> documentCategories = null;
+        if (!categories.isEmpty()) {
+            documentCategories = new HashMap<String, String>();
+            for (Entry<String, Integer> category : categories.entrySet()) {
+                documentCategories.put(category.getKey(), category.getKey()
+                        + "-" + random.nextInt(category.getValue()));
+            }
+        }
+        return new Document("doc" + n, documentFields, documentVariables,
+                documentCategories);
+    }
+
+    /**
+     * @return documents {@code 0} to {@code count - 1}
+     */
+    public Iterable<Document> documents(final long count) {
+        return new Iterable<Document>() {
+            @Override
+            public Iterator<Document> iterator() {
+                return new Iterator<Document>() {
+                    private long next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < count;
+                    }
+
+                    @Override
+                    public Document next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return document(next++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Draws a word with probability roughly inverse to its rank.
+     */
+    String word(Random random) {
+        int rank = (int) Math.pow(vocabularySize, random.nextDouble());
+        return "w" + Integer.toString(rank, 36);
+    }
+}
@@ -0,0 +1,79 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Building documents and serializing them the way
+ * {@link IndexTankClient.Index#addDocuments(Iterable)} does.
+ *
+ * @author flaptor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+
+    @Param({ "1", "100" })
+    public int batchSize;
+
+    private Map<String, String> fields;
+    private Map<Integer, Float> variables;
+    private Map<String, String> categories;
+    private List<Document> batch;
+
+    @Setup
+    public void setUp() {
+        fields = new HashMap<String, String>();
+        fields.put("title", "A benchmark document");
+        fields.put("text", "The quick brown fox jumps over the lazy dog, "
+                + "again and again, to make the body of this document "
+                + "look like real content");
+        fields.put("url", "http://example.com/documents/benchmark");
+        variables = new HashMap<Integer, Float>();
+        variables.put(0, 1.5f);
+        variables.put(1, 42f);
+        categories = new HashMap<String, String>();
+        categories.put("type", "article");
+
+        batch = new ArrayList<Document>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new Document("doc" + i, fields, variables, categories));
+        }
+    }
+
+    @Benchmark
+    public Document construct() {
+        return new Document("doc", fields, variables, categories);
+    }
+
+    @Benchmark
+    public String serializeBatch() {
+        List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
+        for (Document document : batch) {
+            data.add(document.toDocumentMap());
+        }
+        return JSONArray.toJSONString(data);
+    }
+}
@@ -0,0 +1,278 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.ReactiveStreams.Subscriber;
+import com.flaptor.indextank.apiclient.ReactiveStreams.Subscription;
+
+/**
+ * Measures end-to-end indexing throughput against a {@link StandInServer} on
+ * loopback, for every combination of batch size, parallelism and pipeline:
+ * {@code direct} (workers calling {@code addDocuments} on their own batches)
+ * and {@code sink} (an {@link IndexingSink} fed by a single producer).
+ *
+ * <pre>
+ * java -Dsun.net.httpserver.nodelay=true \
+ *     -cp benchmarks/target/benchmarks.jar \
+ *     com.flaptor.indextank.apiclient.IndexingBenchmark \
+ *     --docs 100000 --batch 10,100,500 --parallelism 1,4,16 \
+ *     --text-words 200 --variables 3 --categories 2 --cardinality 50 \
+ *     --warmup 1
+ * </pre>
+ *
+ * Reports documents and request bytes per second, client CPU time per
+ * document (threads of the client side only) and peak heap. The stand-in
+ * runs in the same JVM, so peak heap includes the indexed documents; the
+ * index is recreated before each run. Each combination is first run
+ * {@code --warmup} times (1 by default) without measuring, so the measured
+ * run doesn't include JIT compilation or connection setup.
+ *
+ * @author flaptor
+ */
+public class IndexingBenchmark {
+
+    private final StandInServer server;
+    private final IndexTankClient client;
+    private final CorpusGenerator corpus;
+    private final int documents;
+    private final int warmup;
+    private final PrintStream out;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    IndexingBenchmark(StandInServer server, CorpusGenerator corpus,
+            int documents, int warmup, PrintStream out) {
+        this.server = server;
+        this.client = new IndexTankClient(server.getApiUrl());
+        this.corpus = corpus;
+        this.documents = documents;
+        this.warmup = warmup;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        CorpusGenerator corpus = new CorpusGenerator(Long.parseLong(LoadGenerator
+                .option(options, "seed", "0")))
+                .withField("text", Integer.parseInt(LoadGenerator.option(
+                        options, "text-words", "200")))
+                .withVariables(Integer.parseInt(LoadGenerator.option(options,
+                        "variables", "3")));
+        int categories = Integer.parseInt(LoadGenerator.option(options,
+                "categories", "2"));
+        int cardinality = Integer.parseInt(LoadGenerator.option(options,
+                "cardinality", "50"));
+        for (int i = 0; i < categories; i++) {
+            corpus.withCategory("category" + i, cardinality);
+        }
+
+        StandInServer server = new StandInServer(new LocalApiClient())
+                .start(0);
+        try {
+            IndexingBenchmark benchmark = new IndexingBenchmark(server,
+                    corpus, Integer.parseInt(LoadGenerator.option(options,
+                            "docs", "20000")), Integer.parseInt(LoadGenerator
+                            .option(options, "warmup", "1")), System.out);
+            benchmark.out.printf(Locale.ROOT,
+                    "%-8s %6s %6s %12s %10s %12s %10s%n", "pipeline",
+                    "batch", "par", "docs/s", "MB/s", "cpu us/doc",
+                    "heap MB");
+            for (String pipeline : LoadGenerator.option(options,
+                    "pipelines", "direct,sink").split(",")) {
+                for (String batch : LoadGenerator.option(options, "batch",
+                        "10,100,500").split(",")) {
+                    for (String parallelism : LoadGenerator.option(options,
+                            "parallelism", "1,4,16").split(",")) {
+                        benchmark.run(pipeline.trim(),
+                                Integer.parseInt(batch.trim()),
+                                Integer.parseInt(parallelism.trim()));
+                    }
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    void run(String pipeline, int batchSize, int parallelism)
+            throws Exception {
+        for (int pass = 0; pass < warmup; pass++) {
+            run(pipeline, batchSize, parallelism, false);
+        }
+        run(pipeline, batchSize, parallelism, true);
+    }
+
+    private void run(String pipeline, int batchSize, int parallelism,
+            boolean measured) throws Exception {
+        Index index = client.getIndex("indexing-benchmark");
+        if (index.exists()) {
+            index.delete();
+        }
+        index.create();
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        final List<Thread> clientThreads = new CopyOnWriteArrayList<Thread>();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        clientThreads.add(thread);
+                        return thread;
+                    }
+                });
+        long bytesBefore = server.getBytesReceived();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+
+        long indexed;
+        if (pipeline.equals("direct")) {
+            indexed = direct(index, batchSize, parallelism, workers);
+        } else if (pipeline.equals("sink")) {
+            indexed = sink(index, batchSize, parallelism, workers);
+        } else {
+            throw new IllegalArgumentException("Unknown pipeline " + pipeline);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        for (Thread thread : clientThreads) {
+            cpu += Math.max(0, threads.getThreadCpuTime(thread.getId()));
+        }
+        long bytes = server.getBytesReceived() - bytesBefore;
+        workers.shutdown();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        if (!measured) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        out.printf(Locale.ROOT, "%-8s %6d %6d %12.0f %10.2f %12.1f %10.0f%n",
+                pipeline, batchSize, parallelism, indexed / seconds, bytes
+                        / seconds / (1 << 20), cpu / 1e3 / indexed,
+                peakHeap / (double) (1 << 20));
+    }
+
+    /**
+     * Workers claim batches from a shared counter and send them themselves.
+     */
+    private long direct(final Index index, final int batchSize,
+            int parallelism, ExecutorService workers)
+            throws InterruptedException {
+        final AtomicLong nextBatch = new AtomicLong();
+        final AtomicLong indexed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long first;
+                        while ((first = nextBatch.getAndIncrement()
+                                * batchSize) < documents) {
+                            List<Document> batch = new ArrayList<Document>(
+                                    batchSize);
+                            for (long n = first; n < Math.min(documents,
+                                    first + batchSize); n++) {
+                                batch.add(corpus.document(n));
+                            }
+                            BatchResults results = index.addDocuments(batch);
+                            for (int j = 0; j < batch.size(); j++) {
+                                if (results.getResult(j)) {
+                                    indexed.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        out.println("Batch failed: " + e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        return indexed.get();
+    }
+
+    /**
+     * A single producer feeds an {@link IndexingSink}, which keeps
+     * {@code parallelism} batches in flight.
+     */
+    private long sink(Index index, int batchSize, int parallelism,
+            ExecutorService workers) throws InterruptedException {
+        IndexingSink sink = new IndexingSink(index, batchSize, parallelism,
+                workers);
+        final AtomicLong indexed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        sink.subscribe(new Subscriber<IndexingSink.DocumentResult>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(IndexingSink.DocumentResult result) {
+                if (result.added) {
+                    indexed.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                out.println("Sink failed: " + error);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+
+        // upstream demand, as permits the producer takes one per document
+        final Semaphore requested = new Semaphore(0);
+        sink.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                requested.release((int) Math.min(n, Integer.MAX_VALUE));
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        for (long n = 0; n < documents; n++) {
+            requested.acquire();
+            sink.onNext(corpus.document(n));
+        }
+        sink.onComplete();
+        done.await();
+        return indexed.get();
+    }
+}
@@ -0,0 +1,348 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * An open-loop load generator: starts operations at a fixed arrival rate,
+ * whether or not earlier ones have finished, and measures each one from the
+ * time it was meant to start. Queueing behind slow requests therefore counts
+ * towards latency, instead of silently lowering the offered load
+ * (coordinated omission). Service time, measured from the actual start, is
+ * reported too.
+ *
+ * <pre>
+ * java -Dsun.net.httpserver.nodelay=true \
+ *     -cp benchmarks/target/benchmarks.jar \
+ *     com.flaptor.indextank.apiclient.LoadGenerator \
+ *     --rate 200 --duration 60 --mix search=80,add=10,update=5,delete=5
+ * </pre>
+ *
+ * Without {@code --url} it runs against a {@link StandInServer} on
+ * loopback, with {@code --server-latency} milliseconds of log-normal
+ * latency.
+ *
+ * @author flaptor
+ */
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = { "search", "add", "update",
+            "delete" };
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private static class Stats {
+        final LatencyHistogram responseTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final LatencyHistogram interval = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        // never started before the end of the run
+        final AtomicLong timeouts = new AtomicLong();
+    }
+
+    private final Index index;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int concurrency;
+    private final int batchSize;
+    private final int corpusSize;
+    private final Map<String, Integer> mix;
+    private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+    // a Zipf-like vocabulary of 5000 words, so some queries match a lot
+    private final CorpusGenerator corpus = new CorpusGenerator(0)
+            .withVocabulary(5000).withField("title", 0).withField("text", 50)
+            .withVariables(1);
+    private final PrintStream out;
+
+    LoadGenerator(Index index, Map<String, String> options, PrintStream out) {
+        this.index = index;
+        this.rate = Double.parseDouble(option(options, "rate", "100"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(
+                options, "duration", "30")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(
+                options, "warmup", "5")));
+        this.concurrency = Integer.parseInt(option(options, "concurrency",
+                "64"));
+        this.batchSize = Integer.parseInt(option(options, "batch", "10"));
+        this.corpusSize = Integer.parseInt(option(options, "docs", "10000"));
+        this.mix = parseMix(option(options, "mix",
+                "search=80,add=10,update=5,delete=5"));
+        this.out = out;
+        for (String operation : mix.keySet()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        StandInServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = new StandInServer(new LocalApiClient()).withLatency(
+                    StandInServer.Latency.logNormal(Double.parseDouble(option(
+                            options, "server-latency", "5")), 0.5)).start(0);
+            url = server.getApiUrl();
+        }
+
+        try {
+            IndexTankClient client = new IndexTankClient(url)
+                    .withMaxConnections(Integer.parseInt(option(options,
+                            "concurrency", "64")));
+            Index index = client.getIndex(option(options, "index",
+                    "loadgen"));
+            if (!index.exists()) {
+                index.create();
+                index.awaitStarted(5, TimeUnit.MINUTES);
+            }
+            new LoadGenerator(index, options, System.out).run();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    void run() throws Exception {
+        load();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        Random random = new Random();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime() + warmupNanos;
+        long end = start + durationNanos;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(5);
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+
+        out.printf(Locale.ROOT,
+                "Offering %.1f ops/s for %ds after %ds of warmup%n", rate,
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        long intended = System.nanoTime();
+        while (intended < end) {
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                long wait = intended - now;
+                if (wait > 100000) {
+                    TimeUnit.NANOSECONDS.sleep(wait - 50000);
+                } else {
+                    Thread.yield();
+                }
+            }
+            workers.execute(new Operation(pick(random, totalWeight),
+                    intended, intended >= start));
+            if (now >= nextReport) {
+                reportInterval();
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+            intended += intervalNanos;
+        }
+
+        workers.shutdown();
+        if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            // the queued operations were due long ago: leaving them out
+            // would hide the worst latencies of the run
+            List<Runnable> unrun = workers.shutdownNow();
+            long now = System.nanoTime();
+            for (Runnable task : unrun) {
+                ((Operation) task).timedOut(now);
+            }
+            out.println("Some operations did not finish in time, "
+                    + unrun.size() + " never started");
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        report();
+    }
+
+    private class Operation implements Runnable {
+        private final String name;
+        private final long intendedStart;
+        private final boolean measured;
+
+        Operation(String name, long intendedStart, boolean measured) {
+            this.name = name;
+            this.intendedStart = intendedStart;
+            this.measured = measured;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(intendedStart);
+            long actualStart = System.nanoTime();
+            boolean failed = false;
+            try {
+                execute(name, random);
+            } catch (Exception e) {
+                failed = true;
+            }
+            long done = System.nanoTime();
+            if (measured) {
+                Stats operationStats = stats.get(name);
+                operationStats.responseTime.record(done - intendedStart);
+                operationStats.serviceTime.record(done - actualStart);
+                operationStats.interval.record(done - intendedStart);
+                if (failed) {
+                    operationStats.errors.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Records an operation that never started as having taken until
+         * now; it has no service time.
+         */
+        void timedOut(long now) {
+            if (measured) {
+                Stats operationStats = stats.get(name);
+                operationStats.responseTime.record(now - intendedStart);
+                operationStats.timeouts.incrementAndGet();
+            }
+        }
+    }
+
+    private void execute(String name, Random random) throws Exception {
+        if (name.equals("search")) {
+            index.search(Query.forString(corpus.word(random) + " "
+                    + corpus.word(random))
+                    .withLength(10));
+        } else if (name.equals("add")) {
+            List<Document> batch = new ArrayList<Document>();
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(corpus.document(random.nextInt(corpusSize)));
+            }
+            index.addDocuments(batch);
+        } else if (name.equals("update")) {
+            index.updateVariables("doc" + random.nextInt(corpusSize),
+                    Collections.singletonMap(0, random.nextFloat()));
+        } else {
+            index.deleteDocument("doc" + random.nextInt(corpusSize));
+        }
+    }
+
+    /**
+     * Indexes the whole corpus, so that updates and searches find documents.
+     */
+    private void load() throws Exception {
+        out.printf("Loading %d documents%n", corpusSize);
+        List<Document> batch = new ArrayList<Document>();
+        for (int i = 0; i < corpusSize; i++) {
+            batch.add(corpus.document(i));
+            if (batch.size() == 100 || i == corpusSize - 1) {
+                index.addDocuments(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private String pick(Random random, int totalWeight) {
+        int draw = random.nextInt(totalWeight);
+        for (Entry<String, Integer> entry : mix.entrySet()) {
+            draw -= entry.getValue();
+            if (draw < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void reportInterval() {
+        StringBuilder line = new StringBuilder();
+        for (Entry<String, Stats> entry : stats.entrySet()) {
+            LatencyHistogram interval = entry.getValue().interval.drain();
+            line.append(String.format(Locale.ROOT,
+                    "%s: %d ops p99 %.2fms  ", entry.getKey(), interval
+                            .getCount(), interval.getValueAtPercentile(99) / 1e6));
+        }
+        out.println(line.toString().trim());
+    }
+
+    private void report() {
+        double seconds = durationNanos / 1e9;
+        for (Entry<String, Stats> entry : stats.entrySet()) {
+            Stats operationStats = entry.getValue();
+            // every operation due in the measured period is counted, done or
+            // not, so this is the offered rate rather than the throughput
+            out.printf(Locale.ROOT,
+                    "%n%s: %d ops (offered %.1f/s), %d errors, %d timeouts%n",
+                    entry.getKey(), operationStats.responseTime.getCount(),
+                    operationStats.responseTime.getCount() / seconds,
+                    operationStats.errors.get(),
+                    operationStats.timeouts.get());
+            printPercentiles("  response time (ms)",
+                    operationStats.responseTime);
+            printPercentiles("  service time (ms) ", operationStats.serviceTime);
+        }
+    }
+
+    private void printPercentiles(String label, LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder(label);
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(Locale.ROOT, "  p%s=%.2f",
+                    percentile == (long) percentile ? String
+                            .valueOf((long) percentile) : String
+                            .valueOf(percentile), histogram
+                            .getValueAtPercentile(percentile) / 1e6));
+        }
+        line.append(String.format(Locale.ROOT, "  max=%.2f",
+                histogram.getMax() / 1e6));
+        out.println(line);
+    }
+
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+        for (String part : spec.split(",")) {
+            String[] entry = part.split("=");
+            String name = entry[0].trim();
+            boolean known = false;
+            for (String operation : OPERATIONS) {
+                known |= operation.equals(name);
+            }
+            if (!known || entry.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry '"
+                        + part + "'");
+            }
+            int weight = Integer.parseInt(entry[1].trim());
+            if (weight > 0) {
+                mix.put(name, weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix");
+        }
+        return mix;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value, got "
+                        + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    static String option(Map<String, String> options, String name,
+            String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
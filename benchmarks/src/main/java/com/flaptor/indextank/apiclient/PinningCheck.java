@@ -0,0 +1,127 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * Checks that the client never pins a virtual thread: runs searches,
+ * batches, metadata reads and multi-searches from many virtual threads at
+ * once against a {@link StandInServer} on loopback, with few connections so
+ * callers park waiting for one, and fails if the JVM reports a virtual
+ * thread parking while pinned.
+ *
+ * <pre>
+ * java -Djdk.tracePinnedThreads=full -Dsun.net.httpserver.nodelay=true \
+ *     -cp benchmarks/target/benchmarks.jar \
+ *     com.flaptor.indextank.apiclient.PinningCheck --threads 1000
+ * </pre>
+ *
+ * Needs JDK 21 to 23; {@code jdk.tracePinnedThreads} is ignored from JDK 24
+ * on, where {@code synchronized} no longer pins. On older JDKs, or without
+ * the property, it exits with status 2 without checking. Pinning inside the
+ * JDK (e.g. in {@code HttpURLConnection} on some versions) is reported too.
+ *
+ * @author flaptor
+ */
+public class PinningCheck {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        int threads = Integer.parseInt(LoadGenerator.option(options,
+                "threads", "1000"));
+        int connections = Integer.parseInt(LoadGenerator.option(options,
+                "connections", "4"));
+
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads need JDK 21 or later, this is "
+                    + System.getProperty("java.version"));
+            System.exit(2);
+            return;
+        }
+        if (System.getProperty("jdk.tracePinnedThreads") == null) {
+            System.out.println("Run with -Djdk.tracePinnedThreads=full");
+            System.exit(2);
+        }
+
+        StandInServer server = new StandInServer(new LocalApiClient())
+                .withLatency(StandInServer.Latency.fixed(2)).start(0);
+        ExecutorService executor = (ExecutorService) factory.invoke(null);
+        // the JVM prints pinned stacks to System.out
+        ByteArrayOutputStream traces = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(traces, true, "UTF-8"));
+        int failures;
+        try {
+            IndexTankClient client = new IndexTankClient(server.getApiUrl())
+                    .withExecutor(executor).withMaxConnections(connections);
+            Index index = client.createIndex("pinning");
+            index.awaitStarted(1, TimeUnit.MINUTES);
+            failures = run(client, index, executor, threads);
+        } finally {
+            System.setOut(out);
+            executor.shutdownNow();
+            server.close();
+        }
+
+        String report = traces.toString("UTF-8");
+        if (report.isEmpty()) {
+            out.println(threads + " virtual threads, " + failures
+                    + " failed calls, no pinning");
+        } else {
+            out.print(report);
+            out.println("Virtual threads were pinned");
+            System.exit(1);
+        }
+    }
+
+    private static int run(final IndexTankClient client, final Index index,
+            ExecutorService executor, int threads) throws Exception {
+        List<Future<?>> callers = new ArrayList<Future<?>>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int caller = i;
+            callers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Map<String, String> fields = new HashMap<String, String>();
+                    fields.put("text", "document " + caller);
+                    index.addDocuments(Collections.singletonList(new Document(
+                            "d" + caller, fields, null, null)));
+                    index.search("document");
+                    index.getMetadata();
+                    client.multiSearch(Collections
+                            .singletonList(new MultiSearch.Request(index,
+                                    Query.forString("document"))), 10,
+                            TimeUnit.SECONDS);
+                    return null;
+                }
+            }));
+        }
+        int failures = 0;
+        for (Future<?> caller : callers) {
+            try {
+                caller.get();
+            } catch (ExecutionException e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+}
@@ -0,0 +1,73 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * Turning a query into request parameters and then into a query string.
+ *
+ * @author flaptor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private Query simple;
+    private Query complex;
+    private Map<String, String> complexParams;
+
+    @Setup
+    public void setUp() {
+        simple = Query.forString("quick brown fox");
+        complex = Query.forString("title:fox OR \"lazy dog\"")
+                .withStart(20).withLength(20).withScoringFunction(1)
+                .withFetchFields("title", "url")
+                .withSnippetFields("text")
+                .withCategoryFilters(Collections.singletonMap("type",
+                        Arrays.asList("article", "post")))
+                .withDocumentVariableFilter(0, 1, 10)
+                .withDocumentVariableFilter(0, 20, Double.POSITIVE_INFINITY)
+                .withFunctionFilter(1, 0, 100).withQueryVariable(0, 2.5f)
+                .withQueryVariable(1, -1f);
+        complexParams = complex.toParameterMap();
+    }
+
+    @Benchmark
+    public Map<String, String> simpleToParameterMap() {
+        return simple.toParameterMap();
+    }
+
+    @Benchmark
+    public Map<String, String> complexToParameterMap() {
+        return complex.toParameterMap();
+    }
+
+    @Benchmark
+    public String complexToQueryString() {
+        return IndexTankClient.paramsToQueryString(complexParams);
+    }
+
+    @Benchmark
+    public String complexEndToEnd() {
+        return IndexTankClient.paramsToQueryString(complex.toParameterMap());
+    }
+}
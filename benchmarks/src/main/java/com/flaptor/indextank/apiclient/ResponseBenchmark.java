@@ -0,0 +1,101 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Parsing search responses and building batch results, as the client does
+ * after every search and addDocuments call.
+ *
+ * @author flaptor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({ "10", "100" })
+    public int resultCount;
+
+    private String searchResponse;
+    private String batchResponse;
+    private List<Document> documents;
+
+    @Setup
+    public void setUp() {
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>();
+        documents = new ArrayList<Document>();
+        for (int i = 0; i < resultCount; i++) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("docid", "doc" + i);
+            result.put("query_relevance_score", 0.5 + i);
+            result.put("title", "Result number " + i);
+            result.put("snippet_text", "the <b>quick</b> brown fox " + i);
+            results.add(result);
+
+            Map<String, Object> added = new HashMap<String, Object>();
+            added.put("added", i % 10 != 0);
+            if (i % 10 == 0) {
+                added.put("error", "Invalid document");
+            }
+            batch.add(added);
+            documents.add(new Document("doc" + i, Collections.singletonMap(
+                    "text", "document " + i), null, null));
+        }
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("matches", 1000L);
+        response.put("search_time", "0.012");
+        response.put("results", results);
+        response.put("facets", Collections.singletonMap("type",
+                Collections.singletonMap("article", 1000)));
+        searchResponse = JSONValue.toJSONString(response);
+        batchResponse = JSONValue.toJSONString(batch);
+    }
+
+    @Benchmark
+    public SearchResults parseSearchResults() throws ParseException {
+        return new SearchResults((Map<String, Object>) new JSONParser()
+                .parse(searchResponse));
+    }
+
+    @Benchmark
+    public void parseBatchResults(Blackhole blackhole) throws ParseException {
+        BatchResults batchResults = BatchResults.fromResponse(
+                (List<Map<String, Object>>) new JSONParser()
+                        .parse(batchResponse), new ArrayList<Document>(
+                        documents));
+        for (Document failed : batchResults.getFailedDocuments()) {
+            blackhole.consume(failed);
+        }
+    }
+}
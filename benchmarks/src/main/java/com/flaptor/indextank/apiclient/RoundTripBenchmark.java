@@ -0,0 +1,88 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Full requests through {@link IndexTankClient} against a
+ * {@link StandInServer} on loopback: URL building, connection reuse, body
+ * writing, response reading and JSON parsing, with no added latency.
+ *
+ * @author flaptor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class RoundTripBenchmark {
+
+    private StandInServer server;
+    private Index index;
+    private Query query;
+    private List<Document> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new StandInServer(new LocalApiClient()).start(0);
+        IndexTankClient client = new IndexTankClient(server.getApiUrl());
+        index = client.createIndex("benchmark");
+
+        batch = new ArrayList<Document>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, String> fields = new HashMap<String, String>();
+            fields.put("text", "the quick brown fox number " + i);
+            batch.add(new Document("doc" + i, fields, Collections
+                    .singletonMap(0, (float) i), null));
+        }
+        index.addDocuments(batch);
+        query = Query.forString("quick fox").withLength(10)
+                .withFetchFields("text");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public SearchResults search() throws IOException, InvalidSyntaxException {
+        return index.search(query);
+    }
+
+    @Benchmark
+    public BatchResults addDocuments() throws IOException,
+            IndexDoesNotExistException {
+        return index.addDocuments(batch);
+    }
+
+    @Benchmark
+    public void updateVariables() throws IOException,
+            IndexDoesNotExistException {
+        index.updateVariables("doc0", Collections.singletonMap(0, 1f));
+    }
+}
@@ -0,0 +1,179 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.concurrent.Flow;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexingSink.DocumentResult;
+
+/**
+ * Converts between the {@link ReactiveStreams} interfaces of the client and
+ * the ones in {@link java.util.concurrent.Flow}, so an {@link IndexingSink}
+ * can be plugged into JDK 9+ reactive pipelines:
+ *
+ * <pre>
+ * SubmissionPublisher&lt;Document&gt; documents = new SubmissionPublisher&lt;&gt;();
+ * Flow.Processor&lt;Document, DocumentResult&gt; sink = FlowAdapters
+ *         .toFlowProcessor(new IndexingSink(index, 500, 4, client.getExecutor()));
+ * sink.subscribe(resultSubscriber);
+ * documents.subscribe(sink);
+ * </pre>
+ *
+ * Every adapter delegates each call as is; the contract of both sets of
+ * interfaces is the same.
+ *
+ * @author flaptor
+ */
+public final class FlowAdapters {
+
+    private FlowAdapters() {
+    }
+
+    /**
+     * @return the sink as a {@code Flow.Processor} of documents to results
+     */
+    public static Flow.Processor<Document, DocumentResult> toFlowProcessor(
+            IndexingSink sink) {
+        return new FlowProcessor<Document, DocumentResult>(sink, sink);
+    }
+
+    public static <T> Flow.Subscriber<T> toFlowSubscriber(
+            ReactiveStreams.Subscriber<T> subscriber) {
+        return new FlowSubscriber<T>(subscriber);
+    }
+
+    public static <T> Flow.Publisher<T> toFlowPublisher(
+            ReactiveStreams.Publisher<T> publisher) {
+        return new FlowPublisher<T>(publisher);
+    }
+
+    public static <T> ReactiveStreams.Subscriber<T> fromFlowSubscriber(
+            Flow.Subscriber<T> subscriber) {
+        return new ReactiveSubscriber<T>(subscriber);
+    }
+
+    public static <T> ReactiveStreams.Publisher<T> fromFlowPublisher(
+            Flow.Publisher<T> publisher) {
+        return new ReactivePublisher<T>(publisher);
+    }
+
+    private static class FlowSubscriber<T> implements Flow.Subscriber<T> {
+        private final ReactiveStreams.Subscriber<T> subscriber;
+
+        FlowSubscriber(ReactiveStreams.Subscriber<T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            subscriber.onSubscribe(new ReactiveStreams.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(T item) {
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            subscriber.onError(error);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+    }
+
+    private static class ReactiveSubscriber<T> implements
+            ReactiveStreams.Subscriber<T> {
+        private final Flow.Subscriber<T> subscriber;
+
+        ReactiveSubscriber(Flow.Subscriber<T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(
+                final ReactiveStreams.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(T item) {
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            subscriber.onError(error);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+    }
+
+    private static class FlowPublisher<T> implements Flow.Publisher<T> {
+        private final ReactiveStreams.Publisher<T> publisher;
+
+        FlowPublisher(ReactiveStreams.Publisher<T> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super T> subscriber) {
+            publisher.subscribe(fromFlowSubscriber(subscriber));
+        }
+    }
+
+    private static class ReactivePublisher<T> implements
+            ReactiveStreams.Publisher<T> {
+        private final Flow.Publisher<T> publisher;
+
+        ReactivePublisher(Flow.Publisher<T> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void subscribe(ReactiveStreams.Subscriber<? super T> subscriber) {
+            publisher.subscribe(toFlowSubscriber(subscriber));
+        }
+    }
+
+    private static class FlowProcessor<T, R> extends FlowSubscriber<T>
+            implements Flow.Processor<T, R> {
+        private final ReactiveStreams.Publisher<R> publisher;
+
+        FlowProcessor(ReactiveStreams.Subscriber<T> subscriber,
+                ReactiveStreams.Publisher<R> publisher) {
+            super(subscriber);
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super R> subscriber) {
+            publisher.subscribe(fromFlowSubscriber(subscriber));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.flaptor.indextank.apiclient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits a JDK Flight Recorder event for every request of a client, so calls
+ * show up next to GC, CPU and socket events in recordings:
+ *
+ * <pre>
+ * client.withListener(new JfrRequestListener());
+ * </pre>
+ *
+ * The {@code com.flaptor.indextank.ApiCall} event is disabled by default,
+ * which leaves a thread-local lookup per request. Enable it in a
+ * {@code .jfc} file or when starting a recording, e.g.
+ * {@code jcmd <pid> JFR.start +com.flaptor.indextank.ApiCall#enabled=true}
+ * on JDK 17 and later.
+ *
+ * @author flaptor
+ */
+public class JfrRequestListener implements RequestListener {
+
+    @Name("com.flaptor.indextank.ApiCall")
+    @Label("IndexTank API Call")
+    @Category({ "IndexTank", "Client" })
+    @Description("A request made by an IndexTankClient, from waiting for a "
+            + "connection to parsing the response. Batches are PUT docs "
+            + "requests, with one result per document.")
+    @Enabled(false)
+    public static class ApiCall extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Index")
+        String index;
+
+        @Label("Status")
+        @Description("HTTP code, 0 if no response arrived")
+        int status;
+
+        @Label("Request Size")
+        @DataAmount
+        long requestBytes;
+
+        @Label("Response Size")
+        @DataAmount
+        long responseBytes;
+
+        @Label("Results")
+        @Description("Results of a search or documents of a batch, -1 for "
+                + "other requests")
+        int resultCount;
+
+        @Label("Server Search Time")
+        @Description("search_time reported by the server, if any")
+        @Timespan
+        long serverSearchTime;
+
+        @Label("Connection Wait")
+        @Timespan
+        long connectionWait;
+
+        @Label("Connect")
+        @Timespan
+        long connect;
+
+        @Label("Write")
+        @Timespan
+        long write;
+
+        @Label("First Byte")
+        @Timespan
+        long firstByte;
+
+        @Label("Read")
+        @Timespan
+        long read;
+
+        @Label("Parse")
+        @Timespan
+        long parse;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    static {
+        // lets recordings list the event before the first request
+        FlightRecorder.register(ApiCall.class);
+    }
+
+    private final ThreadLocal<ApiCall> started = new ThreadLocal<ApiCall>();
+
+    @Override
+    public void requestStarted(RequestEvent request) {
+        ApiCall event = new ApiCall();
+        // when disabled, the JIT folds this to false and drops the allocation
+        if (event.isEnabled()) {
+            event.begin();
+            started.set(event);
+        }
+    }
+
+    @Override
+    public void requestCompleted(RequestEvent request) {
+        ApiCall event = started.get();
+        if (event == null) {
+            return;
+        }
+        started.remove();
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.method = request.getMethod();
+        event.endpoint = request.getEndpoint();
+        event.index = request.getIndex();
+        event.status = request.getStatus();
+        event.requestBytes = request.getRequestBytes();
+        event.responseBytes = request.getResponseBytes();
+        event.resultCount = request.getResultCount();
+        long serverSearchTime = request.getServerSearchTimeNanos();
+        // Long.MIN_VALUE shows up as N/A
+        event.serverSearchTime = serverSearchTime < 0 ? Long.MIN_VALUE
+                : serverSearchTime;
+        event.connectionWait = request.getConnectionWaitNanos();
+        event.connect = request.getConnectNanos();
+        event.write = request.getWriteNanos();
+        event.firstByte = request.getFirstByteNanos();
+        event.read = request.getReadNanos();
+        event.parse = request.getParseNanos();
+        Exception failure = request.getFailure();
+        if (failure != null) {
+            event.failure = failure.getClass().getSimpleName() + ": "
+                    + failure.getMessage();
+        }
+        event.commit();
+    }
+}
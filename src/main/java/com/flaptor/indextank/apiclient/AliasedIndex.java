@@ -0,0 +1,449 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * A logical name for a physical index, which can be pointed at another index
+ * at any time. Every call goes to the index the alias points at when the call
+ * is made.
+ * <p>
+ * {@link #swap(Index)} waits for the document writes in progress to finish,
+ * so once it returns nothing more is written to the previous index through
+ * the alias. Searches in progress may still complete against it.
+ * <p>
+ * While a {@link Reindexer} rebuilds the index, the document writes made
+ * through the alias are also recorded, to be replayed on the new index.
+ * Single document writes to the same document are then serialized, so they
+ * are recorded in the order the current index applied them; writes to
+ * different documents may be recorded in any order, which doesn't change the
+ * outcome. Batches are not serialized, since a large one would hold up the
+ * writes to most other documents for the whole request: a batch and another
+ * write to one of its documents made at the same time may be replayed in
+ * either order. Don't write the same document concurrently during a reindex
+ * if that matters.
+ *
+ * @author flaptor
+ */
+public class AliasedIndex implements Index {
+
+    /**
+     * A document write, recorded to be applied to another index.
+     */
+    abstract static class Change {
+        /**
+         * @param transformer
+         *            applied to the documents added
+         * @return false if the index rejected some of the documents
+         */
+        abstract boolean apply(Index index, Reindexer.Transformer transformer)
+                throws IOException, IndexDoesNotExistException;
+    }
+
+    private static final int STRIPES = 64;
+
+    private final String name;
+    // document writes hold the read lock, swapping the target the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Index target;
+    private volatile Queue<Change> changes;
+    // while recording, serialize the single document writes to each
+    // document, so that they are recorded in the order the target applied
+    // them
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public AliasedIndex(String name, Index target) {
+        this.name = name;
+        this.target = target;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return the name of the alias
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the index the alias points at
+     */
+    public Index getTarget() {
+        return target;
+    }
+
+    /**
+     * Points the alias at another index, once the document writes in
+     * progress finish.
+     *
+     * @return the index the alias pointed at
+     */
+    public Index swap(Index target) {
+        lock.writeLock().lock();
+        try {
+            Index previous = this.target;
+            this.target = target;
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts recording document writes, once the ones in progress finish.
+     *
+     * @return where writes are recorded, in the order they completed, which
+     *         for each document is the order they were applied in
+     * @throws IllegalStateException
+     *             if writes were already being recorded
+     */
+    Queue<Change> startRecording() {
+        lock.writeLock().lock();
+        try {
+            if (changes != null) {
+                throw new IllegalStateException("The alias " + name
+                        + " is already being reindexed");
+            }
+            changes = new ConcurrentLinkedQueue<Change>();
+            return changes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void stopRecording() {
+        lock.writeLock().lock();
+        try {
+            changes = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Blocks document writes, applies the changes recorded and not yet
+     * applied to the new index, and points the alias at it.
+     *
+     * @return the index the alias pointed at
+     */
+    Index swapAfterReplaying(Index target, Reindexer reindexer)
+            throws IOException, IndexDoesNotExistException {
+        lock.writeLock().lock();
+        try {
+            reindexer.replay(changes, target);
+            Index previous = this.target;
+            this.target = target;
+            changes = null;
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public SearchResults search(String query) throws IOException,
+            InvalidSyntaxException {
+        return target.search(query);
+    }
+
+    @Override
+    public SearchResults search(Query query) throws IOException,
+            InvalidSyntaxException {
+        return target.search(query);
+    }
+
+    @Override
+    public void create() throws IOException, IndexAlreadyExistsException,
+            MaximumIndexesExceededException {
+        target.create();
+    }
+
+    @Override
+    public void delete() throws IOException, IndexDoesNotExistException {
+        target.delete();
+    }
+
+    @Override
+    public BatchResults addDocuments(Iterable<Document> documents)
+            throws IOException, IndexDoesNotExistException {
+        List<Document> batch = new ArrayList<Document>();
+        for (Document document : documents) {
+            batch.add(document);
+        }
+        lock.readLock().lock();
+        try {
+            Queue<Change> changes = this.changes;
+            if (changes == null) {
+                return target.addDocuments(batch);
+            }
+            // not serialized with other writes, see the class comment
+            BatchResults results = target.addDocuments(batch);
+            // the documents rejected here would be rejected on replay too
+            final List<Document> accepted = new ArrayList<Document>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (results.getResult(i)) {
+                    accepted.add(batch.get(i));
+                }
+            }
+            if (!accepted.isEmpty()) {
+                changes.add(new Change() {
+                    @Override
+                    boolean apply(Index index, Reindexer.Transformer transformer)
+                            throws IOException, IndexDoesNotExistException {
+                        List<Document> transformed = new ArrayList<Document>(
+                                accepted.size());
+                        for (Document document : accepted) {
+                            Document result = transformer.transform(document);
+                            if (result != null) {
+                                transformed.add(result);
+                            }
+                        }
+                        return transformed.isEmpty()
+                                || !index.addDocuments(transformed).hasErrors();
+                    }
+                });
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields)
+            throws IOException, IndexDoesNotExistException {
+        addDocument(documentId, fields, null, null);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        addDocument(documentId, fields, variables, null);
+    }
+
+    @Override
+    public void addDocument(final String documentId,
+            Map<String, String> fields, Map<Integer, Float> variables,
+            Map<String, String> categories) throws IOException,
+            IndexDoesNotExistException {
+        final Map<String, String> fieldsCopy = copy(fields);
+        final Map<Integer, Float> variablesCopy = copy(variables);
+        final Map<String, String> categoriesCopy = copy(categories);
+        write(documentId, new Change() {
+            @Override
+            @SuppressWarnings("unchecked")
+            boolean apply(Index index, Reindexer.Transformer transformer)
+                    throws IOException, IndexDoesNotExistException {
+                Document document = transformer.transform(new Document(
+                        documentId, fieldsCopy, variablesCopy, categoriesCopy));
+                if (document != null) {
+                    // replayed the way it was made
+                    Map<String, Object> map = document.toDocumentMap();
+                    index.addDocument(document.getId(),
+                            (Map<String, String>) map.get("fields"),
+                            (Map<Integer, Float>) map.get("variables"),
+                            (Map<String, String>) map.get("categories"));
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void deleteDocument(final String documentId) throws IOException,
+            IndexDoesNotExistException {
+        write(documentId, new Change() {
+            @Override
+            boolean apply(Index index, Reindexer.Transformer transformer)
+                    throws IOException, IndexDoesNotExistException {
+                index.deleteDocument(documentId);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void updateVariables(final String documentId,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        final Map<Integer, Float> variablesCopy = copy(variables);
+        write(documentId, new Change() {
+            @Override
+            boolean apply(Index index, Reindexer.Transformer transformer)
+                    throws IOException, IndexDoesNotExistException {
+                index.updateVariables(documentId, variablesCopy);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void updateCategories(final String documentId,
+            Map<String, String> categories) throws IOException,
+            IndexDoesNotExistException {
+        final Map<String, String> categoriesCopy = copy(categories);
+        write(documentId, new Change() {
+            @Override
+            boolean apply(Index index, Reindexer.Transformer transformer)
+                    throws IOException, IndexDoesNotExistException {
+                index.updateCategories(documentId, categoriesCopy);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Applies a write of a single document to the target, and records it if
+     * writes are being recorded.
+     */
+    private void write(String documentId, Change change) throws IOException,
+            IndexDoesNotExistException {
+        lock.readLock().lock();
+        try {
+            Queue<Change> changes = this.changes;
+            if (changes == null) {
+                change.apply(target, Reindexer.UNCHANGED);
+                return;
+            }
+            List<ReentrantLock> locked = lockDocuments(Collections
+                    .singletonList(documentId));
+            try {
+                change.apply(target, Reindexer.UNCHANGED);
+                changes.add(change);
+            } finally {
+                unlock(locked);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Locks the stripes of the given documents, in stripe order so that
+     * concurrent batches can't deadlock.
+     */
+    private List<ReentrantLock> lockDocuments(List<String> documentIds) {
+        SortedSet<Integer> numbers = new TreeSet<Integer>();
+        for (String documentId : documentIds) {
+            numbers.add((documentId.hashCode() & Integer.MAX_VALUE)
+                    % stripes.length);
+        }
+        List<ReentrantLock> locked = new ArrayList<ReentrantLock>(
+                numbers.size());
+        for (Integer number : numbers) {
+            stripes[number].lock();
+            locked.add(stripes[number]);
+        }
+        return locked;
+    }
+
+    private static void unlock(List<ReentrantLock> locked) {
+        for (ReentrantLock stripe : locked) {
+            stripe.unlock();
+        }
+    }
+
+    private static <K, V> Map<K, V> copy(Map<K, V> map) {
+        return map == null ? null : new HashMap<K, V>(map);
+    }
+
+    /**
+     * Promotes on the current index only; promotions are not carried over
+     * by a reindex.
+     */
+    @Override
+    public void promote(String documentId, String query) throws IOException,
+            IndexDoesNotExistException {
+        target.promote(documentId, query);
+    }
+
+    @Override
+    public void addFunction(Integer functionIndex, String definition)
+            throws IOException, IndexDoesNotExistException,
+            InvalidSyntaxException {
+        target.addFunction(functionIndex, definition);
+    }
+
+    @Override
+    public void deleteFunction(Integer functionIndex) throws IOException,
+            IndexDoesNotExistException {
+        target.deleteFunction(functionIndex);
+    }
+
+    @Override
+    public Map<String, String> listFunctions()
+            throws IndexDoesNotExistException, IOException {
+        return target.listFunctions();
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return target.exists();
+    }
+
+    @Override
+    public boolean hasStarted() throws IOException,
+            IndexDoesNotExistException {
+        return target.hasStarted();
+    }
+
+    @Override
+    public boolean awaitStarted(long timeout, TimeUnit unit)
+            throws IOException, IndexDoesNotExistException {
+        return target.awaitStarted(timeout, unit);
+    }
+
+    @Override
+    public IndexStartup onStarted() {
+        return target.onStarted();
+    }
+
+    @Override
+    public String getCode() throws IOException, IndexDoesNotExistException {
+        return target.getCode();
+    }
+
+    @Override
+    public Date getCreationTime() throws IOException,
+            IndexDoesNotExistException {
+        return target.getCreationTime();
+    }
+
+    @Override
+    public void refreshMetadata() throws IOException,
+            IndexDoesNotExistException {
+        target.refreshMetadata();
+    }
+
+    @Override
+    public Map<String, Object> getMetadata() throws IOException,
+            IndexDoesNotExistException {
+        return target.getMetadata();
+    }
+
+    @Override
+    public String toString() {
+        return name + " -> " + target.getName();
+    }
+}
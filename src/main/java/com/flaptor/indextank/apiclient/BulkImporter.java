@@ -0,0 +1,589 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.simple.JSONValue;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+/**
+ * Imports a large file of documents into an index, reading it through
+ * memory-mapped chunks that are parsed and sent in parallel with
+ * {@code addDocuments} batches.
+ * <p>
+ * Two formats are supported, one document per line:
+ * <ul>
+ * <li>{@link Format#NDJSON}: JSON objects as sent by the API, with
+ * {@code docid}, {@code fields} and optional {@code variables} and
+ * {@code categories}.</li>
+ * <li>{@link Format#CSV}: a header line names the columns. The
+ * {@code docid} column holds the docid, {@code variable_<n>} columns
+ * variables, {@code category_<name>} columns categories and every other
+ * column a field. Values may be quoted, but not span lines.</li>
+ * </ul>
+ * A UTF-8 byte order mark at the start of the file is skipped.
+ * Progress is checkpointed to a file next to the input (or the one set with
+ * {@link #withCheckpoint(File)}) as the offset before which every line has
+ * been sent, along with the size and modification time of the input.
+ * Running the import again resumes from there, unless the input changed;
+ * lines after it that had already been sent are sent again, which just
+ * replaces the documents. Chunks are imported in no particular order, so a docid should
+ * appear only once in the file.
+ *
+ * <pre>
+ * java -cp indextank-java.jar com.flaptor.indextank.apiclient.BulkImporter \
+ *     http://:password@example.api.indextank.com myindex docs.ndjson
+ * </pre>
+ *
+ * @author flaptor
+ */
+public class BulkImporter {
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    /**
+     * What an import did.
+     */
+    public static class Summary {
+        /**
+         * the offset the import started from, 0 unless resumed
+         */
+        public final long resumedFrom;
+        public final long bytes;
+        public final long lines;
+        public final long added;
+        /**
+         * lines that could not be parsed, and documents the index rejected
+         */
+        public final long failed;
+        /**
+         * the first failures, with the offset of their line
+         */
+        public final List<String> errors;
+        public final long elapsedMillis;
+
+        Summary(long resumedFrom, long bytes, long lines, long added,
+                long failed, List<String> errors, long elapsedMillis) {
+            this.resumedFrom = resumedFrom;
+            this.bytes = bytes;
+            this.lines = lines;
+            this.added = added;
+            this.failed = failed;
+            this.errors = errors;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return lines + " lines (" + bytes + " bytes) in " + elapsedMillis
+                    + "ms: " + added + " added, " + failed + " failed"
+                    + (resumedFrom > 0 ? ", resumed from " + resumedFrom : "");
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] UTF_8_BOM = { (byte) 0xEF, (byte) 0xBB,
+            (byte) 0xBF };
+    private static final int MAX_ERRORS = 100;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_INITIAL_MILLIS = 250;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS
+            .toNanos(1);
+
+    private final Index index;
+    private final File file;
+    private final Format format;
+    private int batchSize = 500;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int chunkBytes = 8 << 20;
+    private char delimiter = ',';
+    private CheckpointFile checkpoint;
+
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final List<String> errors = Collections
+            .synchronizedList(new ArrayList<String>());
+    // chunks done past the watermark, by start offset
+    private final ConcurrentSkipListMap<Long, Long> completed = new ConcurrentSkipListMap<Long, Long>();
+    private final ReentrantLock watermarkLock = new ReentrantLock();
+    private long watermark;
+    private long lastCheckpoint;
+
+    public BulkImporter(Index index, File file, Format format) {
+        this.index = index;
+        this.file = file;
+        this.format = format;
+        this.checkpoint = new CheckpointFile(new File(file.getPath()
+                + ".checkpoint"), file);
+    }
+
+    /**
+     * @return this importer
+     */
+    public BulkImporter withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets how many chunks are parsed and sent at the same time. Defaults to
+     * the number of processors.
+     *
+     * @return this importer
+     */
+    public BulkImporter withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the approximate size of the chunks the file is split in, at line
+     * boundaries. Defaults to 8MB.
+     *
+     * @return this importer
+     */
+    public BulkImporter withChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+        return this;
+    }
+
+    /**
+     * @return this importer
+     */
+    public BulkImporter withCsvDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * @return this importer
+     */
+    public BulkImporter withCheckpoint(File checkpointFile) {
+        this.checkpoint = new CheckpointFile(checkpointFile, file);
+        return this;
+    }
+
+    public long getLines() {
+        return lines.get();
+    }
+
+    public long getAdded() {
+        return added.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Imports the file, from the checkpoint if there is one. The checkpoint
+     * is deleted once the whole file is imported.
+     *
+     * @throws IOException
+     *             if the file can't be read, or the index keeps failing;
+     *             the checkpoint records the progress made
+     */
+    public Summary run() throws IOException, IndexDoesNotExistException {
+        long started = System.nanoTime();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        try {
+            final FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long dataStart = hasByteOrderMark(channel) ? UTF_8_BOM.length : 0;
+            List<String> header = null;
+            if (format == Format.CSV) {
+                long headerStart = dataStart;
+                dataStart = lineEnd(channel, headerStart, size);
+                header = parseCsvLine(readString(channel, headerStart,
+                        dataStart).trim(), delimiter);
+            }
+            long resumedFrom = checkpoint.read();
+            long from = Math.max(dataStart, resumedFrom);
+            watermark = from;
+            lastCheckpoint = System.nanoTime();
+
+            CompletionService<Void> tasks = new ExecutorCompletionService<Void>(
+                    workers);
+            int submitted = 0;
+            for (long start = from; start < size;) {
+                long end = lineEnd(channel, Math.min(size, start + chunkBytes),
+                        size);
+                tasks.submit(chunk(channel, start, end, header));
+                submitted++;
+                start = end;
+            }
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    tasks.take().get();
+                } catch (ExecutionException e) {
+                    workers.shutdownNow();
+                    checkpoint.write(watermark());
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof IndexDoesNotExistException) {
+                        throw (IndexDoesNotExistException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+            checkpoint.delete();
+            return new Summary(resumedFrom, size - from, lines.get(),
+                    added.get(), failed.get(), new ArrayList<String>(errors),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+            checkpoint.write(watermark());
+            throw new InterruptedIOException("Interrupted while importing");
+        } finally {
+            workers.shutdown();
+            raf.close();
+        }
+    }
+
+    private Callable<Void> chunk(final FileChannel channel, final long start,
+            final long end, final List<String> header) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                importChunk(channel, start, end, header);
+                completed(start, end);
+                return null;
+            }
+        };
+    }
+
+    private void importChunk(FileChannel channel, long start, long end,
+            List<String> header) throws IOException,
+            IndexDoesNotExistException, InterruptedException {
+        CharBuffer text = UTF_8.decode(channel.map(
+                FileChannel.MapMode.READ_ONLY, start, end - start));
+        List<Document> batch = new ArrayList<Document>(batchSize);
+        int lineStart = 0;
+        // offsets in errors are approximate for non-ASCII text
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && text.charAt(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && text.charAt(i - 1) == '\r' ? i - 1
+                    : i;
+            if (lineEnd > lineStart) {
+                String line = text.subSequence(lineStart, lineEnd).toString();
+                lines.incrementAndGet();
+                try {
+                    batch.add(format == Format.NDJSON ? parseJson(line)
+                            : parseCsv(line, header));
+                } catch (IllegalArgumentException e) {
+                    fail("line at " + (start + lineStart) + ": "
+                            + e.getMessage());
+                }
+                if (batch.size() == batchSize) {
+                    send(batch);
+                    batch = new ArrayList<Document>(batchSize);
+                }
+            }
+            lineStart = i + 1;
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void send(List<Document> batch) throws IOException,
+            IndexDoesNotExistException, InterruptedException {
+        BatchResults results;
+        try {
+            results = addDocuments(index, batch);
+        } catch (IllegalArgumentException e) {
+            // 400, the batch is invalid
+            for (Document document : batch) {
+                fail(document.getId() + ": " + e.getMessage());
+            }
+            return;
+        } catch (UnexpectedCodeException e) {
+            if (e.httpCode != 413) {
+                throw e;
+            }
+            if (batch.size() == 1) {
+                fail(batch.get(0).getId() + ": " + e.getMessage());
+            } else {
+                // too large for one request
+                send(batch.subList(0, batch.size() / 2));
+                send(batch.subList(batch.size() / 2, batch.size()));
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (results.getResult(i)) {
+                added.incrementAndGet();
+            } else {
+                fail(batch.get(i).getId() + ": " + results.getErrorMessage(i));
+            }
+        }
+    }
+
+    /**
+     * Adds a batch, retrying with backoff on {@link IOException}s, 5xx
+     * responses and the 4xx ones that may succeed later.
+     *
+     * @throws UnexpectedCodeException
+     *             on any other 4xx response, or after the last retry
+     */
+    static BatchResults addDocuments(Index index, List<Document> batch)
+            throws IOException, IndexDoesNotExistException,
+            InterruptedException {
+        long retryMillis = RETRY_INITIAL_MILLIS;
+        for (int attempt = 0;; attempt++) {
+            try {
+                return index.addDocuments(batch);
+            } catch (IOException e) {
+                if (attempt == MAX_RETRIES) {
+                    throw e;
+                }
+            } catch (UnexpectedCodeException e) {
+                if (!isTransient(e.httpCode) || attempt == MAX_RETRIES) {
+                    throw e;
+                }
+            }
+            Thread.sleep(retryMillis);
+            retryMillis *= 2;
+        }
+    }
+
+    /**
+     * @return whether a request answered with the given code may succeed if
+     *         made again
+     */
+    static boolean isTransient(int httpCode) {
+        switch (httpCode) {
+        case 401: // credentials being rotated
+        case 408:
+        case 409: // index being modified
+        case 429:
+            return true;
+        default:
+            return httpCode >= 500;
+        }
+    }
+
+    private void fail(String error) {
+        failed.incrementAndGet();
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(error);
+        }
+    }
+
+    /**
+     * Advances the watermark over the chunks done without gaps, and
+     * checkpoints it now and then.
+     */
+    private void completed(long start, long end) throws IOException {
+        completed.put(start, end);
+        watermarkLock.lock();
+        try {
+            Long next;
+            while ((next = completed.remove(watermark)) != null) {
+                watermark = next;
+            }
+            if (System.nanoTime() - lastCheckpoint > CHECKPOINT_INTERVAL_NANOS) {
+                checkpoint.write(watermark);
+                lastCheckpoint = System.nanoTime();
+            }
+        } finally {
+            watermarkLock.unlock();
+        }
+    }
+
+    private long watermark() {
+        watermarkLock.lock();
+        try {
+            return watermark;
+        } finally {
+            watermarkLock.unlock();
+        }
+    }
+
+    private static Document parseJson(String line) {
+        Object parsed = JSONValue.parse(line);
+        if (!(parsed instanceof Map)) {
+            throw new IllegalArgumentException("Not a JSON object");
+        }
+        return Document.fromDocumentMap((Map<String, ?>) parsed);
+    }
+
+    private static final String VARIABLE_PREFIX = "variable_";
+    private static final String CATEGORY_PREFIX = "category_";
+
+    private Document parseCsv(String line, List<String> header) {
+        List<String> values = parseCsvLine(line, delimiter);
+        if (values.size() != header.size()) {
+            throw new IllegalArgumentException("Expected " + header.size()
+                    + " columns, found " + values.size());
+        }
+        String docid = null;
+        Map<String, String> fields = new HashMap<String, String>();
+        Map<Integer, Float> variables = null;
+        Map<String, String> categories = null;
+        for (int i = 0; i < values.size(); i++) {
+            String column = header.get(i);
+            String value = values.get(i);
+            if (column.equals("docid")) {
+                docid = value;
+            } else if (column.startsWith(VARIABLE_PREFIX)) {
+                if (value.isEmpty()) {
+                    continue;
+                }
+                if (variables == null) {
+                    variables = new HashMap<Integer, Float>();
+                }
+                try {
+                    variables.put(Integer.valueOf(column
+                            .substring(VARIABLE_PREFIX.length())), Float
+                            .valueOf(value));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid " + column
+                            + " " + value);
+                }
+            } else if (column.startsWith(CATEGORY_PREFIX)) {
+                if (value.isEmpty()) {
+                    continue;
+                }
+                if (categories == null) {
+                    categories = new HashMap<String, String>();
+                }
+                categories.put(column.substring(CATEGORY_PREFIX.length()),
+                        value);
+            } else {
+                fields.put(column, value);
+            }
+        }
+        if (docid == null || docid.isEmpty()) {
+            throw new IllegalArgumentException("Missing docid");
+        }
+        return new Document(docid, fields, variables, categories);
+    }
+
+    /**
+     * Splits a CSV line, honoring double-quoted values with doubled quotes
+     * inside.
+     */
+    static List<String> parseCsvLine(String line, char delimiter) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /**
+     * @return the offset after the first line break at or after a position,
+     *         or the size if there is none
+     */
+    private static long lineEnd(FileChannel channel, long position, long size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static boolean hasByteOrderMark(FileChannel channel)
+            throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(UTF_8_BOM.length);
+        return channel.read(start, 0) == UTF_8_BOM.length
+                && Arrays.equals(start.array(), UTF_8_BOM);
+    }
+
+    private static String readString(FileChannel channel, long start,
+            long end) throws IOException {
+        return UTF_8.decode(
+                channel.map(FileChannel.MapMode.READ_ONLY, start, end - start))
+                .toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: BulkImporter <api url> <index> <file>"
+                    + " [ndjson|csv]");
+            System.exit(1);
+        }
+        File file = new File(args[2]);
+        Format format = args.length == 4 ? Format.valueOf(args[3]
+                .toUpperCase()) : file.getName().endsWith(".csv") ? Format.CSV
+                : Format.NDJSON;
+        IndexTankClient client = new IndexTankClient(args[0]);
+        Summary summary = new BulkImporter(client.getIndex(args[1]), file,
+                format).run();
+        System.out.println(summary);
+        for (String error : summary.errors) {
+            System.out.println("  " + error);
+        }
+    }
+}
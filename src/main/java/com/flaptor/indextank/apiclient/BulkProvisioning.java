@@ -0,0 +1,387 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates many indexes at once, waits for them to start and installs the
+ * same set of scoring functions on each one.
+ * <p>
+ * Indexes are created concurrently by a bounded number of workers, and
+ * the API calls made (index creation and function installation) are spread
+ * out to a maximum rate. A worker moves on to the next index right after
+ * creating one; the functions are installed on the executor as each index
+ * starts, so slow starts don't hold up the creation of the rest. Every index gets its own {@link Outcome};
+ * one failing doesn't stop the others, except that once the account
+ * reaches its index limit the indexes not yet attempted are reported as
+ * {@link Status#LIMIT_EXCEEDED} without trying.
+ *
+ * <pre>
+ * BulkProvisioning.Report report = client.bulkProvisioning()
+ *         .withFunctions(functions).withParallelism(8).withRateLimit(5)
+ *         .run(names);
+ * </pre>
+ *
+ * @author flaptor
+ */
+public class BulkProvisioning {
+
+    public enum Status {
+        /** created, started and with its functions installed */
+        CREATED,
+        /** already existed; started and with its functions installed */
+        ALREADY_EXISTED,
+        /** not created, the account reached its index limit */
+        LIMIT_EXCEEDED,
+        /** created, but did not start in time; no functions installed */
+        START_TIMEOUT,
+        /** a function definition was rejected */
+        INVALID_FUNCTION,
+        /** any other error, see {@link Outcome#error} */
+        FAILED
+    }
+
+    /**
+     * What happened to a single index.
+     */
+    public static class Outcome {
+        public final String indexName;
+        public final Status status;
+        public final Exception error;
+        public final long elapsedMillis;
+
+        Outcome(String indexName, Status status, Exception error,
+                long elapsedMillis) {
+            this.indexName = indexName;
+            this.status = status;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public boolean isReady() {
+            return status == Status.CREATED
+                    || status == Status.ALREADY_EXISTED;
+        }
+
+        @Override
+        public String toString() {
+            return indexName + ": " + status
+                    + (error == null ? "" : " (" + error.getMessage() + ")");
+        }
+    }
+
+    /**
+     * The outcome of every index, in the order they were requested.
+     */
+    public static class Report {
+        public final List<Outcome> outcomes;
+
+        Report(List<Outcome> outcomes) {
+            this.outcomes = Collections.unmodifiableList(outcomes);
+        }
+
+        public Map<Status, Integer> countByStatus() {
+            Map<Status, Integer> counts = new EnumMap<Status, Integer>(
+                    Status.class);
+            for (Outcome outcome : outcomes) {
+                Integer count = counts.get(outcome.status);
+                counts.put(outcome.status, count == null ? 1 : count + 1);
+            }
+            return counts;
+        }
+
+        /**
+         * @return <code>true</code> if every index is ready to be used
+         */
+        public boolean isComplete() {
+            for (Outcome outcome : outcomes) {
+                if (!outcome.isReady()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return countByStatus().toString();
+        }
+    }
+
+    private final ApiClient client;
+    private final Executor executor;
+    private Map<Integer, String> functions = new HashMap<Integer, String>();
+    private int parallelism = 4;
+    private double requestsPerSecond = 0;
+    private long startTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * @param client
+     *            the client used to create the indexes
+     * @param executor
+     *            the executor the workers run on, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public BulkProvisioning(ApiClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * @param functions
+     *            functions to install on every index, by function index
+     */
+    public BulkProvisioning withFunctions(Map<Integer, String> functions) {
+        this.functions = new HashMap<Integer, String>(functions);
+        return this;
+    }
+
+    /**
+     * @param parallelism
+     *            number of indexes created at the same time. Defaults to 4.
+     */
+    public BulkProvisioning withParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param requestsPerSecond
+     *            maximum rate of create and addFunction calls, across all
+     *            workers. 0, the default, means no limit.
+     */
+    public BulkProvisioning withRateLimit(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        return this;
+    }
+
+    /**
+     * @param timeout
+     *            how long to wait for each index to start. Defaults to 5
+     *            minutes.
+     */
+    public BulkProvisioning withStartTimeout(long timeout, TimeUnit unit) {
+        this.startTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Provisions the given indexes and waits until all of them are done.
+     *
+     * @return the outcome of every index
+     */
+    public Report run(final List<String> indexNames) {
+        final RateLimiter rateLimiter = new RateLimiter(requestsPerSecond);
+        final Outcome[] outcomes = new Outcome[indexNames.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean limitReached = new AtomicBoolean();
+        final Queue<Starting> starting = new ConcurrentLinkedQueue<Starting>();
+        int workers = Math.min(parallelism, indexNames.size());
+        final CountDownLatch finished = new CountDownLatch(workers);
+
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int position;
+                        while ((position = next.getAndIncrement()) < indexNames
+                                .size()) {
+                            String name = indexNames.get(position);
+                            if (limitReached.get()) {
+                                outcomes[position] = new Outcome(name,
+                                        Status.LIMIT_EXCEEDED, null, 0);
+                                continue;
+                            }
+                            Starting created = create(position, name,
+                                    outcomes, rateLimiter, limitReached);
+                            if (created != null) {
+                                starting.add(created);
+                                created.started.addListener(created, executor);
+                            }
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        await(finished, Long.MAX_VALUE, interrupted);
+        for (Starting created : starting) {
+            if (!await(created.done, created.deadlineMillis, interrupted)) {
+                created.timeOut();
+                // no-op if the functions are being installed already
+                await(created.done, Long.MAX_VALUE, interrupted);
+            }
+        }
+        if (interrupted.get()) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Outcome> report = new ArrayList<Outcome>(outcomes.length);
+        Collections.addAll(report, outcomes);
+        return new Report(report);
+    }
+
+    /**
+     * Creates the index and starts waiting for it to start.
+     *
+     * @return the pending start, or <code>null</code> if the outcome is
+     *         already known
+     */
+    private Starting create(int position, String name, Outcome[] outcomes,
+            RateLimiter rateLimiter, AtomicBoolean limitReached) {
+        long start = System.currentTimeMillis();
+        Index index = client.getIndex(name);
+        Status status = Status.CREATED;
+        try {
+            rateLimiter.acquire();
+            try {
+                index.create();
+            } catch (IndexAlreadyExistsException e) {
+                status = Status.ALREADY_EXISTED;
+            } catch (MaximumIndexesExceededException e) {
+                limitReached.set(true);
+                outcomes[position] = new Outcome(name, Status.LIMIT_EXCEEDED,
+                        e, System.currentTimeMillis() - start);
+                return null;
+            }
+            return new Starting(position, name, index, status, start,
+                    outcomes, rateLimiter);
+        } catch (IOException e) {
+            outcomes[position] = new Outcome(name, Status.FAILED, e,
+                    System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            outcomes[position] = new Outcome(name, Status.FAILED, e,
+                    System.currentTimeMillis() - start);
+        }
+        return null;
+    }
+
+    /**
+     * An index waiting to start. Runs as a listener of its startup, off the
+     * workers, and installs the functions once the index has started;
+     * {@link #run(List)} times it out if it doesn't start in time.
+     */
+    private class Starting implements Runnable {
+        final int position;
+        final String name;
+        final Index index;
+        final Status status;
+        final long start;
+        final long deadlineMillis;
+        final IndexStartup started;
+        final Outcome[] outcomes;
+        final RateLimiter rateLimiter;
+        final AtomicBoolean settled = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Starting(int position, String name, Index index, Status status,
+                long start, Outcome[] outcomes, RateLimiter rateLimiter) {
+            this.position = position;
+            this.name = name;
+            this.index = index;
+            this.status = status;
+            this.start = start;
+            this.deadlineMillis = System.currentTimeMillis()
+                    + startTimeoutMillis;
+            this.outcomes = outcomes;
+            this.rateLimiter = rateLimiter;
+            this.started = index.onStarted();
+        }
+
+        void timeOut() {
+            if (settled.compareAndSet(false, true)) {
+                outcomes[position] = new Outcome(name, Status.START_TIMEOUT,
+                        null, System.currentTimeMillis() - start);
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!settled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                outcomes[position] = install();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private Outcome install() {
+            try {
+                started.get();
+                for (Entry<Integer, String> function : functions.entrySet()) {
+                    rateLimiter.acquire();
+                    index.addFunction(function.getKey(), function.getValue());
+                }
+                return new Outcome(name, status, null,
+                        System.currentTimeMillis() - start);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                return new Outcome(name,
+                        cause instanceof SocketTimeoutException ? Status.START_TIMEOUT
+                                : Status.FAILED,
+                        cause instanceof Exception ? (Exception) cause
+                                : new RuntimeException(cause),
+                        System.currentTimeMillis() - start);
+            } catch (InterruptedException e) {
+                // not reached, the startup is done when this runs
+                Thread.currentThread().interrupt();
+                return new Outcome(name, Status.FAILED, e,
+                        System.currentTimeMillis() - start);
+            } catch (InvalidSyntaxException e) {
+                return new Outcome(name, Status.INVALID_FUNCTION, e,
+                        System.currentTimeMillis() - start);
+            } catch (IndexDoesNotExistException e) {
+                return new Outcome(name, Status.FAILED, e,
+                        System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                return new Outcome(name, Status.FAILED, e,
+                        System.currentTimeMillis() - start);
+            } catch (RuntimeException e) {
+                return new Outcome(name, Status.FAILED, e,
+                        System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /**
+     * Waits for the latch until the given deadline. Interrupts are recorded
+     * and otherwise ignored: the work is already under way, let it finish.
+     */
+    private static boolean await(CountDownLatch latch, long deadlineMillis,
+            AtomicBoolean interrupted) {
+        while (true) {
+            try {
+                return latch.await(
+                        Math.max(0, deadlineMillis - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A file holding a single position. Writes go to a temporary file that is
+ * synced and then renamed over the old one, so a crash leaves either the old
+ * position or the new one.
+ * <p>
+ * A position in another file can be checkpointed along with that file's
+ * size and modification time, so that it is not applied to a different
+ * version of the file.
+ *
+ * @author flaptor
+ */
+class CheckpointFile {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private final File source;
+
+    CheckpointFile(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param source
+     *            the file the positions are in
+     */
+    CheckpointFile(File file, File source) {
+        this.file = file;
+        this.source = source;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the position last written, or 0 if there is none
+     * @throws IOException
+     *             also if the source file changed since the position was
+     *             written
+     */
+    long read() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        String[] content = new String(Files.readAllBytes(file.toPath()),
+                US_ASCII).trim().split(" ");
+        long position;
+        try {
+            position = Long.parseLong(content[0]);
+            // checkpoints written without the source's size and
+            // modification time can't be checked
+            if (source != null && content.length == 3
+                    && (Long.parseLong(content[1]) != source.length()
+                            || Long.parseLong(content[2]) != source.lastModified())) {
+                throw new IOException(source + " changed since " + file
+                        + " was written; delete it to start over");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint in " + file);
+        }
+        return position;
+    }
+
+    void write(long position) throws IOException {
+        String content = Long.toString(position);
+        if (source != null) {
+            content += " " + source.length() + " " + source.lastModified();
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(content.getBytes(US_ASCII));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,501 @@
+package com.flaptor.indextank.apiclient;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Request metrics of an {@link IndexTankClient}, kept for every method,
+ * endpoint and index: latency histograms, request and byte counts, errors by
+ * HTTP code and requests in flight. Recording takes no locks: counters are
+ * striped and histograms are lock-free, so metrics are always on.
+ * <p>
+ * {@link #register(String)} publishes them as MXBeans under the
+ * {@code com.flaptor.indextank.apiclient} domain: one
+ * {@code type=Client} bean, and one {@code type=Endpoint} bean per endpoint
+ * and index as they are first used.
+ * <p>
+ * The metrics of an index are dropped, and their beans unregistered, when
+ * the client deletes it; the client totals keep counting them. Requests to
+ * indexes beyond the first {@value #MAX_INDEXES} tracked at a time are
+ * counted together under the index {@value #OTHER_INDEX}.
+ *
+ * @author flaptor
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    static final String DOMAIN = "com.flaptor.indextank.apiclient";
+    static final int MAX_INDEXES = 1000;
+    static final String OTHER_INDEX = "(other)";
+
+    /**
+     * Metrics of one method, endpoint and index.
+     */
+    public static class Endpoint implements EndpointMetricsMXBean {
+        private final String method;
+        private final String endpoint;
+        private final String index;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final StripedCounter requests = new StripedCounter();
+        private final StripedCounter requestBytes = new StripedCounter();
+        private final StripedCounter responseBytes = new StripedCounter();
+        private final StripedCounter inFlight = new StripedCounter();
+        // errors are rare enough for plain counters
+        private final ConcurrentHashMap<Integer, AtomicLong> errors = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        Endpoint(String method, String endpoint, String index) {
+            this.method = method;
+            this.endpoint = endpoint;
+            this.index = index;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public String getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the latencies recorded so far, in nanoseconds
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            long total = 0;
+            for (AtomicLong count : errors.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+        @Override
+        public Map<Integer, Long> getErrorsByCode() {
+            Map<Integer, Long> byCode = new HashMap<Integer, Long>();
+            for (Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+                byCode.put(entry.getKey(), entry.getValue().get());
+            }
+            return byCode;
+        }
+
+        @Override
+        public long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        @Override
+        public long getResponseBytes() {
+            return responseBytes.sum();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        @Override
+        public double getLatencyMeanMillis() {
+            return latency.getMean() / 1e6;
+        }
+
+        @Override
+        public double getLatency50thPercentileMillis() {
+            return latency.getValueAtPercentile(50) / 1e6;
+        }
+
+        @Override
+        public double getLatency90thPercentileMillis() {
+            return latency.getValueAtPercentile(90) / 1e6;
+        }
+
+        @Override
+        public double getLatency99thPercentileMillis() {
+            return latency.getValueAtPercentile(99) / 1e6;
+        }
+
+        @Override
+        public double getLatency999thPercentileMillis() {
+            return latency.getValueAtPercentile(99.9) / 1e6;
+        }
+
+        @Override
+        public double getLatencyMaxMillis() {
+            return latency.getMax() / 1e6;
+        }
+
+        void sending() {
+            inFlight.increment();
+        }
+
+        void completed(RequestEvent event) {
+            inFlight.decrement();
+            latency.record(event.totalNanos);
+            requests.increment();
+            requestBytes.add(event.requestBytes);
+            responseBytes.add(event.responseBytes);
+            int status = event.status;
+            if (status != 200 && status != 201) {
+                AtomicLong count = errors.get(status);
+                if (count == null) {
+                    AtomicLong created = new AtomicLong();
+                    count = errors.putIfAbsent(status, created);
+                    if (count == null) {
+                        count = created;
+                    }
+                }
+                count.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + endpoint
+                    + (index.isEmpty() ? "" : " " + index) + ": "
+                    + getRequests() + " requests, " + getErrors()
+                    + " errors, latency " + latency;
+        }
+    }
+
+    private final IndexTankClient client;
+    private final String indexesUrl;
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final Set<String> indexes = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // totals of the endpoints dropped along with their index
+    private final AtomicLong retiredRequests = new AtomicLong();
+    private final AtomicLong retiredErrors = new AtomicLong();
+    private final AtomicLong retiredRequestBytes = new AtomicLong();
+    private final AtomicLong retiredResponseBytes = new AtomicLong();
+    private final LatencyHistogram connectionWait = new LatencyHistogram();
+    private final AtomicReference<String> registeredName = new AtomicReference<String>();
+
+    ClientMetrics(IndexTankClient client, String indexesUrl) {
+        this.client = client;
+        this.indexesUrl = indexesUrl;
+    }
+
+    /**
+     * @return the metrics of every endpoint and index used so far
+     */
+    public Collection<Endpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    /**
+     * @return how long requests waited for a connection permit, in
+     *         nanoseconds. Empty if connections are unbounded.
+     */
+    public LatencyHistogram getConnectionWait() {
+        return connectionWait;
+    }
+
+    @Override
+    public long getRequests() {
+        long total = retiredRequests.get();
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getRequests();
+        }
+        return total;
+    }
+
+    @Override
+    public long getErrors() {
+        long total = retiredErrors.get();
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getErrors();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRequestBytes() {
+        long total = retiredRequestBytes.get();
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getRequestBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getResponseBytes() {
+        long total = retiredResponseBytes.get();
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getResponseBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getInFlight() {
+        long total = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getInFlight();
+        }
+        return total;
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return client.getMaxConnections();
+    }
+
+    @Override
+    public double getConnectionUtilization() {
+        Semaphore permits = client.getConnectionPermits();
+        int max = client.getMaxConnections();
+        if (permits == null || max == 0) {
+            return 0;
+        }
+        return (double) (max - permits.availablePermits()) / max;
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        Semaphore permits = client.getConnectionPermits();
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    @Override
+    public double getConnectionWaitMeanMillis() {
+        return connectionWait.getMean() / 1e6;
+    }
+
+    @Override
+    public double getConnectionWait99thPercentileMillis() {
+        return connectionWait.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public int getExecutorActiveThreads() {
+        ThreadPoolExecutor pool = threadPool();
+        return pool == null ? -1 : pool.getActiveCount();
+    }
+
+    @Override
+    public int getExecutorPoolSize() {
+        ThreadPoolExecutor pool = threadPool();
+        return pool == null ? -1 : pool.getPoolSize();
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        ThreadPoolExecutor pool = threadPool();
+        return pool == null ? -1 : pool.getQueue().size();
+    }
+
+    private ThreadPoolExecutor threadPool() {
+        ExecutorService executor = client.getExecutorIfCreated();
+        return executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor
+                : null;
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server, as
+     * {@code com.flaptor.indextank.apiclient:type=Client,name=<name>} and one
+     * {@code type=Endpoint,client=<name>,...} bean per endpoint and index,
+     * including those first used later.
+     *
+     * @param name
+     *            distinguishes this client from others in the same JVM
+     * @throws IllegalStateException
+     *             if already registered
+     * @throws IllegalArgumentException
+     *             if the name is taken by another client
+     */
+    public void register(String name) {
+        if (!registeredName.compareAndSet(null, name)) {
+            throw new IllegalStateException("Already registered as "
+                    + registeredName.get());
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    clientName(name));
+        } catch (JMException e) {
+            registeredName.set(null);
+            throw new IllegalArgumentException(e);
+        }
+        for (Endpoint endpoint : endpoints.values()) {
+            register(name, endpoint);
+        }
+    }
+
+    /**
+     * Removes the MBeans registered by {@link #register(String)}, if any.
+     */
+    public void unregister() {
+        String name = registeredName.getAndSet(null);
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        names.add(clientName(name));
+        for (Endpoint endpoint : endpoints.values()) {
+            names.add(endpointName(name, endpoint));
+        }
+        for (ObjectName objectName : names) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Finds or creates the metrics for a request.
+     */
+    Endpoint endpoint(String method, String url) {
+        String index = "";
+        String endpoint = "indexes";
+        if (url.startsWith(indexesUrl) && url.length() > indexesUrl.length()) {
+            String path = url.substring(indexesUrl.length());
+            int slash = path.indexOf('/');
+            index = decode(slash < 0 ? path : path.substring(0, slash));
+            endpoint = slash < 0 ? "index" : endpointForPath(path
+                    .substring(slash + 1));
+            // concurrent first requests can take a few more than the cap
+            if (!indexes.contains(index)) {
+                if (indexes.size() >= MAX_INDEXES) {
+                    index = OTHER_INDEX;
+                } else {
+                    indexes.add(index);
+                }
+            }
+        }
+        String key = method + ' ' + endpoint + ' ' + index;
+        Endpoint metrics = endpoints.get(key);
+        if (metrics == null) {
+            Endpoint created = new Endpoint(method, endpoint, index);
+            metrics = endpoints.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                String name = registeredName.get();
+                if (name != null) {
+                    register(name, created);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Drops the metrics of a deleted index, adding them to the client totals.
+     */
+    void indexDeleted(String index) {
+        if (!indexes.remove(index)) {
+            return;
+        }
+        String name = registeredName.get();
+        for (Iterator<Endpoint> it = endpoints.values().iterator(); it
+                .hasNext();) {
+            Endpoint endpoint = it.next();
+            if (!endpoint.index.equals(index)) {
+                continue;
+            }
+            it.remove();
+            retiredRequests.addAndGet(endpoint.getRequests());
+            retiredErrors.addAndGet(endpoint.getErrors());
+            retiredRequestBytes.addAndGet(endpoint.getRequestBytes());
+            retiredResponseBytes.addAndGet(endpoint.getResponseBytes());
+            if (name != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                            endpointName(name, endpoint));
+                } catch (JMException e) {
+                    // not registered
+                }
+            }
+        }
+    }
+
+    void connectionWaited(long nanos) {
+        connectionWait.record(nanos);
+    }
+
+    /**
+     * Maps paths under an index to endpoint names: {@code docs/variables}
+     * is {@code variables} and {@code functions/3} is {@code functions}.
+     */
+    private static String endpointForPath(String path) {
+        if (path.startsWith("docs/")) {
+            path = path.substring("docs/".length());
+        }
+        int slash = path.indexOf('/');
+        return slash < 0 ? path : path.substring(0, slash);
+    }
+
+    private static String decode(String indexName) {
+        if (indexName.indexOf('%') < 0) {
+            return indexName;
+        }
+        try {
+            return URI.create("/" + indexName).getPath().substring(1);
+        } catch (IllegalArgumentException e) {
+            return indexName;
+        }
+    }
+
+    private static void register(String name, Endpoint endpoint) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(endpoint,
+                    endpointName(name, endpoint));
+        } catch (JMException e) {
+            // registered concurrently by register(String), or a name clash
+            // with another client; the client bean reports totals anyway
+        }
+    }
+
+    private static ObjectName clientName(String name) {
+        return objectName("type=Client,name=" + ObjectName.quote(name));
+    }
+
+    private static ObjectName endpointName(String name, Endpoint endpoint) {
+        return objectName("type=Endpoint,client=" + ObjectName.quote(name)
+                + ",method=" + endpoint.method + ",endpoint="
+                + endpoint.endpoint + ",index="
+                + ObjectName.quote(endpoint.index));
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.flaptor.indextank.apiclient;
+
+/**
+ * JMX view of an {@link IndexTankClient} as a whole: request totals across
+ * endpoints and the utilization of its connections and executor. Per-endpoint
+ * figures are in the {@link EndpointMetricsMXBean}s registered next to it.
+ *
+ * @author flaptor
+ */
+public interface ClientMetricsMXBean {
+
+    long getRequests();
+
+    long getErrors();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    /**
+     * @return requests holding a connection right now
+     */
+    long getInFlight();
+
+    /**
+     * @return the limit set with
+     *         {@link IndexTankClient#withMaxConnections(int)}, or 0 if
+     *         unbounded
+     */
+    int getMaxConnections();
+
+    /**
+     * @return the fraction of the connection limit in use, or 0 if unbounded
+     */
+    double getConnectionUtilization();
+
+    /**
+     * @return an estimate of the requests waiting for a connection permit
+     */
+    int getQueuedRequests();
+
+    double getConnectionWaitMeanMillis();
+
+    double getConnectionWait99thPercentileMillis();
+
+    /**
+     * @return threads running tasks in the client's executor, or -1 if it is
+     *         not a {@link java.util.concurrent.ThreadPoolExecutor}
+     */
+    int getExecutorActiveThreads();
+
+    /**
+     * @return threads in the client's executor, or -1 if it is not a
+     *         {@link java.util.concurrent.ThreadPoolExecutor}
+     */
+    int getExecutorPoolSize();
+
+    /**
+     * @return tasks queued in the client's executor, or -1 if it is not a
+     *         {@link java.util.concurrent.ThreadPoolExecutor}
+     */
+    int getExecutorQueueSize();
+}
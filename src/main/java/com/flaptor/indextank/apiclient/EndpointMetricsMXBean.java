@@ -0,0 +1,60 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Map;
+
+/**
+ * JMX view of the requests an {@link IndexTankClient} made to one endpoint of
+ * one index. Latencies are in milliseconds, as seen by the caller: they
+ * include waiting for a connection permit and parsing the response.
+ *
+ * @author flaptor
+ */
+public interface EndpointMetricsMXBean {
+
+    String getMethod();
+
+    /**
+     * @return the endpoint, e.g. {@code search}, {@code docs} or
+     *         {@code indexes}
+     */
+    String getEndpoint();
+
+    /**
+     * @return the index name, or an empty string for endpoints that are not
+     *         about a single index
+     */
+    String getIndex();
+
+    long getRequests();
+
+    /**
+     * @return requests that got no response or one other than 200 or 201
+     */
+    long getErrors();
+
+    /**
+     * @return error counts by HTTP code, 0 being requests that got no response
+     */
+    Map<Integer, Long> getErrorsByCode();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    /**
+     * @return requests holding a connection right now
+     */
+    long getInFlight();
+
+    double getLatencyMeanMillis();
+
+    double getLatency50thPercentileMillis();
+
+    double getLatency90thPercentileMillis();
+
+    double getLatency99thPercentileMillis();
+
+    double getLatency999thPercentileMillis();
+
+    double getLatencyMaxMillis();
+}
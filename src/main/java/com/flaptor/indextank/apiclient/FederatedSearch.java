@@ -0,0 +1,201 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Scatters one query to several indexes and gathers a single, merged page of
+ * results.
+ * <p>
+ * Every index is asked for the first {@code start + length} hits, and the
+ * per-index lists are merged with a comparator, {@link #BY_RELEVANCE} by
+ * default. The merge keeps each index's own order, so the comparator only
+ * decides how hits from different indexes interleave. Matches and facet
+ * counts are summed, and the search time is the slowest index's.
+ *
+ * @see IndexTankClient#federatedSearch(List, Query, long, TimeUnit)
+ * @author flaptor
+ */
+public class FederatedSearch {
+
+    private static final int DEFAULT_LENGTH = 10;
+
+    /**
+     * Orders hits by decreasing {@code query_relevance_score}. Hits without a
+     * score go last.
+     */
+    public static final Comparator<Map<String, Object>> BY_RELEVANCE = new Comparator<Map<String, Object>>() {
+        @Override
+        public int compare(Map<String, Object> a, Map<String, Object> b) {
+            return Double.compare(score(b), score(a));
+        }
+
+        private double score(Map<String, Object> hit) {
+            Object score = hit.get("query_relevance_score");
+            return score instanceof Number ? ((Number) score).doubleValue()
+                    : Double.NEGATIVE_INFINITY;
+        }
+    };
+
+    /**
+     * Merged search results, plus the indexes that could not contribute.
+     */
+    public static class Results extends SearchResults {
+        /**
+         * indexes that did not answer before the deadline
+         */
+        public final List<Index> timedOut;
+
+        /**
+         * indexes whose search failed, with the error
+         */
+        public final Map<Index, Exception> failures;
+
+        Results(long matches, float searchTime,
+                List<Map<String, Object>> results,
+                Map<String, Map<String, Integer>> facets,
+                List<Index> timedOut, Map<Index, Exception> failures) {
+            super(matches, searchTime, results, facets);
+            this.timedOut = timedOut;
+            this.failures = failures;
+        }
+
+        /**
+         * @return <code>true</code> if every index contributed to the results
+         */
+        public boolean isComplete() {
+            return timedOut.isEmpty() && failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "\nTimed out: " + timedOut.size()
+                    + "\nFailed: " + failures.size();
+        }
+    }
+
+    private FederatedSearch() {
+    }
+
+    /**
+     * Searches every index concurrently on the given executor and merges the
+     * results of the ones that answer before the timeout.
+     */
+    public static Results execute(List<? extends Index> indexes, Query query,
+            long timeout, TimeUnit unit,
+            Comparator<Map<String, Object>> comparator, Executor executor) {
+        int start = query.start == null ? 0 : query.start;
+        int length = query.length == null ? DEFAULT_LENGTH : query.length;
+
+        Query perIndex = query.copy().withStart(0).withLength(start + length);
+        List<MultiSearch.Request> requests = new ArrayList<MultiSearch.Request>(
+                indexes.size());
+        for (Index index : indexes) {
+            requests.add(new MultiSearch.Request(index, perIndex));
+        }
+
+        List<SearchResults> answered = new ArrayList<SearchResults>();
+        List<Index> timedOut = new ArrayList<Index>();
+        Map<Index, Exception> failures = new LinkedHashMap<Index, Exception>();
+        for (MultiSearch.Response response : MultiSearch.execute(requests,
+                timeout, unit, executor)) {
+            if (response.isSuccess()) {
+                answered.add(response.results);
+            } else if (response.timedOut) {
+                timedOut.add(response.request.index);
+            } else {
+                failures.put(response.request.index, response.error);
+            }
+        }
+
+        return merge(answered, start, length, comparator, timedOut, failures);
+    }
+
+    static Results merge(List<SearchResults> answered, int start, int length,
+            Comparator<Map<String, Object>> comparator, List<Index> timedOut,
+            Map<Index, Exception> failures) {
+        long matches = 0;
+        float searchTime = 0;
+        Map<String, Map<String, Integer>> facets = new HashMap<String, Map<String, Integer>>();
+        List<List<Map<String, Object>>> lists = new ArrayList<List<Map<String, Object>>>();
+
+        for (SearchResults results : answered) {
+            matches += results.matches;
+            searchTime = Math.max(searchTime, results.searchTime);
+            if (results.results != null) {
+                lists.add(results.results);
+            }
+            if (results.facets != null) {
+                sumFacets(facets, results.facets);
+            }
+        }
+
+        List<Map<String, Object>> merged = mergeSorted(lists, start + length,
+                comparator);
+        List<Map<String, Object>> page = start >= merged.size() ? new ArrayList<Map<String, Object>>()
+                : new ArrayList<Map<String, Object>>(merged.subList(start,
+                        merged.size()));
+
+        return new Results(matches, searchTime, page, facets,
+                Collections.unmodifiableList(timedOut),
+                Collections.unmodifiableMap(failures));
+    }
+
+    /**
+     * K-way merge of already sorted lists, keeping at most {@code limit}
+     * elements. Picks the best head at each step, which is cheap for the
+     * handful of lists a federated search deals with.
+     */
+    private static List<Map<String, Object>> mergeSorted(
+            List<List<Map<String, Object>>> lists, int limit,
+            Comparator<Map<String, Object>> comparator) {
+        List<Map<String, Object>> merged = new ArrayList<Map<String, Object>>(
+                limit);
+        int[] positions = new int[lists.size()];
+        while (merged.size() < limit) {
+            int best = -1;
+            for (int i = 0; i < lists.size(); i++) {
+                if (positions[i] < lists.get(i).size()
+                        && (best == -1 || comparator.compare(
+                                lists.get(i).get(positions[i]),
+                                lists.get(best).get(positions[best])) < 0)) {
+                    best = i;
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            merged.add(lists.get(best).get(positions[best]++));
+        }
+        return merged;
+    }
+
+    private static void sumFacets(Map<String, Map<String, Integer>> total,
+            Map<String, Map<String, Integer>> facets) {
+        for (Entry<String, Map<String, Integer>> category : facets.entrySet()) {
+            Map<String, Integer> counts = total.get(category.getKey());
+            if (counts == null) {
+                counts = new HashMap<String, Integer>();
+                total.put(category.getKey(), counts);
+            }
+            for (Entry<String, ?> value : category.getValue().entrySet()) {
+                // the JSON parser produces Longs despite the declared type
+                int count = ((Number) value.getValue()).intValue();
+                Integer previous = counts.get(value.getKey());
+                counts.put(value.getKey(), previous == null ? count : previous
+                        + count);
+            }
+        }
+    }
+}
@@ -3,10 +3,16 @@ package com.flaptor.indextank.apiclient;
 import java.io.IOException;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 public interface Index {
 
+    /**
+     * @return the name this index is known by in the account
+     */
+    String getName();
+
     IndexTankClient.SearchResults search(String query) throws IOException,
             InvalidSyntaxException;
 
@@ -179,6 +185,28 @@ public interface Index {
      */
     boolean hasStarted() throws IOException, IndexDoesNotExistException;
 
+    /**
+     * Waits until this index has started. Concurrent waiters on the same index
+     * share the polling, which backs off exponentially.
+     * 
+     * @param timeout
+     *            how long to wait
+     * @return true if the index started, false if the timeout elapsed first
+     * @throws IndexDoesNotExistException
+     *             if the index doesn't exist or is deleted while waiting
+     * @throws IOException
+     */
+    boolean awaitStarted(long timeout, TimeUnit unit) throws IOException,
+            IndexDoesNotExistException;
+
+    /**
+     * Returns a future that completes once this index has started, without
+     * blocking the caller. Newly created indexes can take a while to start.
+     * 
+     * @return the pending start, shared by every caller
+     */
+    IndexStartup onStarted();
+
     String getCode() throws IOException, IndexDoesNotExistException;
 
     Date getCreationTime() throws IOException, IndexDoesNotExistException;
@@ -0,0 +1,94 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@link ApiClient} that resolves some index names to
+ * {@link AliasedIndex}es, and the rest to the indexes of the wrapped client.
+ * Code that looks indexes up by name through it follows the aliases without
+ * changes:
+ *
+ * <pre>
+ * IndexAliases aliases = new IndexAliases(client);
+ * aliases.alias("products", client.getIndex("products-v1"));
+ * Index products = aliases.getIndex("products");
+ * // later, after building products-v2
+ * aliases.getAlias("products").swap(client.getIndex("products-v2"));
+ * </pre>
+ *
+ * Aliases only exist in this client; other clients see the physical indexes.
+ * {@link #createIndex}, {@link #deleteIndex} and {@link #listIndexes} act on
+ * physical indexes.
+ *
+ * @author flaptor
+ */
+public class IndexAliases implements ApiClient {
+
+    private final ApiClient client;
+    private final ConcurrentMap<String, AliasedIndex> aliases = new ConcurrentHashMap<String, AliasedIndex>();
+
+    public IndexAliases(ApiClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Defines an alias, or points an existing one at another index.
+     *
+     * @return the alias
+     */
+    public AliasedIndex alias(String name, Index target) {
+        AliasedIndex alias = new AliasedIndex(name, target);
+        AliasedIndex existing = aliases.putIfAbsent(name, alias);
+        if (existing != null) {
+            existing.swap(target);
+            return existing;
+        }
+        return alias;
+    }
+
+    /**
+     * @return the alias with the given name, or null if there is none
+     */
+    public AliasedIndex getAlias(String name) {
+        return aliases.get(name);
+    }
+
+    /**
+     * Removes an alias. Handles already obtained keep following it.
+     *
+     * @return the removed alias, or null if there was none
+     */
+    public AliasedIndex removeAlias(String name) {
+        return aliases.remove(name);
+    }
+
+    /**
+     * @return the alias with the given name if there is one, otherwise the
+     *         index with that name
+     */
+    @Override
+    public Index getIndex(String indexName) {
+        AliasedIndex alias = aliases.get(indexName);
+        return alias != null ? alias : client.getIndex(indexName);
+    }
+
+    @Override
+    public Index createIndex(String indexName) throws IOException,
+            IndexAlreadyExistsException, MaximumIndexesExceededException {
+        return client.createIndex(indexName);
+    }
+
+    @Override
+    public void deleteIndex(String indexName) throws IOException,
+            IndexDoesNotExistException {
+        client.deleteIndex(indexName);
+    }
+
+    @Override
+    public List<? extends Index> listIndexes() throws IOException {
+        return client.listIndexes();
+    }
+}
@@ -0,0 +1,473 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONValue;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * Exports the documents of an index to a gzip-compressed snapshot file, and
+ * restores snapshots into an index.
+ * <p>
+ * The search API has no way to list every document, so the export runs the
+ * given partition queries, which together should match all of them: for
+ * instance a term of a field every document has, or one query per value of a
+ * category (see {@link #byCategory}). Each partition is scanned with a
+ * {@link ResultScanner} fetching all fields, variables and categories, and
+ * partitions are scanned in parallel. Hits are written to the file as they
+ * arrive, so memory use doesn't grow with the size of the index. A document
+ * matched by several partitions is written once per partition, which is
+ * harmless on restore since adding a docid again replaces it.
+ * <p>
+ * Each record is the document in the format of the add API
+ * ({@code docid}, {@code fields}, {@code variables}, {@code categories}),
+ * either as a line of JSON ({@link Format#NDJSON}) or as UTF-8 JSON bytes
+ * preceded by their length as a 4-byte integer ({@link Format#BINARY}).
+ * Fields named {@code variable_<n>}, {@code category_<name>} or
+ * {@code snippet_<name>} can't be told apart from the variables, categories
+ * and snippets of a hit, and don't survive an export.
+ * <p>
+ * The snapshot reflects the index as the scans saw it; documents added or
+ * deleted during the export may or may not be in it.
+ *
+ * <pre>
+ * IndexExporter exporter = new IndexExporter(index, client.getExecutor())
+ *         .withFormat(IndexExporter.Format.BINARY);
+ * exporter.export(new File("index.snapshot.gz"),
+ *         IndexExporter.byCategory("type:doc", "lang", languages));
+ * IndexExporter.restore(new File("index.snapshot.gz"),
+ *         IndexExporter.Format.BINARY, newIndex, 500, 4);
+ * </pre>
+ *
+ * @author flaptor
+ */
+public class IndexExporter {
+
+    public enum Format {
+        NDJSON, BINARY
+    }
+
+    /**
+     * What an export or restore did.
+     */
+    public static class Summary {
+        public final long documents;
+        /**
+         * documents the index rejected on restore; always 0 on export
+         */
+        public final long failed;
+        /**
+         * the size of the snapshot file
+         */
+        public final long bytes;
+        public final long elapsedMillis;
+
+        Summary(long documents, long failed, long bytes, long elapsedMillis) {
+            this.documents = documents;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return documents + " documents, " + failed + " failed, " + bytes
+                    + " bytes in " + elapsedMillis + "ms";
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_BYTES = 64 << 10;
+    private static final String VARIABLE_PREFIX = "variable_";
+    private static final String CATEGORY_PREFIX = "category_";
+    private static final String SNIPPET_PREFIX = "snippet_";
+
+    private final Index index;
+    private final Executor executor;
+    private int pageSize = 100;
+    private int prefetchDepth = 2;
+    private int parallelism = 4;
+    private Format format = Format.NDJSON;
+
+    /**
+     * @param executor
+     *            the executor pages are fetched on, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public IndexExporter(Index index, Executor executor) {
+        this.index = index;
+        this.executor = executor;
+    }
+
+    /**
+     * @return this exporter
+     */
+    public IndexExporter withPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Sets how many pages each partition requests ahead of the one being
+     * written. Defaults to 2.
+     *
+     * @return this exporter
+     */
+    public IndexExporter withPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+        return this;
+    }
+
+    /**
+     * Sets how many partitions are scanned at the same time. Defaults to 4.
+     *
+     * @return this exporter
+     */
+    public IndexExporter withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return this exporter
+     */
+    public IndexExporter withFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * @return one partition per category value: the query, restricted to
+     *         documents with that value of the category
+     */
+    public static List<Query> byCategory(String query, String category,
+            Collection<String> values) {
+        List<Query> partitions = new ArrayList<Query>(values.size());
+        for (String value : values) {
+            Map<String, List<String>> filter = new HashMap<String, List<String>>();
+            filter.put(category, Collections.singletonList(value));
+            partitions.add(Query.forString(query).withCategoryFilters(filter));
+        }
+        return partitions;
+    }
+
+    public Summary export(File file, Query... partitions) throws IOException,
+            IndexDoesNotExistException {
+        return export(file, Arrays.asList(partitions));
+    }
+
+    /**
+     * Exports the documents matching the partitions. The snapshot is written
+     * next to the file and moved in place once complete, so a failed export
+     * leaves the file as it was.
+     */
+    public Summary export(File file, List<Query> partitions)
+            throws IOException, IndexDoesNotExistException {
+        long started = System.nanoTime();
+        File temporary = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(
+                        new FileOutputStream(temporary), BUFFER_BYTES)));
+        final ReentrantLock outLock = new ReentrantLock();
+        final AtomicLong documents = new AtomicLong();
+        ExecutorService scanners = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(parallelism, partitions.size())));
+        boolean complete = false;
+        try {
+            CompletionService<Void> tasks = new ExecutorCompletionService<Void>(
+                    scanners);
+            for (final Query partition : partitions) {
+                tasks.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        scan(partition, out, outLock, documents);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < partitions.size(); i++) {
+                await(tasks);
+            }
+            out.close();
+            Files.move(temporary.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            complete = true;
+            return new Summary(documents.get(), 0, file.length(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } finally {
+            scanners.shutdownNow();
+            if (!complete) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // the export already failed
+                }
+                temporary.delete();
+            }
+        }
+    }
+
+    private void scan(Query partition, DataOutputStream out,
+            ReentrantLock outLock, AtomicLong documents) throws IOException {
+        Query query = partition.copy().withFetchFields("*")
+                .withFetchVariables().withFetchCategories();
+        ResultScanner scanner = new ResultScanner(index, query, pageSize,
+                prefetchDepth, executor);
+        try {
+            while (scanner.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                byte[] record = JSONValue.toJSONString(
+                        toDocumentMap(scanner.next())).getBytes(UTF_8);
+                outLock.lock();
+                try {
+                    if (format == Format.BINARY) {
+                        out.writeInt(record.length);
+                        out.write(record);
+                    } else {
+                        out.write(record);
+                        out.write('\n');
+                    }
+                } finally {
+                    outLock.unlock();
+                }
+                documents.incrementAndGet();
+            }
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * Rebuilds a document, in the format of the add API, from a hit fetching
+     * all its fields, variables and categories.
+     */
+    static Map<String, Object> toDocumentMap(Map<String, Object> hit) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        Map<String, Object> variables = new LinkedHashMap<String, Object>();
+        Map<String, Object> categories = new LinkedHashMap<String, Object>();
+        for (Entry<String, Object> entry : hit.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (key.equals("docid") || key.equals("query_relevance_score")
+                    || key.startsWith(SNIPPET_PREFIX)) {
+                continue;
+            } else if (key.startsWith(VARIABLE_PREFIX)) {
+                variables.put(key.substring(VARIABLE_PREFIX.length()),
+                        value instanceof Number ? value : Float.valueOf(String
+                                .valueOf(value)));
+            } else if (key.startsWith(CATEGORY_PREFIX)) {
+                categories.put(key.substring(CATEGORY_PREFIX.length()),
+                        String.valueOf(value));
+            } else {
+                fields.put(key, String.valueOf(value));
+            }
+        }
+        Map<String, Object> document = new LinkedHashMap<String, Object>();
+        document.put("docid", hit.get("docid"));
+        document.put("fields", fields);
+        if (!variables.isEmpty()) {
+            document.put("variables", variables);
+        }
+        if (!categories.isEmpty()) {
+            document.put("categories", categories);
+        }
+        return document;
+    }
+
+    /**
+     * Adds the documents of a snapshot to an index, sending up to
+     * {@code parallelism} batches at a time. Batches failing with an
+     * {@link IOException} or a 5xx response are retried with backoff, and
+     * fail the restore if they keep failing; documents rejected by the index,
+     * or by a 4xx response, are counted as failed.
+     */
+    public static Summary restore(File file, Format format, Index target,
+            int batchSize, int parallelism) throws IOException,
+            IndexDoesNotExistException {
+        long started = System.nanoTime();
+        final Index index = target;
+        final AtomicLong added = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        ExecutorService senders = Executors.newFixedThreadPool(parallelism);
+        CompletionService<Void> tasks = new ExecutorCompletionService<Void>(
+                senders);
+        int pending = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), BUFFER_BYTES)));
+        BufferedReader lines = format == Format.NDJSON ? new BufferedReader(
+                new InputStreamReader(in, UTF_8)) : null;
+        try {
+            List<Document> batch = new ArrayList<Document>(batchSize);
+            Document document;
+            while (true) {
+                document = format == Format.NDJSON ? readLine(lines)
+                        : readRecord(in);
+                if (document != null) {
+                    batch.add(document);
+                }
+                if (batch.size() == batchSize
+                        || (document == null && !batch.isEmpty())) {
+                    // at most parallelism batches are held in memory
+                    if (pending == parallelism) {
+                        await(tasks);
+                        pending--;
+                    }
+                    final List<Document> sent = batch;
+                    tasks.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            send(index, sent, added, failed);
+                            return null;
+                        }
+                    });
+                    pending++;
+                    batch = new ArrayList<Document>(batchSize);
+                }
+                if (document == null) {
+                    break;
+                }
+            }
+            for (; pending > 0; pending--) {
+                await(tasks);
+            }
+            return new Summary(added.get(), failed.get(), file.length(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } finally {
+            senders.shutdownNow();
+            in.close();
+        }
+    }
+
+    private static void send(Index index, List<Document> batch,
+            AtomicLong added, AtomicLong failed) throws IOException,
+            IndexDoesNotExistException, InterruptedException {
+        BatchResults results;
+        try {
+            results = BulkImporter.addDocuments(index, batch);
+        } catch (UnexpectedCodeException e) {
+            if (e.httpCode >= 500) {
+                throw e;
+            }
+            failed.addAndGet(batch.size());
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (results.getResult(i)) {
+                added.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private static Document readLine(BufferedReader lines) throws IOException {
+        String line;
+        do {
+            line = lines.readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.trim().isEmpty());
+        return toDocument(line);
+    }
+
+    private static Document readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0) {
+            throw new IOException("Corrupt snapshot: record length " + length);
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        return toDocument(new String(record, UTF_8));
+    }
+
+    private static Document toDocument(String json) throws IOException {
+        Object parsed = JSONValue.parse(json);
+        if (!(parsed instanceof Map)) {
+            throw new IOException("Corrupt snapshot: not a JSON object");
+        }
+        try {
+            return Document.fromDocumentMap((Map<String, ?>) parsed);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the next task, rethrowing its failure.
+     */
+    static void await(CompletionService<Void> tasks)
+            throws IOException, IndexDoesNotExistException {
+        try {
+            tasks.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // ResultScanner wraps the checked exceptions of searches
+            if (cause.getClass() == RuntimeException.class
+                    && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw new InterruptedIOException("Interrupted");
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending start of an index, as returned by {@link Index#onStarted()}. It
+ * completes with the index once it has started, or fails if the index stops
+ * existing while waiting.
+ * <p>
+ * The same instance is shared by everyone waiting for a given index, so it
+ * cannot be cancelled. It fails if the index takes too long to start, or if
+ * nobody waits for it for a while; {@link Index#onStarted()} then starts
+ * polling again. Listeners added with
+ * {@link #addListener(Runnable, Executor)} run once it completes or fails.
+ *
+ * @author flaptor
+ */
+public class IndexStartup implements Future<Index> {
+
+    private static class Listener {
+        final Runnable runnable;
+        final Executor executor;
+
+        Listener(Runnable runnable, Executor executor) {
+            this.runnable = runnable;
+            this.executor = executor;
+        }
+
+        void run() {
+            executor.execute(runnable);
+        }
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completing = new AtomicBoolean();
+    private final Queue<Listener> listeners = new ConcurrentLinkedQueue<Listener>();
+    private final long createdNanos = System.nanoTime();
+    // callers blocked in get() plus listeners not run yet
+    private final AtomicInteger waiters = new AtomicInteger();
+    private volatile long lastWaitedNanos = createdNanos;
+    private volatile Index index;
+    private volatile Throwable failure;
+
+    IndexStartup() {
+    }
+
+    /**
+     * Runs the given listener on the given executor once this completes or
+     * fails; right away if it already did.
+     */
+    public void addListener(Runnable listener, Executor executor) {
+        waiters.incrementAndGet();
+        listeners.offer(new Listener(listener, executor));
+        if (isDone()) {
+            runListeners();
+        }
+    }
+
+    boolean complete(Index index) {
+        if (!completing.compareAndSet(false, true)) {
+            return false;
+        }
+        this.index = index;
+        done.countDown();
+        runListeners();
+        return true;
+    }
+
+    boolean fail(Throwable failure) {
+        if (!completing.compareAndSet(false, true)) {
+            return false;
+        }
+        this.failure = failure;
+        done.countDown();
+        runListeners();
+        return true;
+    }
+
+    boolean hasFailed() {
+        return isDone() && failure != null;
+    }
+
+    /**
+     * @return whether nobody has waited for this in the given time: no
+     *         pending listeners, and no {@code get} call for that long
+     */
+    boolean isAbandoned(long idleNanos) {
+        return waiters.get() == 0
+                && System.nanoTime() - lastWaitedNanos > idleNanos;
+    }
+
+    long getAgeNanos() {
+        return System.nanoTime() - createdNanos;
+    }
+
+    private void runListeners() {
+        Listener listener;
+        while ((listener = listeners.poll()) != null) {
+            waiters.decrementAndGet();
+            listener.run();
+        }
+    }
+
+    /**
+     * Always fails: the startup is shared, it cannot be cancelled on behalf
+     * of a single waiter.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Index get() throws InterruptedException, ExecutionException {
+        waiters.incrementAndGet();
+        try {
+            done.await();
+        } finally {
+            waited();
+        }
+        return result();
+    }
+
+    @Override
+    public Index get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        waiters.incrementAndGet();
+        try {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+        } finally {
+            waited();
+        }
+        return result();
+    }
+
+    private void waited() {
+        lastWaitedNanos = System.nanoTime();
+        waiters.decrementAndGet();
+    }
+
+    /**
+     * Waits for the index to start, translating failures into the exceptions
+     * thrown by {@link Index#awaitStarted(long, TimeUnit)}.
+     */
+    boolean await(long timeout, TimeUnit unit) throws IOException,
+            IndexDoesNotExistException {
+        try {
+            get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for the index to start");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private Index result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return index;
+    }
+}
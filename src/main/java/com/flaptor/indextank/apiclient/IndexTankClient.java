@@ -1,13 +1,16 @@
 package com.flaptor.indextank.apiclient;
 
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -18,11 +21,29 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -71,6 +92,32 @@ public class IndexTankClient implements ApiClient {
             this.hasErrors = hasErrors;
         }
 
+        /**
+         * Builds the results of a batch from the response to it, one
+         * {@code added} / {@code error} map per document.
+         */
+        static BatchResults fromResponse(List<Map<String, Object>> response,
+                List<Document> documents) {
+            List<Boolean> addeds = new ArrayList<Boolean>(response.size());
+            List<String> errors = new ArrayList<String>(response.size());
+            boolean hasErrors = false;
+
+            for (Map<String, Object> result : response) {
+                Boolean added = (Boolean) result.get("added");
+
+                addeds.add(added);
+
+                if (!added) {
+                    hasErrors = true;
+                    errors.add((String) result.get("error"));
+                } else {
+                    errors.add(null);
+                }
+            }
+
+            return new BatchResults(addeds, errors, documents, hasErrors);
+        }
+
         public boolean getResult(int position) {
             if (position >= results.size()) {
                 throw new IllegalArgumentException("Position off bounds ("
@@ -195,6 +242,10 @@ public class IndexTankClient implements ApiClient {
          */
         private Map<String, String> categories;
 
+        public String getId() {
+            return id;
+        }
+
         public Map<String, Object> toDocumentMap() {
             Map<String, Object> documentMap = new HashMap<String, Object>();
             documentMap.put("docid", id);
@@ -227,6 +278,59 @@ public class IndexTankClient implements ApiClient {
             this.categories = categories;
         }
 
+        /**
+         * Builds a document from the map {@link #toDocumentMap()} returns, as
+         * parsed back from JSON: variable ids may be strings and values any
+         * number.
+         * 
+         * @throws IllegalArgumentException
+         *             if the map is not a valid document
+         */
+        @SuppressWarnings("unchecked")
+        public static Document fromDocumentMap(Map<String, ?> documentMap) {
+            Object docid = documentMap.get("docid");
+            if (!(docid instanceof String)) {
+                throw new IllegalArgumentException("Invalid docid");
+            }
+            Object fields = documentMap.get("fields");
+            Object categories = documentMap.get("categories");
+            if (!(fields instanceof Map)
+                    || (categories != null && !(categories instanceof Map))) {
+                throw new IllegalArgumentException("Invalid document "
+                        + docid);
+            }
+            return new Document((String) docid, (Map<String, String>) fields,
+                    variablesFromJson(documentMap.get("variables")),
+                    (Map<String, String>) categories);
+        }
+
+        /**
+         * JSON object keys are strings; variables are keyed by number.
+         */
+        static Map<Integer, Float> variablesFromJson(Object json) {
+            if (json == null) {
+                return null;
+            }
+            if (!(json instanceof Map)) {
+                throw new IllegalArgumentException("Invalid variables");
+            }
+            Map<Integer, Float> variables = new HashMap<Integer, Float>();
+            for (Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+                try {
+                    variables.put(Integer.valueOf(String.valueOf(entry
+                            .getKey())), ((Number) entry.getValue())
+                            .floatValue());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid variable "
+                            + entry.getKey());
+                } catch (ClassCastException e) {
+                    throw new IllegalArgumentException("Invalid variable "
+                            + entry.getKey());
+                }
+            }
+            return variables;
+        }
+
     }
 
     /**
@@ -248,6 +352,15 @@ public class IndexTankClient implements ApiClient {
             facets = (Map<String, Map<String, Integer>>) response.get("facets");
         }
 
+        public SearchResults(long matches, float searchTime,
+                List<Map<String, Object>> results,
+                Map<String, Map<String, Integer>> facets) {
+            this.matches = matches;
+            this.searchTime = searchTime;
+            this.results = results;
+            this.facets = facets;
+        }
+
         @Override
         public String toString() {
             return "Matches: " + matches + "\nSearch Time: " + searchTime
@@ -294,6 +407,8 @@ public class IndexTankClient implements ApiClient {
         protected List<Range> functionFilters;
         protected List<Range> documentVariableFilters;
         protected Map<Integer, Float> queryVariables;
+        protected boolean fetchVariables;
+        protected boolean fetchCategories;
         protected String queryString;
     
         public static Query forString(String query) {
@@ -303,6 +418,35 @@ public class IndexTankClient implements ApiClient {
         protected Query(String query) {
             this.queryString = query;
         }
+
+        /**
+         * @return an independent copy of this query, which can be modified
+         *         (paginated, for instance) without affecting this one
+         */
+        Query copy() {
+            Query copy = new Query(queryString);
+            copy.start = start;
+            copy.length = length;
+            copy.scoringFunction = scoringFunction;
+            if (snippetFields != null)
+                copy.snippetFields = new ArrayList<String>(snippetFields);
+            if (fetchFields != null)
+                copy.fetchFields = new ArrayList<String>(fetchFields);
+            if (categoryFilters != null)
+                copy.categoryFilters = new HashMap<String, List<String>>(
+                        categoryFilters);
+            if (functionFilters != null)
+                copy.functionFilters = new ArrayList<Range>(functionFilters);
+            if (documentVariableFilters != null)
+                copy.documentVariableFilters = new ArrayList<Range>(
+                        documentVariableFilters);
+            if (queryVariables != null)
+                copy.queryVariables = new HashMap<Integer, Float>(
+                        queryVariables);
+            copy.fetchVariables = fetchVariables;
+            copy.fetchCategories = fetchCategories;
+            return copy;
+        }
     
         public Query withStart(Integer start) {
             this.start = start;
@@ -355,6 +499,24 @@ public class IndexTankClient implements ApiClient {
             return withFetchFields(Arrays.asList(fetchFields));
         }
     
+        /**
+         * Returns the document variables of each hit, as
+         * {@code variable_<n>}. Needed to re-rank hits locally with a
+         * {@link ScoringFunction}.
+         */
+        public Query withFetchVariables() {
+            this.fetchVariables = true;
+            return this;
+        }
+
+        /**
+         * Returns the categories of each hit, as {@code category_<name>}.
+         */
+        public Query withFetchCategories() {
+            this.fetchCategories = true;
+            return this;
+        }
+
         public Query withDocumentVariableFilter(int variableIndex, double floor,
                 double ceil) {
             if (documentVariableFilters == null) {
@@ -435,6 +597,10 @@ public class IndexTankClient implements ApiClient {
                 params.put("snippet", join(snippetFields, ","));
             if (fetchFields != null)
                 params.put("fetch", join(fetchFields, ","));
+            if (fetchVariables)
+                params.put("fetch_variables", "true");
+            if (fetchCategories)
+                params.put("fetch_categories", "true");
             if (categoryFilters != null)
                 params.put("category_filters",
                         JSONObject.toJSONString(categoryFilters));
@@ -503,6 +669,15 @@ public class IndexTankClient implements ApiClient {
     private static final String PUT_METHOD = "PUT";
     private static final String DELETE_METHOD = "DELETE";
 
+    private static final long START_POLL_INITIAL_MILLIS = 250;
+    private static final long START_POLL_MAX_MILLIS = 10000;
+    // polling for a start stops once nobody waited on it for this long, or
+    // after the timeout
+    private static final long START_POLL_IDLE_NANOS = TimeUnit.MINUTES
+            .toNanos(1);
+    private static final long START_POLL_TIMEOUT_NANOS = TimeUnit.MINUTES
+            .toNanos(30);
+
     private static final String SEARCH_URL = "/search";
     private static final String DOCS_URL = "/docs";
     private static final String CATEGORIES_URL = "/docs/categories";
@@ -510,42 +685,121 @@ public class IndexTankClient implements ApiClient {
     private static final String PROMOTE_URL = "/promote";
     private static final String FUNCTIONS_URL = "/functions";
 
-    private static final DateFormat ISO8601_PARSER = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ssz");
+    /**
+     * SimpleDateFormat is not thread-safe, and creation times are parsed
+     * rarely: a new one per call is cheaper than one per thread, which with
+     * virtual threads means one per request.
+     */
+    private static DateFormat iso8601Parser() {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssz");
+    }
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             Map<String, String> params, String privatePass) throws IOException,
             HttpCodeException {
         return callAPI(method, urlString, params, (String) null, privatePass);
     }
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             String privatePass) throws IOException, HttpCodeException {
         return callAPI(method, urlString, null, (String) null, privatePass);
     }
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             Map<String, String> params, Map<String, Object> data,
             String privatePass) throws IOException, HttpCodeException {
         return callAPI(method, urlString, params, data == null ? null
                 : JSONObject.toJSONString(data), privatePass);
     }
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             Map<String, String> params, List<Map<String, Object>> data,
             String privatePass) throws IOException, HttpCodeException {
         return callAPI(method, urlString, params, data == null ? null
                 : JSONArray.toJSONString(data), privatePass);
     }
 
-    private static Object callAPI(String method, String urlString,
+    private Object callAPI(String method, String urlString,
             Map<String, String> params, String data, String privatePass)
             throws IOException, HttpCodeException {
+        ClientMetrics.Endpoint endpoint = metrics.endpoint(method, urlString);
+        RequestEvent event = new RequestEvent(method, urlString, params,
+                endpoint.getEndpoint(), endpoint.getIndex());
+        fireRequestStarted(event);
+        try {
+            Semaphore permits = connectionPermits;
+            if (permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for a connection");
+                }
+                event.connectionWaitNanos = System.nanoTime()
+                        - event.getStartNanos();
+                metrics.connectionWaited(event.connectionWaitNanos);
+            }
+
+            endpoint.sending();
+            try {
+                return doCallAPI(method, urlString, params, data, privatePass,
+                        event);
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+                event.totalNanos = System.nanoTime() - event.getStartNanos();
+                endpoint.completed(event);
+            }
+        } catch (IOException e) {
+            event.failure = e;
+            throw e;
+        } catch (HttpCodeException e) {
+            event.failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            event.failure = e;
+            throw e;
+        } finally {
+            if (event.totalNanos == 0) {
+                event.totalNanos = System.nanoTime() - event.getStartNanos();
+            }
+            fireRequestCompleted(event);
+        }
+    }
+
+    private void fireRequestStarted(RequestEvent event) {
+        for (RequestListener listener : listeners) {
+            try {
+                listener.requestStarted(event);
+            } catch (RuntimeException e) {
+                // a listener must not fail the request
+            }
+        }
+    }
+
+    private void fireRequestCompleted(RequestEvent event) {
+        for (RequestListener listener : listeners) {
+            try {
+                listener.requestCompleted(event);
+            } catch (RuntimeException e) {
+                // a listener must not fail the request
+            }
+        }
+    }
+
+    private static Object doCallAPI(String method, String urlString,
+            Map<String, String> params, String data, String privatePass,
+            RequestEvent event) throws IOException, HttpCodeException {
 
         if (params != null && !params.isEmpty()) {
             urlString += "?" + paramsToQueryString(params);
         }
         URL url = new URL(urlString);
+        byte[] body = method.equals(PUT_METHOD) && data != null ? data
+                .getBytes("UTF-8") : null;
+        long mark = System.nanoTime();
 
         HttpURLConnection urlConnection = (HttpURLConnection) url
                 .openConnection();
@@ -557,61 +811,144 @@ public class IndexTankClient implements ApiClient {
         urlConnection.setRequestProperty("Authorization",
                 "Basic " + Base64.encodeBytes(privatePass.getBytes()));
         urlConnection.setRequestMethod(method);
+        if (body != null) {
+            // stream the body on write, instead of buffering it until the
+            // response is requested, so the write phase times the upload
+            urlConnection.setFixedLengthStreamingMode(body.length);
+        }
+        urlConnection.connect();
+        long now = System.nanoTime();
+        event.connectNanos = now - mark;
+        mark = now;
 
-        if (method.equals(PUT_METHOD) && data != null) {
+        if (body != null) {
             // write
-            OutputStreamWriter out = new OutputStreamWriter(
-                    urlConnection.getOutputStream(), "UTF-8");
-            out.write(data);
+            OutputStream out = urlConnection.getOutputStream();
+            out.write(body);
             out.close();
+            event.requestBytes = body.length;
+            now = System.nanoTime();
+            event.writeNanos = now - mark;
+            mark = now;
         }
 
-        BufferedReader in;
         int responseCode = urlConnection.getResponseCode();
-        StringBuffer response = new StringBuffer();
+        now = System.nanoTime();
+        event.firstByteNanos = now - mark;
+        mark = now;
+        event.status = responseCode;
 
         if (responseCode >= 400) {
             InputStream errorStream = urlConnection.getErrorStream();
+            String response = errorStream == null ? "" : readFully(
+                    errorStream, event);
+            event.readNanos = System.nanoTime() - mark;
 
-            if (errorStream != null) {
-                in = new BufferedReader(new InputStreamReader(errorStream));
-                String line;
-                while ((line = in.readLine()) != null) {
-                    response.append(line);
-                }
-            }
-
-            throw new HttpCodeException(responseCode, response.toString());
+            throw new HttpCodeException(responseCode, response);
         }
 
-        in = new BufferedReader(new InputStreamReader(
-                urlConnection.getInputStream()));
-
-        String line;
-        while ((line = in.readLine()) != null) {
-            response.append(line);
-        }
+        String jsonResponse = readFully(urlConnection.getInputStream(),
+                event);
+        now = System.nanoTime();
+        event.readNanos = now - mark;
+        mark = now;
 
         if (responseCode != 200 && responseCode != 201) {
-            throw new HttpCodeException(responseCode, response.toString());
+            throw new HttpCodeException(responseCode, jsonResponse);
         }
 
-        in.close();
-
-        String jsonResponse = response.toString();
         if (!jsonResponse.isEmpty()) {
             JSONParser parser = new JSONParser();
+            Object response;
             try {
-                return parser.parse(jsonResponse);
+                response = parser.parse(jsonResponse);
             } catch (org.json.simple.parser.ParseException e) {
                 throw new RuntimeException(e);
             }
+            event.parseNanos = System.nanoTime() - mark;
+            describeResponse(response, event);
+            return response;
         } else {
             return null;
         }
     }
 
-    private static String paramsToQueryString(Map<String, String> params) {
+    /**
+     * Fills in the result count and server time of a search or batch
+     * response.
+     */
+    private static void describeResponse(Object response, RequestEvent event) {
+        if (response instanceof List) {
+            event.resultCount = ((List<?>) response).size();
+        } else if (response instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) response;
+            Object results = map.get("results");
+            if (results instanceof List) {
+                event.resultCount = ((List<?>) results).size();
+            }
+            Object searchTime = map.get("search_time");
+            if (searchTime instanceof String) {
+                try {
+                    event.serverSearchTimeNanos = (long) (Double
+                            .parseDouble((String) searchTime) * 1e9);
+                } catch (NumberFormatException e) {
+                    // leave it unknown
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the whole stream and closes it, so the underlying connection can
+     * go back to the keep-alive cache. Uses an unsynchronized builder since
+     * this runs once per request, possibly on virtual threads.
+     */
+    private static String readFully(InputStream stream, RequestEvent event)
+            throws IOException {
+        CountingInputStream counting = new CountingInputStream(stream);
+        Reader in = new InputStreamReader(counting, "UTF-8");
+        try {
+            StringBuilder response = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.append(buffer, 0, read);
+            }
+            return response.toString();
+        } finally {
+            in.close();
+            event.responseBytes = counting.count;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    static String paramsToQueryString(Map<String, String> params) {
         StringBuilder sb = new StringBuilder();
         for (Entry<String, String> entry : params.entrySet()) {
             try {
@@ -633,16 +970,20 @@ public class IndexTankClient implements ApiClient {
      * 
      */
     public class Index implements com.flaptor.indextank.apiclient.Index {
+        private final String name;
         private final String indexUrl;
-        private Map<String, Object> metadata;
+        private final AtomicReference<CachedMetadata> cachedMetadata = new AtomicReference<CachedMetadata>();
+        private final AtomicReference<FutureTask<CachedMetadata>> metadataFetch = new AtomicReference<FutureTask<CachedMetadata>>();
+        private final AtomicReference<IndexStartup> startup = new AtomicReference<IndexStartup>();
 
-        private Index(String indexUrl) {
-            this.indexUrl = indexUrl;
+        private Index(String name) {
+            this.name = name;
+            this.indexUrl = getIndexUrl(name);
         }
 
-        private Index(String indexUrl, Map<String, Object> metadata) {
-            this.indexUrl = indexUrl;
-            this.metadata = metadata;
+        @Override
+        public String getName() {
+            return name;
         }
 
         @Override
@@ -673,6 +1014,8 @@ public class IndexTankClient implements ApiClient {
                 MaximumIndexesExceededException {
             try {
                 callAPI(PUT_METHOD, indexUrl, privatePass);
+                cachedMetadata.set(null);
+                startup.set(null);
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 204) {
                     throw new IndexAlreadyExistsException(e);
@@ -688,8 +1031,14 @@ public class IndexTankClient implements ApiClient {
         public void delete() throws IOException, IndexDoesNotExistException {
             try {
                 callAPI(DELETE_METHOD, indexUrl, privatePass);
+                cachedMetadata.set(null);
+                startup.set(null);
+                metrics.indexDeleted(name);
+                indexes.remove(name, this);
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 404) {
+                    metrics.indexDeleted(name);
+                    indexes.remove(name, this);
                     throw new IndexDoesNotExistException(e);
                 } else {
                     throw new UnexpectedCodeException(e);
@@ -712,30 +1061,13 @@ public class IndexTankClient implements ApiClient {
                         PUT_METHOD, indexUrl + DOCS_URL, null, data,
                         privatePass);
 
-                List<Boolean> addeds = new ArrayList<Boolean>();
-                List<String> errors = new ArrayList<String>();
-                boolean hasErrors = false;
-
-                for (int i = 0; i < results.size(); i++) {
-                    Map<String, Object> result = results.get(i);
-                    Boolean added = (Boolean) result.get("added");
-
-                    addeds.add(i, added);
-
-                    if (!added) {
-                        hasErrors = true;
-                        errors.add(i, (String) result.get("error"));
-                    }
-                }
-
                 ArrayList<Document> documentsList = new ArrayList<Document>();
 
                 for (Document document : documents) {
                     documentsList.add(document);
                 }
 
-                return new BatchResults(addeds, errors, documentsList,
-                        hasErrors);
+                return BatchResults.fromResponse(results, documentsList);
 
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 400) {
@@ -886,6 +1218,9 @@ public class IndexTankClient implements ApiClient {
         public void addFunction(Integer functionIndex, String definition)
                 throws IOException, IndexDoesNotExistException,
                 InvalidSyntaxException {
+            if (validateFunctions) {
+                ScoringFunction.compile(definition);
+            }
             Map<String, Object> data = new HashMap<String, Object>();
             data.put("definition", definition);
 
@@ -942,6 +1277,11 @@ public class IndexTankClient implements ApiClient {
 
         @Override
         public boolean exists() throws IOException {
+            CachedMetadata cached = cachedMetadata.get();
+            if (metadataTtlNanos > 0 && cached != null
+                    && cached.isFresh(metadataTtlNanos)) {
+                return cached.missing == null;
+            }
             try {
                 refreshMetadata();
                 return true;
@@ -953,9 +1293,150 @@ public class IndexTankClient implements ApiClient {
         @Override
         public boolean hasStarted() throws IOException,
                 IndexDoesNotExistException {
-            refreshMetadata();
+            CachedMetadata cached = cachedMetadata.get();
+            if (metadataTtlNanos == 0 || cached == null
+                    || !cached.isFresh(metadataTtlNanos)) {
+                cached = fetchMetadata();
+            }
 
-            return (Boolean) getMetadata().get("started");
+            return (Boolean) cached.get().get("started");
+        }
+
+        @Override
+        public boolean awaitStarted(long timeout, TimeUnit unit)
+                throws IOException, IndexDoesNotExistException {
+            CachedMetadata cached = cachedMetadata.get();
+            if (cached != null && cached.missing == null
+                    && Boolean.TRUE.equals(cached.metadata.get("started"))) {
+                return true;
+            }
+            return onStarted().await(timeout, unit);
+        }
+
+        @Override
+        public IndexStartup onStarted() {
+            while (true) {
+                IndexStartup current = startup.get();
+                if (current != null && !current.hasFailed()) {
+                    return current;
+                }
+                IndexStartup created = new IndexStartup();
+                if (startup.compareAndSet(current, created)) {
+                    pollStarted(created, 0);
+                    return created;
+                }
+            }
+        }
+
+        /**
+         * Like {@link #onStarted()}, but once the index has started it also
+         * installs the given functions and opens the given number of
+         * connections to it, so the first real requests don't pay for it.
+         * The returned future completes after that.
+         * 
+         * @param functions
+         *            functions to install, by function index
+         * @param warmConnections
+         *            number of concurrent requests to make once started
+         */
+        public IndexStartup onStarted(final Map<Integer, String> functions,
+                final int warmConnections) {
+            final IndexStartup started = onStarted();
+            final IndexStartup ready = new IndexStartup();
+            started.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.get();
+                        for (Entry<Integer, String> function : functions
+                                .entrySet()) {
+                            addFunction(function.getKey(), function.getValue());
+                        }
+                        warmUp(warmConnections);
+                        ready.complete(Index.this);
+                    } catch (ExecutionException e) {
+                        ready.fail(e.getCause());
+                    } catch (Exception e) {
+                        ready.fail(e);
+                    }
+                }
+            }, getExecutor());
+            return ready;
+        }
+
+        /**
+         * Times the polls on the scheduler thread and makes each request on
+         * the executor, so polls for many indexes don't queue behind each
+         * other, or behind a slow metadata refresh.
+         */
+        private void pollStarted(final IndexStartup pending, final int attempt) {
+            final Runnable poll = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        CachedMetadata fetched = fetchMetadata();
+                        if (Boolean.TRUE.equals(fetched.get().get("started"))) {
+                            pending.complete(Index.this);
+                            return;
+                        }
+                    } catch (IndexDoesNotExistException e) {
+                        pending.fail(e);
+                        return;
+                    } catch (IOException e) {
+                        // transient, keep polling
+                    } catch (UnexpectedCodeException e) {
+                        // 503 until the index is up, keep polling
+                    } catch (RuntimeException e) {
+                        pending.fail(e);
+                        return;
+                    }
+                    if (pending.isAbandoned(START_POLL_IDLE_NANOS)) {
+                        pending.fail(new IOException("Nobody is waiting for "
+                                + name + " to start anymore"));
+                    } else if (pending.getAgeNanos() > START_POLL_TIMEOUT_NANOS) {
+                        pending.fail(new SocketTimeoutException(name
+                                + " did not start in "
+                                + TimeUnit.NANOSECONDS
+                                        .toMinutes(START_POLL_TIMEOUT_NANOS)
+                                + " minutes"));
+                    } else {
+                        pollStarted(pending, attempt + 1);
+                    }
+                }
+            };
+            getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getExecutor().execute(poll);
+                    } catch (RejectedExecutionException e) {
+                        pending.fail(e);
+                    }
+                }
+            }, startPollDelayMillis(attempt), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Makes the given number of concurrent metadata requests, leaving as
+         * many connections in the keep-alive cache.
+         */
+        private void warmUp(int connections) throws Exception {
+            List<FutureTask<Object>> requests = new ArrayList<FutureTask<Object>>();
+            for (int i = 0; i < connections; i++) {
+                FutureTask<Object> request = new FutureTask<Object>(
+                        new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                return callAPI(GET_METHOD, indexUrl,
+                                        privatePass);
+                            }
+                        });
+                requests.add(request);
+                getExecutor().execute(request);
+            }
+            for (FutureTask<Object> request : requests) {
+                request.get();
+            }
         }
 
         @Override
@@ -967,7 +1448,7 @@ public class IndexTankClient implements ApiClient {
         public Date getCreationTime() throws IOException,
                 IndexDoesNotExistException {
             try {
-                return ISO8601_PARSER.parse((String) getMetadata().get(
+                return iso8601Parser().parse((String) getMetadata().get(
                         "creation_time"));
             } catch (ParseException e) {
                 return null;
@@ -977,31 +1458,167 @@ public class IndexTankClient implements ApiClient {
         @Override
         public void refreshMetadata() throws IOException,
                 IndexDoesNotExistException {
+            fetchMetadata().get();
+        }
+
+        /**
+         * Returns the cached metadata. Once it is older than the client's
+         * metadata TTL it is fetched again; when it gets close to that age a
+         * refresh is started in the background, so that steady readers never
+         * wait for it. With no TTL set, metadata is fetched once and only
+         * updated by {@link #refreshMetadata()}.
+         */
+        @Override
+        public Map<String, Object> getMetadata() throws IOException,
+                IndexDoesNotExistException {
+            CachedMetadata cached = cachedMetadata.get();
+            if (cached == null || !cached.isFresh(metadataTtlNanos)) {
+                cached = fetchMetadata();
+            } else if (cached.isAging(metadataTtlNanos)) {
+                refreshInBackground();
+            }
+
+            return cached.get();
+        }
+
+        /**
+         * Fetches the metadata, unless another thread is already doing it, in
+         * which case its result is shared.
+         */
+        private CachedMetadata fetchMetadata() throws IOException {
+            FutureTask<CachedMetadata> task = null;
+            while (true) {
+                FutureTask<CachedMetadata> current = metadataFetch.get();
+                if (current != null) {
+                    return awaitMetadata(current);
+                }
+                if (task == null) {
+                    task = new FutureTask<CachedMetadata>(
+                            new Callable<CachedMetadata>() {
+                                @Override
+                                public CachedMetadata call() throws IOException {
+                                    CachedMetadata fetched = loadMetadata();
+                                    cachedMetadata.set(fetched);
+                                    return fetched;
+                                }
+                            });
+                }
+                if (metadataFetch.compareAndSet(null, task)) {
+                    try {
+                        task.run();
+                    } finally {
+                        metadataFetch.compareAndSet(task, null);
+                    }
+                    return awaitMetadata(task);
+                }
+            }
+        }
+
+        private CachedMetadata loadMetadata() throws IOException {
             try {
-                metadata = (Map<String, Object>) callAPI(GET_METHOD, indexUrl,
-                        privatePass);
+                return new CachedMetadata((Map<String, Object>) callAPI(
+                        GET_METHOD, indexUrl, privatePass), null);
             } catch (HttpCodeException e) {
                 if (e.getHttpCode() == 404) {
-                    throw new IndexDoesNotExistException(e);
+                    return new CachedMetadata(null,
+                            new IndexDoesNotExistException(e));
                 } else {
                     throw new UnexpectedCodeException(e);
                 }
             }
         }
 
-        @Override
-        public Map<String, Object> getMetadata() throws IOException,
-                IndexDoesNotExistException {
-            if (metadata == null) {
-                this.refreshMetadata();
+        private CachedMetadata awaitMetadata(FutureTask<CachedMetadata> task)
+                throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for metadata");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+
+        private void refreshInBackground() {
+            if (metadataFetch.get() != null) {
+                return;
+            }
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchMetadata();
+                    } catch (IOException e) {
+                        // the next read past the TTL will fetch it again
+                    } catch (RuntimeException e) {
+                        // the next read past the TTL will fetch it again
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Metadata of an index as fetched at a given time, or the fact that the
+     * index didn't exist at that time.
+     */
+    private static class CachedMetadata {
+        private final Map<String, Object> metadata;
+        private final IndexDoesNotExistException missing;
+        private final long fetchedNanos;
+
+        CachedMetadata(Map<String, Object> metadata,
+                IndexDoesNotExistException missing) {
+            this.metadata = metadata;
+            this.missing = missing;
+            this.fetchedNanos = System.nanoTime();
+        }
+
+        Map<String, Object> get() throws IndexDoesNotExistException {
+            if (missing != null) {
+                throw missing;
             }
+            return metadata;
+        }
+
+        /**
+         * With no TTL, only existing metadata is considered fresh, forever.
+         */
+        boolean isFresh(long ttlNanos) {
+            if (ttlNanos == 0) {
+                return missing == null;
+            }
+            return System.nanoTime() - fetchedNanos < ttlNanos;
+        }
 
-            return this.metadata;
+        boolean isAging(long ttlNanos) {
+            return ttlNanos > 0
+                    && System.nanoTime() - fetchedNanos >= ttlNanos / 4 * 3;
         }
     }
 
     private final String apiUrl;
     private final String privatePass;
+    private final AtomicReference<ExecutorService> executor = new AtomicReference<ExecutorService>();
+    private volatile Semaphore connectionPermits;
+    private volatile int maxConnections;
+    private volatile long metadataTtlNanos;
+    private volatile boolean validateFunctions;
+    private final ConcurrentHashMap<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+    private final AtomicReference<ScheduledExecutorService> scheduler = new AtomicReference<ScheduledExecutorService>();
+    private final ClientMetrics metrics;
+    private final List<RequestListener> listeners = new CopyOnWriteArrayList<RequestListener>();
 
     public IndexTankClient(String apiUrl) {
         this.apiUrl = appendTrailingSlash(apiUrl);
@@ -1010,6 +1627,7 @@ public class IndexTankClient implements ApiClient {
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException(e);
         }
+        this.metrics = new ClientMetrics(this, getIndexesUrl());
     }
 
     /**
@@ -1023,6 +1641,172 @@ public class IndexTankClient implements ApiClient {
     public IndexTankClient(String apiUrl, String privatePass) {
         this.apiUrl = appendTrailingSlash(apiUrl);
         this.privatePass = privatePass;
+        this.metrics = new ClientMetrics(this, getIndexesUrl());
+    }
+
+    /**
+     * Sets the executor used for every background or concurrent operation
+     * this client performs on behalf of the caller. It must not limit how
+     * many tasks run at once: some tasks wait for others submitted to it,
+     * such as the listener of
+     * {@link IndexTankClient.Index#onStarted(Map, int)} waiting for its
+     * warm-up requests, or a {@link BulkProvisioning} or
+     * {@link #multiSearch} started from an executor thread. A fixed-size
+     * pool, or one with a bounded queue, deadlocks once all its threads are
+     * waiting. Use a cached pool, like the default one, or a
+     * virtual-thread-per-task executor: the request path only blocks on I/O
+     * and on {@code java.util.concurrent} primitives, never inside a
+     * {@code synchronized} block of this client. {@code PinningCheck} in the
+     * benchmarks checks the latter on the JVM at hand.
+     * 
+     * @param executor
+     *            the executor to use. Never {@code null}.
+     * @return this client
+     */
+    public IndexTankClient withExecutor(ExecutorService executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor must be non-null");
+        }
+        this.executor.set(executor);
+        return this;
+    }
+
+    /**
+     * Limits the number of requests this client has on the wire at the same
+     * time. Callers over the limit park until a connection is released, so
+     * thousands of (virtual) threads can share a small set of keep-alive
+     * connections. The JVM-wide {@code http.maxConnections} system property
+     * should be at least this value for connections to be reused.
+     * 
+     * @param maxConnections
+     *            the limit, or 0 for unbounded (the default)
+     * @return this client
+     */
+    public IndexTankClient withMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException(
+                    "maxConnections must be non-negative");
+        }
+        this.connectionPermits = maxConnections == 0 ? null : new Semaphore(
+                maxConnections, true);
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Publishes this client's {@link #getMetrics() metrics} as MXBeans in the
+     * platform MBean server.
+     * 
+     * @param name
+     *            distinguishes this client from others in the same JVM
+     * @return this client
+     * @see ClientMetrics#register(String)
+     */
+    public IndexTankClient withJmx(String name) {
+        metrics.register(name);
+        return this;
+    }
+
+    /**
+     * Registers a listener that gets told about every request this client
+     * makes, with phase timings.
+     * 
+     * @return this client
+     */
+    public IndexTankClient withListener(RequestListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener must be non-null");
+        }
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeListener(RequestListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return latencies, counts and errors of the requests made by this
+     *         client, by method, endpoint and index
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Makes {@link Index#addFunction(Integer, String)} compile definitions
+     * with {@link ScoringFunction} before sending them, so that invalid ones
+     * fail without a request. Off by default, since the server has the final
+     * word on what is valid.
+     * 
+     * @return this client
+     */
+    public IndexTankClient withLocalFunctionValidation(boolean validate) {
+        this.validateFunctions = validate;
+        return this;
+    }
+
+    /**
+     * Sets how long index metadata is trusted. Within the TTL,
+     * {@link Index#exists()}, {@link Index#hasStarted()} and the metadata
+     * getters are answered from memory; past three quarters of it, reads
+     * trigger a background refresh. Concurrent refreshes of the same index are
+     * coalesced into a single request.
+     * <p>
+     * By default there is no TTL: {@code exists()} and {@code hasStarted()}
+     * always make a request, and other metadata is fetched once.
+     * 
+     * @return this client
+     */
+    public IndexTankClient withMetadataTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must be non-negative");
+        }
+        this.metadataTtlNanos = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * @return the executor set with {@link #withExecutor(ExecutorService)}, or
+     *         a shared pool of daemon threads if none was set
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService current = executor.get();
+        if (current == null) {
+            ExecutorService created = Executors
+                    .newCachedThreadPool(new DaemonThreadFactory());
+            if (executor.compareAndSet(null, created)) {
+                current = created;
+            } else {
+                created.shutdown();
+                current = executor.get();
+            }
+        }
+        return current;
+    }
+
+    ExecutorService getExecutorIfCreated() {
+        return executor.get();
+    }
+
+    Semaphore getConnectionPermits() {
+        return connectionPermits;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "indextank-client-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     private static String appendTrailingSlash(String apiUrl) {
@@ -1032,9 +1816,68 @@ public class IndexTankClient implements ApiClient {
         return apiUrl;
     }
 
+    /**
+     * Runs several searches, possibly against different indexes, concurrently
+     * on this client's executor and connections.
+     * 
+     * @param requests
+     *            the searches to run
+     * @param timeout
+     *            deadline shared by all the searches. Searches that don't
+     *            complete in time are cancelled and reported as timed out.
+     * @return one {@link MultiSearch.Response} per request, in the same order
+     */
+    public List<MultiSearch.Response> multiSearch(
+            List<MultiSearch.Request> requests, long timeout, TimeUnit unit) {
+        return MultiSearch.execute(requests, timeout, unit, getExecutor());
+    }
+
+    /**
+     * Runs the same query on several indexes concurrently and merges their
+     * results into a single page, as if they were a single index.
+     * 
+     * @param indexes
+     *            the indexes to search
+     * @param query
+     *            the query. Its start and length apply to the merged results.
+     * @param timeout
+     *            indexes that don't answer in time are left out of the
+     *            results and reported in
+     *            {@link FederatedSearch.Results#timedOut}
+     * @see FederatedSearch
+     */
+    public FederatedSearch.Results federatedSearch(
+            List<? extends com.flaptor.indextank.apiclient.Index> indexes,
+            Query query, long timeout, TimeUnit unit) {
+        return FederatedSearch.execute(indexes, query, timeout, unit,
+                FederatedSearch.BY_RELEVANCE, getExecutor());
+    }
+
+    /**
+     * @return a {@link BulkProvisioning} to create many indexes at once with
+     *         this client
+     */
+    public BulkProvisioning bulkProvisioning() {
+        return new BulkProvisioning(this, getExecutor());
+    }
+
+    /**
+     * Returns the handle for the given index. Handles are shared: every call
+     * for the same name returns the same instance, along with its cached
+     * metadata, until the index is deleted or found not to exist on delete.
+     * After that a new handle is returned, and the old one keeps working.
+     */
     @Override
     public Index getIndex(String indexName) {
-        return new Index(getIndexUrl(indexName));
+        Index index = indexes.get(indexName);
+        if (index == null) {
+            Index created = new Index(indexName);
+            index = indexes.putIfAbsent(indexName, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
     }
 
     @Override
@@ -1059,8 +1902,10 @@ public class IndexTankClient implements ApiClient {
                     GET_METHOD, getIndexesUrl(), privatePass);
 
             for (Entry<String, Object> entry : responseMap.entrySet()) {
-                result.add(new Index(getIndexUrl(entry.getKey()),
-                        (Map<String, Object>) entry.getValue()));
+                Index index = getIndex(entry.getKey());
+                index.cachedMetadata.set(new CachedMetadata(
+                        (Map<String, Object>) entry.getValue(), null));
+                result.add(index);
             }
 
             return result;
@@ -1069,6 +1914,103 @@ public class IndexTankClient implements ApiClient {
         }
     }
 
+    /**
+     * Keeps the metadata of every index handle up to date with a single
+     * {@link #listIndexes()} request per period, instead of one request per
+     * index. Handles of indexes missing from the listing are marked as not
+     * existing. If no metadata TTL was set, it is set to twice the period, so
+     * that {@link Index#exists()}, {@link Index#hasStarted()},
+     * {@link Index#getCode()} and {@link Index#getCreationTime()} are served
+     * from the latest listing. The listing is made on the executor; a run
+     * is skipped while the previous listing is still in progress.
+     * 
+     * @return the scheduled refresh, which can be cancelled
+     */
+    public ScheduledFuture<?> withMetadataRefresh(long period, TimeUnit unit) {
+        if (metadataTtlNanos == 0) {
+            withMetadataTtl(period * 2, unit);
+        }
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshAllMetadata();
+                } catch (IOException e) {
+                    // retried on the next run
+                } catch (RuntimeException e) {
+                    // retried on the next run
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        };
+        return getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!refreshing.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    getExecutor().execute(refresh);
+                } catch (RejectedExecutionException e) {
+                    refreshing.set(false);
+                }
+            }
+        }, 0, period, unit);
+    }
+
+    private void refreshAllMetadata() throws IOException {
+        long startNanos = System.nanoTime();
+        Set<String> listed = new HashSet<String>();
+        for (Index index : listIndexes()) {
+            listed.add(index.getName());
+        }
+        for (Index index : indexes.values()) {
+            CachedMetadata cached = index.cachedMetadata.get();
+            // entries updated while listing, or cleared by create(), may be
+            // newer than the listing
+            if (!listed.contains(index.getName()) && cached != null
+                    && cached.fetchedNanos - startNanos < 0) {
+                index.cachedMetadata.compareAndSet(cached, new CachedMetadata(
+                        null, new IndexDoesNotExistException(
+                                new HttpCodeException(404,
+                                        "No index existing for name "
+                                                + index.getName()))));
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: the n-th poll waits between half and
+     * all of {@code min(initial * 2^n, max)}, so that indexes created
+     * together are not polled in lockstep.
+     */
+    private static long startPollDelayMillis(int attempt) {
+        if (attempt == 0) {
+            return 0;
+        }
+        long ceiling = Math.min(START_POLL_MAX_MILLIS,
+                START_POLL_INITIAL_MILLIS << Math.min(attempt - 1, 16));
+        return ceiling / 2
+                + (long) (Math.random() * (ceiling - ceiling / 2 + 1));
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler.get();
+        if (current == null) {
+            ScheduledExecutorService created = Executors
+                    .newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+            if (scheduler.compareAndSet(null, created)) {
+                current = created;
+            } else {
+                created.shutdown();
+                current = scheduler.get();
+            }
+        }
+        return current;
+    }
+
     private String getIndexUrl(String indexName) {
         return getIndexesUrl() + encodeIndexName(indexName);
     }
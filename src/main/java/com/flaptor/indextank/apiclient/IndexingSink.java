@@ -0,0 +1,366 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.ReactiveStreams.Publisher;
+import com.flaptor.indextank.apiclient.ReactiveStreams.Subscriber;
+import com.flaptor.indextank.apiclient.ReactiveStreams.Subscription;
+
+/**
+ * Indexing sink for reactive pipelines. It subscribes to a stream of
+ * {@link Document}s, sends them to an {@link Index} in batches through
+ * {@link Index#addDocuments(Iterable)} and publishes one
+ * {@link DocumentResult} per document.
+ * <p>
+ * The sink never asks upstream for more documents than
+ * {@code batchSize * maxInFlightBatches} minus the results not yet delivered
+ * downstream, so producers are throttled by the actual indexing throughput
+ * (and by the result consumer) instead of being buffered without bound.
+ * <p>
+ * Both sides follow the Reactive Streams contract, see
+ * {@link ReactiveStreams}.
+ * <p>
+ * A partially filled batch is sent once upstream completes or fails, or,
+ * with {@link #withMaxDelay(long, TimeUnit, ScheduledExecutorService)}, once
+ * its first document has waited that long. Without a maximum delay the
+ * upstream should keep producing or complete the stream.
+ *
+ * @author flaptor
+ */
+public class IndexingSink implements Subscriber<Document>,
+        Publisher<IndexingSink.DocumentResult> {
+
+    /**
+     * The outcome of indexing a single document.
+     */
+    public static class DocumentResult {
+        public final Document document;
+        public final boolean added;
+        public final String error;
+
+        public DocumentResult(Document document, boolean added, String error) {
+            this.document = document;
+            this.added = added;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return added ? "Added" : "Failed: " + error;
+        }
+    }
+
+    private final Index index;
+    private final int batchSize;
+    private final int maxInFlightBatches;
+    private final Executor executor;
+    private long maxDelayNanos;
+    private ScheduledExecutorService scheduler;
+
+    private final Queue<DocumentResult> results = new ConcurrentLinkedQueue<DocumentResult>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile Subscription upstream;
+    private volatile Subscriber<? super DocumentResult> downstream;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private boolean terminated;
+
+    // onNext/onComplete/onError are serialized by the upstream publisher,
+    // but the maximum delay timer sends the batch too
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private List<Document> batch;
+
+    /**
+     * @param index
+     *            the index documents are added to
+     * @param batchSize
+     *            number of documents per {@code addDocuments} call
+     * @param maxInFlightBatches
+     *            number of batches that can be sent concurrently
+     * @param executor
+     *            the executor batches are sent on, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public IndexingSink(Index index, int batchSize, int maxInFlightBatches,
+            Executor executor) {
+        if (batchSize <= 0 || maxInFlightBatches <= 0) {
+            throw new IllegalArgumentException(
+                    "batchSize and maxInFlightBatches must be positive");
+        }
+        this.index = index;
+        this.batchSize = batchSize;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.executor = executor;
+        this.batch = new ArrayList<Document>(batchSize);
+    }
+
+    /**
+     * Sends a partially filled batch once its first document has waited for
+     * the given time, so that a slow upstream doesn't hold documents back
+     * indefinitely. Must be set before the sink is subscribed to its
+     * upstream.
+     *
+     * @param scheduler
+     *            where the delays are timed; the batch itself is sent on the
+     *            executor
+     * @return this sink
+     */
+    public IndexingSink withMaxDelay(long delay, TimeUnit unit,
+            ScheduledExecutorService scheduler) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        this.maxDelayNanos = unit.toNanos(delay);
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Subscribes the consumer of per-document results. Only one consumer is
+     * supported and it should subscribe before the sink is subscribed to its
+     * upstream; results produced while nobody is subscribed are discarded.
+     */
+    @Override
+    public void subscribe(Subscriber<? super DocumentResult> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber must be non-null");
+        }
+        if (downstream != null) {
+            throw new IllegalStateException(
+                    "IndexingSink supports a single result subscriber");
+        }
+        downstream = subscriber;
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException(
+                            "Requested a non-positive number of results"));
+                    return;
+                }
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                Subscription subscription = upstream;
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        if (cancelled) {
+            subscription.cancel();
+        } else {
+            subscription.request((long) batchSize * maxInFlightBatches);
+        }
+    }
+
+    @Override
+    public void onNext(Document document) {
+        if (done || cancelled) {
+            return;
+        }
+        batchLock.lock();
+        try {
+            batch.add(document);
+            if (batch.size() >= batchSize) {
+                send();
+            } else if (batch.size() == 1 && scheduler != null) {
+                scheduleSend(batch);
+            }
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the given batch after the maximum delay, unless it was sent
+     * already.
+     */
+    private void scheduleSend(final List<Document> pending) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                batchLock.lock();
+                try {
+                    if (batch == pending && !done && !cancelled) {
+                        send();
+                    }
+                } finally {
+                    batchLock.unlock();
+                }
+            }
+        }, maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        if (done) {
+            return;
+        }
+        this.error = error;
+        onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        if (done) {
+            return;
+        }
+        batchLock.lock();
+        try {
+            if (!batch.isEmpty() && !cancelled) {
+                send();
+            }
+            done = true;
+        } finally {
+            batchLock.unlock();
+        }
+        drain();
+    }
+
+    /**
+     * Sends the current batch. Called with the batch lock held.
+     */
+    private void send() {
+        final List<Document> documents = batch;
+        batch = new ArrayList<Document>(batchSize);
+        inFlight.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    addDocuments(documents);
+                } finally {
+                    inFlight.decrementAndGet();
+                    drain();
+                }
+            }
+        });
+    }
+
+    private void addDocuments(List<Document> documents) {
+        try {
+            BatchResults batchResults = index.addDocuments(documents);
+            for (int i = 0; i < documents.size(); i++) {
+                boolean added = batchResults.getResult(i);
+                results.offer(new DocumentResult(documents.get(i), added,
+                        added ? null : batchResults.getErrorMessage(i)));
+            }
+        } catch (IndexDoesNotExistException e) {
+            fail(e);
+        } catch (IOException e) {
+            failAll(documents, e);
+        } catch (RuntimeException e) {
+            // rejected batches and unexpected codes, but also anything else:
+            // the documents still get results and upstream demand is
+            // replenished
+            failAll(documents, e);
+        }
+    }
+
+    private void failAll(List<Document> documents, Exception cause) {
+        for (Document document : documents) {
+            results.offer(new DocumentResult(document, false, String
+                    .valueOf(cause.getMessage())));
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (error == null) {
+            error = cause;
+        }
+        cancelled = true;
+        Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        drain();
+    }
+
+    /**
+     * Delivers queued results while there is downstream demand, replenishing
+     * upstream demand one document per delivered result. Only one thread runs
+     * the loop at a time; concurrent callers just flag another pass.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Subscriber<? super DocumentResult> subscriber = downstream;
+            long delivered = 0;
+
+            while (!terminated) {
+                if (cancelled && error == null) {
+                    results.clear();
+                    break;
+                }
+                if (subscriber != null && demand.get() == 0) {
+                    break;
+                }
+                DocumentResult result = results.poll();
+                if (result == null) {
+                    break;
+                }
+                if (subscriber != null) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(result);
+                }
+                delivered++;
+            }
+
+            Subscription subscription = upstream;
+            if (delivered > 0 && subscription != null && !done && !cancelled) {
+                subscription.request(delivered);
+            }
+
+            if (!terminated && (done || error != null) && inFlight.get() == 0
+                    && results.isEmpty()) {
+                terminated = true;
+                if (subscriber != null) {
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
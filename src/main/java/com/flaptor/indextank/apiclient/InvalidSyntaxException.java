@@ -7,4 +7,8 @@ public class InvalidSyntaxException extends Exception {
     public InvalidSyntaxException(HttpCodeException source) {
         super(source.getMessage());
     }
+
+    public InvalidSyntaxException(String message) {
+        super(message);
+    }
 }
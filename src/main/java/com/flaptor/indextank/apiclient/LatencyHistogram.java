@@ -0,0 +1,159 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of non-negative values, typically latencies in
+ * nanoseconds, with a relative error under 1.6% across the whole {@code long}
+ * range.
+ * <p>
+ * Values are counted in log-linear buckets: exact below 128, then 64 buckets
+ * per power of two. Recording is lock-free and allocation-free, and the
+ * count and sum are striped, so it can sit on busy request paths; reading
+ * while others record gives a view that is consistent per bucket but not
+ * across buckets.
+ *
+ * @author flaptor
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1)
+            * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get())
+                && !max.compareAndSet(currentMax, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount > 0) {
+                counts.addAndGet(i, bucketCount);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long otherMax = other.max.get();
+        long currentMax;
+        while (otherMax > (currentMax = max.get())
+                && !max.compareAndSet(currentMax, otherMax)) {
+            // retry
+        }
+    }
+
+    /**
+     * Moves the values recorded so far into a new histogram, leaving this
+     * one empty. Values recorded concurrently end up in one of the two.
+     */
+    public LatencyHistogram drain() {
+        LatencyHistogram drained = new LatencyHistogram();
+        long drainedCount = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) > 0) {
+                long bucketCount = counts.getAndSet(i, 0);
+                drained.counts.set(i, bucketCount);
+                drainedCount += bucketCount;
+            }
+        }
+        // the count is adjusted rather than reset, so that it keeps matching
+        // the buckets when values are recorded during the sweep
+        count.add(-drainedCount);
+        drained.count.add(drainedCount);
+        drained.sum.add(sum.sumThenReset());
+        drained.max.set(max.getAndSet(0));
+        return drained;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long currentCount = count.sum();
+        return currentCount == 0 ? 0 : (double) sum.sum() / currentCount;
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return the value at the given percentile: the highest value of the
+     *         bucket it falls in, capped at the maximum recorded value. 0 if
+     *         empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile)
+                / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50="
+                + getValueAtPercentile(50) + " p99="
+                + getValueAtPercentile(99) + " max=" + getMax();
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS
+                + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        long next = (subBucket + 1) << shift;
+        return next < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
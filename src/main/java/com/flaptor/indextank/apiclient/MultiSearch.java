@@ -0,0 +1,145 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Runs a set of independent searches concurrently under a single deadline.
+ * Every search gets its own {@link Response}: its results, the error it
+ * failed with, or a timeout flag if it didn't finish before the deadline.
+ * Searches still running at the deadline are cancelled.
+ *
+ * @see IndexTankClient#multiSearch(List, long, TimeUnit)
+ * @author flaptor
+ */
+public class MultiSearch {
+
+    /**
+     * A query to run against a given index.
+     */
+    public static class Request {
+        public final Index index;
+        public final Query query;
+
+        public Request(Index index, Query query) {
+            if (index == null || query == null) {
+                throw new NullPointerException(
+                        "Both index and query must be non-null");
+            }
+            this.index = index;
+            this.query = query;
+        }
+    }
+
+    /**
+     * The outcome of a single {@link Request}. Exactly one of
+     * {@link #results} being non-null, {@link #error} being non-null or
+     * {@link #timedOut} being true holds.
+     */
+    public static class Response {
+        public final Request request;
+        public final SearchResults results;
+        public final Exception error;
+        public final boolean timedOut;
+        public final long elapsedNanos;
+
+        Response(Request request, SearchResults results, Exception error,
+                boolean timedOut, long elapsedNanos) {
+            this.request = request;
+            this.results = results;
+            this.error = error;
+            this.timedOut = timedOut;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean isSuccess() {
+            return results != null;
+        }
+
+        @Override
+        public String toString() {
+            return timedOut ? "Timed out" : error != null ? "Failed: "
+                    + error : results.toString();
+        }
+    }
+
+    private MultiSearch() {
+    }
+
+    /**
+     * Runs every request on the given executor and waits for all of them, up
+     * to the given timeout.
+     *
+     * @return one response per request, in the same order
+     */
+    public static List<Response> execute(List<Request> requests, long timeout,
+            TimeUnit unit, Executor executor) {
+        final long startNanos = System.nanoTime();
+        final long timeoutNanos = unit.toNanos(timeout);
+
+        List<FutureTask<Response>> tasks = new ArrayList<FutureTask<Response>>(
+                requests.size());
+        for (final Request request : requests) {
+            FutureTask<Response> task = new FutureTask<Response>(
+                    new Callable<Response>() {
+                        @Override
+                        public Response call() {
+                            try {
+                                SearchResults results = request.index
+                                        .search(request.query);
+                                return new Response(request, results, null,
+                                        false, System.nanoTime() - startNanos);
+                            } catch (Exception e) {
+                                return new Response(request, null, e, false,
+                                        System.nanoTime() - startNanos);
+                            }
+                        }
+                    });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        List<Response> responses = new ArrayList<Response>(requests.size());
+        boolean interrupted = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<Response> task = tasks.get(i);
+            Request request = requests.get(i);
+            Response response;
+            try {
+                // measured as elapsed time so that huge timeouts don't
+                // overflow
+                long wait = interrupted ? 0 : Math.max(0, timeoutNanos
+                        - (System.nanoTime() - startNanos));
+                response = task.get(wait, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(true);
+                response = new Response(request, null, null, true,
+                        System.nanoTime() - startNanos);
+            } catch (InterruptedException e) {
+                // give up waiting, but still report what is already done
+                interrupted = true;
+                task.cancel(true);
+                response = new Response(request, null, e, false,
+                        System.nanoTime() - startNanos);
+            } catch (ExecutionException e) {
+                // the callable catches everything but errors
+                throw new RuntimeException(e.getCause());
+            }
+            responses.add(response);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return responses;
+    }
+}
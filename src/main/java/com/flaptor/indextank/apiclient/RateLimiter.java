@@ -0,0 +1,75 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spaces out permits evenly at a fixed rate. Callers reserve the next free
+ * slot with a lock-free update and sleep until it comes, so concurrent
+ * callers never wait on each other's sleep.
+ *
+ * @author flaptor
+ */
+class RateLimiter {
+
+    private final long intervalNanos;
+    private final AtomicLong nextFreeNanos;
+
+    /**
+     * @param permitsPerSecond
+     *            the rate, or 0 for no limit
+     */
+    RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond < 0) {
+            throw new IllegalArgumentException("The rate must be non-negative");
+        }
+        this.intervalNanos = permitsPerSecond == 0 ? 0
+                : (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.nextFreeNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit if one is free now, without waiting.
+     *
+     * @return whether a permit was taken
+     */
+    boolean tryAcquire() {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long next = nextFreeNanos.get();
+        return next - now <= 0
+                && nextFreeNanos.compareAndSet(next, now + intervalNanos);
+    }
+
+    /**
+     * Blocks until the caller's turn comes.
+     */
+    void acquire() throws InterruptedIOException {
+        if (intervalNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long slot;
+        while (true) {
+            long next = nextFreeNanos.get();
+            // an idle limiter doesn't accumulate permits for a burst
+            slot = next - now < 0 ? now : next;
+            if (nextFreeNanos.compareAndSet(next, slot + intervalNanos)) {
+                break;
+            }
+        }
+        long wait = slot - now;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for a permit");
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.flaptor.indextank.apiclient;
+
+/**
+ * The Reactive Streams interfaces, with the same contract as the ones nested
+ * in {@code java.util.concurrent.Flow}. This library cannot reference
+ * {@code Flow} directly because it still targets older Java versions; the
+ * {@code indextank-java-flow} module ({@code flow/}), which needs Java 9,
+ * adapts them to and from {@code Flow}, e.g. an {@link IndexingSink} to a
+ * {@code Flow.Processor}.
+ * 
+ * @author flaptor
+ */
+public final class ReactiveStreams {
+
+    private ReactiveStreams() {
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+}
@@ -0,0 +1,412 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flaptor.indextank.apiclient.AliasedIndex.Change;
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * Rebuilds the index behind an {@link AliasedIndex} into a new index while
+ * the alias keeps serving searches and writes, then points the alias at the
+ * new index.
+ * <p>
+ * The new index must already exist, be started and have its scoring
+ * functions installed. The documents of the current index are copied by
+ * scanning the partition queries in parallel, as {@link IndexExporter} does,
+ * and sent in batches. Meanwhile, the document writes made through the alias
+ * keep going to the current index and are recorded; once the copy is done
+ * they are replayed on the new index, in order, which also corrects any
+ * document the copy read before it changed. The last writes are replayed
+ * with writes blocked, right before the alias is swapped, so no write is
+ * lost.
+ * <p>
+ * Scans page through results by offset, so a document deleted while a
+ * partition is being scanned can make the documents after it shift to a page
+ * already read, and be missed. After the copy, the partitions are scanned
+ * again ({@link #withSweeps(int)} times) to copy the documents not seen
+ * before; this needs the docids copied so far in memory.
+ *
+ * <pre>
+ * Index next = client.createIndex("products-v2");
+ * next.awaitStarted(1, TimeUnit.MINUTES);
+ * next.addFunction(0, "-age");
+ * Reindexer.Summary summary = new Reindexer(alias, next, client.getExecutor())
+ *         .run(IndexExporter.byCategory("type:product", "lang", languages));
+ * </pre>
+ *
+ * A {@link Transformer} can change the documents on the way, both the copied
+ * ones and those added by the replayed writes. Variable and category
+ * updates and deletes are replayed as they are.
+ * <p>
+ * Writes made to the current index other than through the alias, and
+ * promotions, are not carried over. The recorded writes are held in memory
+ * until replayed.
+ *
+ * @author flaptor
+ */
+public class Reindexer {
+
+    /**
+     * What a reindex did.
+     */
+    public static class Summary {
+        public final long copied;
+        public final long replayed;
+        public final long elapsedMillis;
+        /**
+         * the index the alias pointed at before, to be deleted once unused
+         */
+        public final Index previous;
+
+        Summary(long copied, long replayed, long elapsedMillis, Index previous) {
+            this.copied = copied;
+            this.replayed = replayed;
+            this.elapsedMillis = elapsedMillis;
+            this.previous = previous;
+        }
+
+        @Override
+        public String toString() {
+            return copied + " copied, " + replayed + " replayed in "
+                    + elapsedMillis + "ms";
+        }
+    }
+
+    /**
+     * Changes each document before it is written to the new index. It is
+     * called from several threads at once, and should depend on nothing but
+     * the document: a document written through the alias during the reindex
+     * may be transformed again when replayed.
+     */
+    public interface Transformer {
+        /**
+         * @return the document to write, with the same docid, or
+         *         <code>null</code> to leave it out of the new index
+         */
+        Document transform(Document document);
+    }
+
+    static final Transformer UNCHANGED = new Transformer() {
+        @Override
+        public Document transform(Document document) {
+            return document;
+        }
+    };
+
+    private static final int CATCH_UP_ROUNDS = 3;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_INITIAL_MILLIS = 250;
+
+    private final AliasedIndex alias;
+    private final Index target;
+    private final Executor executor;
+    private int pageSize = 100;
+    private int batchSize = 500;
+    private int parallelism = 4;
+    private int sweeps = 1;
+    private Transformer transformer = UNCHANGED;
+
+    private final Set<String> seen = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param alias
+     *            the alias to reindex
+     * @param target
+     *            the new index, ready to take documents
+     * @param executor
+     *            the executor pages are fetched on, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public Reindexer(AliasedIndex alias, Index target, Executor executor) {
+        this.alias = alias;
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * @return this reindexer
+     */
+    public Reindexer withPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @return this reindexer
+     */
+    public Reindexer withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets how many partitions are copied at the same time. Defaults to 4.
+     *
+     * @return this reindexer
+     */
+    public Reindexer withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets how many times the partitions are scanned again, after the copy,
+     * for documents the copy missed. Defaults to 1; 0 skips the check.
+     *
+     * @return this reindexer
+     */
+    public Reindexer withSweeps(int sweeps) {
+        this.sweeps = sweeps;
+        return this;
+    }
+
+    /**
+     * Sets how documents are changed before they are written to the new
+     * index. By default they are written as they are.
+     *
+     * @return this reindexer
+     */
+    public Reindexer withTransformer(final Transformer transformer) {
+        this.transformer = new Transformer() {
+            @Override
+            public Document transform(Document document) {
+                Document result = transformer.transform(document);
+                if (result != null
+                        && !result.getId().equals(document.getId())) {
+                    throw new IllegalArgumentException(
+                            "The transformer changed the docid "
+                                    + document.getId() + " to "
+                                    + result.getId());
+                }
+                return result;
+            }
+        };
+        return this;
+    }
+
+    public long getCopied() {
+        return copied.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return documents and writes the new index rejected
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Summary run(Query... partitions) throws IOException,
+            IndexDoesNotExistException {
+        return run(Arrays.asList(partitions));
+    }
+
+    /**
+     * Copies the documents matching the partitions, which together should
+     * match every document, and swaps the alias. If the reindex fails, or
+     * the new index rejects any document or write, the alias keeps pointing
+     * at the current index, and the new one is left as it is.
+     *
+     * @throws IOException
+     *             also if the new index rejected documents or writes
+     */
+    public Summary run(List<Query> partitions) throws IOException,
+            IndexDoesNotExistException {
+        long started = System.nanoTime();
+        Index source = alias.getTarget();
+        if (source == target) {
+            throw new IllegalArgumentException("The alias "
+                    + alias.getName() + " already points at "
+                    + target.getName());
+        }
+        Queue<Change> changes = alias.startRecording();
+        boolean swapped = false;
+        try {
+            for (int pass = 0; pass <= sweeps; pass++) {
+                copy(source, partitions);
+            }
+            checkComplete();
+            // catch up while writes go on, so that few are left to replay
+            // with writes blocked
+            for (int round = 0; round < CATCH_UP_ROUNDS; round++) {
+                if (replay(changes, target) == 0) {
+                    break;
+                }
+            }
+            Index previous = alias.swapAfterReplaying(target, this);
+            swapped = true;
+            return new Summary(copied.get(), replayed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                    previous);
+        } finally {
+            if (!swapped) {
+                alias.stopRecording();
+            }
+        }
+    }
+
+    private void copy(final Index source, List<Query> partitions)
+            throws IOException, IndexDoesNotExistException {
+        ExecutorService copiers = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(parallelism, partitions.size())));
+        try {
+            CompletionService<Void> tasks = new ExecutorCompletionService<Void>(
+                    copiers);
+            for (final Query partition : partitions) {
+                tasks.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        copy(source, partition);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < partitions.size(); i++) {
+                IndexExporter.await(tasks);
+            }
+        } finally {
+            copiers.shutdownNow();
+        }
+    }
+
+    private void copy(Index source, Query partition) throws IOException,
+            IndexDoesNotExistException, InterruptedException {
+        Query query = partition.copy().withFetchFields("*")
+                .withFetchVariables().withFetchCategories();
+        ResultScanner scanner = new ResultScanner(source, query, pageSize, 2,
+                executor);
+        try {
+            List<Document> batch = new ArrayList<Document>(batchSize);
+            while (scanner.hasNext()) {
+                Map<String, Object> hit = scanner.next();
+                if (!seen.add((String) hit.get("docid"))) {
+                    continue;
+                }
+                Document document = transformer.transform(Document
+                        .fromDocumentMap(IndexExporter.toDocumentMap(hit)));
+                if (document == null) {
+                    continue;
+                }
+                batch.add(document);
+                if (batch.size() == batchSize) {
+                    send(batch);
+                    batch = new ArrayList<Document>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private void send(List<Document> batch) throws IOException,
+            IndexDoesNotExistException, InterruptedException {
+        BatchResults results;
+        try {
+            results = BulkImporter.addDocuments(target, batch);
+        } catch (UnexpectedCodeException e) {
+            if (e.httpCode >= 500) {
+                throw e;
+            }
+            failed.addAndGet(batch.size());
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (results.getResult(i)) {
+                copied.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Applies recorded changes to an index, in order, until there are none
+     * left.
+     *
+     * @return how many were applied
+     * @throws IOException
+     *             also if the index rejected any of them
+     */
+    int replay(Queue<Change> changes, Index index) throws IOException,
+            IndexDoesNotExistException {
+        int applied = 0;
+        Change change;
+        while ((change = changes.poll()) != null) {
+            apply(change, index);
+            replayed.incrementAndGet();
+            applied++;
+        }
+        checkComplete();
+        return applied;
+    }
+
+    private void checkComplete() throws IOException {
+        if (failed.get() > 0) {
+            throw new IOException(target.getName() + " rejected "
+                    + failed.get() + " documents or writes; "
+                    + alias.getName() + " was not swapped");
+        }
+    }
+
+    private void apply(Change change, Index index) throws IOException,
+            IndexDoesNotExistException {
+        long retryMillis = RETRY_INITIAL_MILLIS;
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (!change.apply(index, transformer)) {
+                    failed.incrementAndGet();
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt == MAX_RETRIES) {
+                    throw e;
+                }
+            } catch (UnexpectedCodeException e) {
+                if (e.httpCode < 500) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                if (attempt == MAX_RETRIES) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while replaying writes");
+            }
+            retryMillis *= 2;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One request made by an {@link IndexTankClient}, as seen by
+ * {@link RequestListener}s: what was asked, how long each phase took and what
+ * came back.
+ * <p>
+ * Phases run one after the other: waiting for a connection permit, connecting
+ * (including the TLS handshake for https, which {@code HttpURLConnection}
+ * doesn't time separately; near zero when a keep-alive connection is
+ * reused), writing the body, waiting for the first byte of the response,
+ * reading it and parsing it. Phases a request didn't get to are 0. Subtracting
+ * {@link #getServerSearchTimeNanos()} from the first-byte wait gives the
+ * network and queueing overhead of a search.
+ *
+ * @author flaptor
+ */
+public final class RequestEvent {
+
+    private final String method;
+    private final String url;
+    private final Map<String, String> params;
+    private final String endpoint;
+    private final String index;
+    private final long startNanos = System.nanoTime();
+
+    long connectionWaitNanos;
+    long connectNanos;
+    long writeNanos;
+    long firstByteNanos;
+    long readNanos;
+    long parseNanos;
+    long totalNanos;
+    int status;
+    long requestBytes;
+    long responseBytes;
+    int resultCount = -1;
+    long serverSearchTimeNanos = -1;
+    Exception failure;
+
+    RequestEvent(String method, String url, Map<String, String> params,
+            String endpoint, String index) {
+        this.method = method;
+        this.url = withoutUserInfo(url);
+        this.params = params == null ? Collections.<String, String> emptyMap()
+                : Collections.unmodifiableMap(params);
+        this.endpoint = endpoint;
+        this.index = index;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the URL, without the query string or the password
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the query string parameters, possibly empty
+     */
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    /**
+     * @return the endpoint, named as in {@link EndpointMetricsMXBean}
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the index name, or an empty string
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the request started
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getConnectionWaitNanos() {
+        return connectionWaitNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return the time from start to completion, or 0 until completed
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the HTTP code, or 0 if no response arrived
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * @return the number of results of a search or a batch, or -1 for other
+     *         responses
+     */
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * @return the {@code search_time} the server reported, or -1 if the
+     *         response had none
+     */
+    public long getServerSearchTimeNanos() {
+        return serverSearchTimeNanos;
+    }
+
+    /**
+     * @return what the request failed with: an {@code IOException}, an
+     *         {@link IndexTankClient.HttpCodeException} or a runtime
+     *         exception. {@code null} if it succeeded.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    private static String withoutUserInfo(String url) {
+        int host = url.indexOf("://") + 3;
+        int at = url.indexOf('@', host);
+        int path = url.indexOf('/', host);
+        if (host < 3 || at < 0 || (path >= 0 && path < at)) {
+            return url;
+        }
+        return url.substring(0, host) + url.substring(at + 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder(method).append(' ')
+                .append(url);
+        if (!params.isEmpty()) {
+            string.append('?').append(
+                    IndexTankClient.paramsToQueryString(params));
+        }
+        string.append(" status=").append(status).append(" total=")
+                .append(totalNanos / 1000).append("us wait=")
+                .append(connectionWaitNanos / 1000).append("us connect=")
+                .append(connectNanos / 1000).append("us write=")
+                .append(writeNanos / 1000).append("us firstByte=")
+                .append(firstByteNanos / 1000).append("us read=")
+                .append(readNanos / 1000).append("us parse=")
+                .append(parseNanos / 1000).append("us");
+        if (serverSearchTimeNanos >= 0) {
+            string.append(" server=").append(serverSearchTimeNanos / 1000)
+                    .append("us");
+        }
+        return string.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package com.flaptor.indextank.apiclient;
+
+/**
+ * Receives every request an {@link IndexTankClient} makes, registered with
+ * {@link IndexTankClient#withListener(RequestListener)}.
+ * <p>
+ * Both methods are called on the thread making the request, so listeners can
+ * keep per-request state in thread-locals between them. They should be quick,
+ * since they delay the caller, and exceptions they throw are ignored.
+ *
+ * @author flaptor
+ */
+public interface RequestListener {
+
+    /**
+     * Called before waiting for a connection permit. Only the request
+     * attributes of the event are set.
+     */
+    void requestStarted(RequestEvent event);
+
+    /**
+     * Called once the request has succeeded or failed, with every phase
+     * timing it got to.
+     */
+    void requestCompleted(RequestEvent event);
+}
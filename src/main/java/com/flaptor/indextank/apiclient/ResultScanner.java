@@ -0,0 +1,191 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * Iterates over every hit of a query, across as many pages as needed.
+ * <p>
+ * Pages are fetched on the given executor: while the caller consumes one page,
+ * up to {@code prefetchDepth} following pages are already being requested, so
+ * at most {@code prefetchDepth + 1} pages are held in memory. Once the first
+ * page is known, no page starting beyond its {@code matches} is requested.
+ * <p>
+ * Errors from the underlying {@link Index#search(Query)} calls are rethrown
+ * from {@link #hasNext()}: {@link RuntimeException}s as they are, checked
+ * exceptions wrapped in a {@link RuntimeException}. Callers that stop
+ * iterating early should {@link #close()} the scanner to cancel the pending
+ * prefetches.
+ *
+ * @author flaptor
+ */
+public class ResultScanner implements Iterator<Map<String, Object>>, Closeable {
+
+    private final Index index;
+    private final Query query;
+    private final int pageSize;
+    private final int prefetchDepth;
+    private final Executor executor;
+
+    private final LinkedList<Future<SearchResults>> pages = new LinkedList<Future<SearchResults>>();
+    private Iterator<Map<String, Object>> current = Collections
+            .<Map<String, Object>> emptyList().iterator();
+    private int nextStart;
+    private long matches = -1;
+    private boolean exhausted;
+    private boolean closed;
+
+    /**
+     * @param index
+     *            the index to scan
+     * @param query
+     *            the query to scan. Its start, if any, is where the scan
+     *            begins; its length is ignored in favor of {@code pageSize}.
+     *            The query is copied, later changes to it have no effect.
+     * @param pageSize
+     *            number of hits requested per search call
+     * @param prefetchDepth
+     *            number of pages requested ahead of the one being consumed. 0
+     *            fetches pages serially, on demand.
+     * @param executor
+     *            the executor pages are fetched on, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public ResultScanner(Index index, Query query, int pageSize,
+            int prefetchDepth, Executor executor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException(
+                    "prefetchDepth must be non-negative");
+        }
+        this.index = index;
+        this.query = query.copy();
+        this.pageSize = pageSize;
+        this.prefetchDepth = prefetchDepth;
+        this.executor = executor;
+        this.nextStart = query.start == null ? 0 : query.start;
+    }
+
+    /**
+     * @return the number of matches reported by the last fetched page, or -1
+     *         if no page was fetched yet
+     */
+    public long getMatches() {
+        return matches;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (closed || exhausted) {
+                return false;
+            }
+            fillPrefetchQueue(1);
+            if (pages.isEmpty()) {
+                exhausted = true;
+                return false;
+            }
+            SearchResults page = await(pages.removeFirst());
+            matches = page.matches;
+            List<Map<String, Object>> results = page.results;
+            if (results == null || results.size() < pageSize) {
+                // a short page is the last one, whatever matches says
+                exhausted = true;
+                cancelPending();
+            } else {
+                // start fetching what follows while this page is consumed
+                fillPrefetchQueue(prefetchDepth);
+            }
+            current = results == null ? Collections
+                    .<Map<String, Object>> emptyList().iterator() : results
+                    .iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cancels pending prefetches. The scanner returns no more hits afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cancelPending();
+    }
+
+    private void cancelPending() {
+        for (Future<SearchResults> page : pages) {
+            page.cancel(true);
+        }
+        pages.clear();
+    }
+
+    private void fillPrefetchQueue(int depth) {
+        if (matches < 0) {
+            // until the first page arrives the number of matches is unknown,
+            // so only that page is requested
+            depth = Math.min(depth, 1);
+        }
+        while (pages.size() < depth && (matches < 0 || nextStart < matches)) {
+            pages.addLast(fetch(nextStart));
+            nextStart += pageSize;
+        }
+    }
+
+    private Future<SearchResults> fetch(int start) {
+        final Query page = query.copy().withStart(start).withLength(pageSize);
+        FutureTask<SearchResults> task = new FutureTask<SearchResults>(
+                new Callable<SearchResults>() {
+                    @Override
+                    public SearchResults call() throws Exception {
+                        return index.search(page);
+                    }
+                });
+        executor.execute(task);
+        return task;
+    }
+
+    private SearchResults await(Future<SearchResults> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
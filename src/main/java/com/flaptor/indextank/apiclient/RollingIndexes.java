@@ -0,0 +1,325 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+/**
+ * A time-partitioned series of indexes, one per fixed-size time bucket.
+ * <p>
+ * Buckets are named {@code <prefix>-<yyyyMMddHHmm>} after the UTC start of
+ * the period they cover. Writes go to the bucket of the document's timestamp
+ * (usually the current one), searches only reach the buckets overlapping the
+ * requested time range, and {@link #maintain()} drops the buckets that fell
+ * out of the retention window.
+ * <p>
+ * A bucket only takes traffic once it is provisioned: created, started and
+ * with the configured scoring functions installed. {@link #maintain()}
+ * provisions the next bucket ahead of time, so that switching buckets
+ * doesn't stall writers; a writer reaching an unprovisioned bucket
+ * provisions it itself.
+ *
+ * @author flaptor
+ */
+public class RollingIndexes {
+
+    private final ApiClient client;
+    private final String prefix;
+    private final long bucketMillis;
+    private final long retentionMillis;
+    private final Map<Integer, String> functions;
+    private final Executor executor;
+
+    private long provisionTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private long provisionLeadMillis;
+
+    // bucket start -> provisioned index
+    private final ConcurrentSkipListMap<Long, Index> buckets = new ConcurrentSkipListMap<Long, Index>();
+    private final ConcurrentHashMap<Long, ReentrantLock> provisioningLocks = new ConcurrentHashMap<Long, ReentrantLock>();
+
+    /**
+     * @param client
+     *            client used to create, list and delete the buckets
+     * @param prefix
+     *            prefix of the bucket names. No other index in the account
+     *            should start with {@code prefix + "-"}.
+     * @param bucketMillis
+     *            length of the period covered by each bucket, a whole
+     *            number of minutes
+     * @param retentionMillis
+     *            buckets whose period ended longer than this ago are dropped
+     * @param functions
+     *            scoring functions to install on every new bucket, by
+     *            function index
+     * @param executor
+     *            executor used for fan-out searches, usually
+     *            {@link IndexTankClient#getExecutor()}
+     */
+    public RollingIndexes(ApiClient client, String prefix, long bucketMillis,
+            long retentionMillis, Map<Integer, String> functions,
+            Executor executor) {
+        // bucket names have minute precision, so buckets must start on a
+        // minute for their names to parse back to their start
+        if (bucketMillis < TimeUnit.MINUTES.toMillis(1)
+                || bucketMillis % TimeUnit.MINUTES.toMillis(1) != 0) {
+            throw new IllegalArgumentException(
+                    "Buckets must be a whole number of minutes long");
+        }
+        this.client = client;
+        this.prefix = prefix;
+        this.bucketMillis = bucketMillis;
+        this.retentionMillis = retentionMillis;
+        this.functions = new HashMap<Integer, String>(functions);
+        this.executor = executor;
+        this.provisionLeadMillis = bucketMillis / 10;
+    }
+
+    /**
+     * @param millis
+     *            how long to wait for a new bucket to start. Defaults to 5
+     *            minutes.
+     */
+    public RollingIndexes withProvisionTimeout(long millis) {
+        this.provisionTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis
+     *            how long before its period starts {@link #maintain()}
+     *            provisions a bucket. Defaults to a tenth of the bucket
+     *            length; should be longer than the maintenance period.
+     */
+    public RollingIndexes withProvisionLead(long millis) {
+        this.provisionLeadMillis = millis;
+        return this;
+    }
+
+    /**
+     * @return the provisioned bucket for the current time
+     */
+    public Index getWriteIndex() throws IOException {
+        return getIndexFor(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the provisioned bucket covering the given timestamp, creating
+     *         it if needed
+     * @throws IllegalArgumentException
+     *             if the timestamp falls in a bucket already out of the
+     *             retention window, or more than the provisioning lead into
+     *             the future: its bucket would be dropped by the next
+     *             {@link #maintain()}, or take up an index long before use
+     */
+    public Index getIndexFor(long timestampMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        long bucket = bucketStart(timestampMillis);
+        if (bucket + bucketMillis + retentionMillis <= now) {
+            throw new IllegalArgumentException("Timestamp " + timestampMillis
+                    + " is past the retention window");
+        }
+        if (timestampMillis > now + provisionLeadMillis) {
+            throw new IllegalArgumentException("Timestamp " + timestampMillis
+                    + " is more than " + provisionLeadMillis
+                    + "ms in the future");
+        }
+        Index index = buckets.get(bucket);
+        return index != null ? index : provision(bucket);
+    }
+
+    /**
+     * Searches the buckets that overlap the given time range and merges their
+     * results. Buckets that don't exist are skipped.
+     */
+    public FederatedSearch.Results search(Query query, long fromMillis,
+            long toMillis, long timeout, TimeUnit unit) {
+        List<Index> targets = new ArrayList<Index>(buckets.subMap(
+                bucketStart(fromMillis), true, bucketStart(toMillis), true)
+                .values());
+        return FederatedSearch.execute(targets, query, timeout, unit,
+                FederatedSearch.BY_RELEVANCE, executor);
+    }
+
+    /**
+     * Refreshes the set of known buckets from the account, deletes the
+     * expired ones and provisions the current bucket and, if its period
+     * starts within the provisioning lead, the next one.
+     *
+     * @return the names of the deleted buckets
+     */
+    public List<String> maintain() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<Long, Index> existing = new HashMap<Long, Index>();
+        for (Index index : client.listIndexes()) {
+            Long bucket = parseBucket(index.getName());
+            if (bucket != null) {
+                existing.put(bucket, index);
+            }
+        }
+
+        // forget buckets deleted elsewhere, adopt the ones another process
+        // already provisioned
+        buckets.keySet().retainAll(existing.keySet());
+        for (Entry<Long, Index> entry : existing.entrySet()) {
+            if (!buckets.containsKey(entry.getKey())
+                    && isStarted(entry.getValue())) {
+                buckets.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+
+        List<String> deleted = new ArrayList<String>();
+        for (Entry<Long, Index> entry : existing.entrySet()) {
+            if (entry.getKey() + bucketMillis + retentionMillis <= now) {
+                buckets.remove(entry.getKey());
+                try {
+                    entry.getValue().delete();
+                } catch (IndexDoesNotExistException e) {
+                    // already gone
+                }
+                deleted.add(entry.getValue().getName());
+            }
+        }
+
+        getIndexFor(now);
+        if (bucketStart(now + provisionLeadMillis) != bucketStart(now)) {
+            getIndexFor(now + provisionLeadMillis);
+        }
+
+        Collections.sort(deleted);
+        return deleted;
+    }
+
+    /**
+     * Runs {@link #maintain()} periodically on the given scheduler. Failures
+     * are retried on the next run.
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService scheduler,
+            long period, TimeUnit unit) {
+        return scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (IOException e) {
+                    // retried on the next run
+                } catch (RuntimeException e) {
+                    // retried on the next run
+                }
+            }
+        }, 0, period, unit);
+    }
+
+    private Index provision(long bucket) throws IOException {
+        ReentrantLock lock = new ReentrantLock();
+        ReentrantLock existing = provisioningLocks.putIfAbsent(bucket, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+
+        lock.lock();
+        try {
+            Index index = buckets.get(bucket);
+            if (index != null) {
+                return index;
+            }
+
+            index = client.getIndex(bucketName(bucket));
+            try {
+                index.create();
+            } catch (IndexAlreadyExistsException e) {
+                // created by another writer or a previous run; still
+                // make sure it is started and has its functions
+            } catch (MaximumIndexesExceededException e) {
+                throw new IOException("Cannot create bucket "
+                        + index.getName() + ": " + e.getMessage());
+            }
+
+            awaitStarted(index);
+            try {
+                for (Entry<Integer, String> function : functions.entrySet()) {
+                    index.addFunction(function.getKey(), function.getValue());
+                }
+            } catch (InvalidSyntaxException e) {
+                throw new IllegalArgumentException(e);
+            } catch (IndexDoesNotExistException e) {
+                throw new IOException("Bucket " + index.getName()
+                        + " was deleted while being provisioned");
+            }
+
+            buckets.put(bucket, index);
+            return index;
+        } finally {
+            provisioningLocks.remove(bucket, lock);
+            lock.unlock();
+        }
+    }
+
+    private static boolean isStarted(Index index) throws IOException {
+        try {
+            // listed indexes come with their metadata, no extra call is made
+            return Boolean.TRUE.equals(index.getMetadata().get("started"));
+        } catch (IndexDoesNotExistException e) {
+            return false;
+        }
+    }
+
+    private void awaitStarted(Index index) throws IOException {
+        try {
+            if (!index.awaitStarted(provisionTimeoutMillis,
+                    TimeUnit.MILLISECONDS)) {
+                throw new IOException("Bucket " + index.getName()
+                        + " did not start in " + provisionTimeoutMillis
+                        + "ms");
+            }
+        } catch (IndexDoesNotExistException e) {
+            throw new IOException("Bucket " + index.getName()
+                    + " was deleted while being provisioned");
+        }
+    }
+
+    private long bucketStart(long timestampMillis) {
+        return timestampMillis - (((timestampMillis % bucketMillis) + bucketMillis) % bucketMillis);
+    }
+
+    String bucketName(long bucketStart) {
+        return prefix + "-" + bucketFormat().format(bucketStart);
+    }
+
+    private Long parseBucket(String name) {
+        if (name == null || !name.startsWith(prefix + "-")
+                || name.length() != prefix.length() + 13) {
+            return null;
+        }
+        try {
+            long start = bucketFormat().parse(
+                    name.substring(prefix.length() + 1)).getTime();
+            return bucketStart(start) == start ? start : null;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static DateFormat bucketFormat() {
+        DateFormat format = new SimpleDateFormat("yyyyMMddHHmm");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+}
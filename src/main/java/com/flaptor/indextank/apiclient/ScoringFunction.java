@@ -0,0 +1,628 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A compiled IndexTank scoring function, which can be evaluated locally.
+ * <p>
+ * Understands the function syntax accepted by {@link Index#addFunction}:
+ * numbers, {@code + - * /}, parentheses, and
+ * <ul>
+ * <li>{@code relevance}, {@code rel} or {@code r}: the query relevance of the
+ * document</li>
+ * <li>{@code age} or {@code doc.age}: seconds since the document's timestamp</li>
+ * <li>{@code doc.var[n]} or {@code d[n]}: a document variable</li>
+ * <li>{@code query.var[n]} or {@code q[n]}: a query variable</li>
+ * <li>{@code abs, ln, log, sqrt, exp, pow, max, min}, {@code km} and
+ * {@code miles} (distance between two lat/long pairs, in degrees), and
+ * {@code bit(x, n)} (the n-th bit of x)</li>
+ * </ul>
+ * Compiling rejects definitions the server would reject, so they can be
+ * checked before calling {@code addFunction}; evaluating makes it possible to
+ * re-rank hits for new query variables without another search. Missing
+ * variables evaluate to 0.
+ *
+ * @author flaptor
+ */
+public abstract class ScoringFunction {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+
+    /**
+     * The inputs of an evaluation. Instances can be reused across
+     * evaluations to avoid garbage.
+     */
+    public static class Inputs {
+        public double relevance;
+        public double age;
+        public Map<Integer, ? extends Number> documentVariables = Collections
+                .<Integer, Number> emptyMap();
+        public Map<Integer, ? extends Number> queryVariables = Collections
+                .<Integer, Number> emptyMap();
+    }
+
+    private final String definition;
+
+    ScoringFunction(String definition) {
+        this.definition = definition;
+    }
+
+    public abstract double evaluate(Inputs inputs);
+
+    public String getDefinition() {
+        return definition;
+    }
+
+    @Override
+    public String toString() {
+        return definition;
+    }
+
+    /**
+     * Compiles the given definition.
+     *
+     * @throws InvalidSyntaxException
+     *             if the definition is not a valid function
+     */
+    public static ScoringFunction compile(String definition)
+            throws InvalidSyntaxException {
+        if (definition == null) {
+            throw new NullPointerException("definition must be non-null");
+        }
+        final Node root = new Parser(definition).parse();
+        return new ScoringFunction(definition) {
+            @Override
+            public double evaluate(Inputs inputs) {
+                return root.eval(inputs);
+            }
+        };
+    }
+
+    /**
+     * Compiles the functions returned by {@link Index#listFunctions()}.
+     *
+     * @return the compiled functions, by function index
+     */
+    public static Map<Integer, ScoringFunction> compileAll(
+            Map<String, String> functions) throws InvalidSyntaxException {
+        Map<Integer, ScoringFunction> compiled = new HashMap<Integer, ScoringFunction>();
+        for (Entry<String, String> function : functions.entrySet()) {
+            compiled.put(Integer.valueOf(function.getKey()),
+                    compile(function.getValue()));
+        }
+        return compiled;
+    }
+
+    /**
+     * Sorts search hits by this function, best first, for the given query
+     * variables. The hits need their {@code query_relevance_score} and, if the
+     * function uses them, their document variables (see
+     * {@link IndexTankClient.Query#withFetchVariables()}) and timestamp (fetch
+     * the {@code timestamp} field).
+     *
+     * @param hits
+     *            hits as returned in {@link IndexTankClient.SearchResults#results}
+     * @param queryVariables
+     *            the query variables to score with
+     * @param nowSeconds
+     *            the current time, in seconds since the epoch, to compute ages
+     * @return a sorted copy of the hits
+     */
+    public List<Map<String, Object>> rerank(List<Map<String, Object>> hits,
+            Map<Integer, Float> queryVariables, long nowSeconds) {
+        final Map<Map<String, Object>, Double> scores = new IdentityHashMap<Map<String, Object>, Double>();
+        Inputs inputs = new Inputs();
+        inputs.queryVariables = queryVariables;
+        for (Map<String, Object> hit : hits) {
+            inputs.relevance = number(hit.get("query_relevance_score"));
+            Object timestamp = hit.get("timestamp");
+            inputs.age = timestamp == null ? 0 : nowSeconds - number(timestamp);
+            inputs.documentVariables = documentVariables(hit);
+            scores.put(hit, evaluate(inputs));
+        }
+
+        List<Map<String, Object>> sorted = new ArrayList<Map<String, Object>>(
+                hits);
+        Collections.sort(sorted, new Comparator<Map<String, Object>>() {
+            @Override
+            public int compare(Map<String, Object> a, Map<String, Object> b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        return sorted;
+    }
+
+    private static Map<Integer, Double> documentVariables(
+            Map<String, Object> hit) {
+        Map<Integer, Double> variables = new HashMap<Integer, Double>();
+        for (Entry<String, Object> entry : hit.entrySet()) {
+            if (entry.getKey().startsWith("variable_")) {
+                try {
+                    variables.put(Integer.valueOf(entry.getKey().substring(9)),
+                            number(entry.getValue()));
+                } catch (NumberFormatException e) {
+                    // not a variable
+                }
+            }
+        }
+        return variables;
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private interface Node {
+        double eval(Inputs inputs);
+    }
+
+    private static class Constant implements Node {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(Inputs inputs) {
+            return value;
+        }
+    }
+
+    private static double variable(Map<Integer, ? extends Number> variables,
+            int index) {
+        Number value = variables.get(index);
+        return value == null ? 0 : value.doubleValue();
+    }
+
+    private static double distance(double radius, double lat1, double lng1,
+            double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2)
+                * Math.sin(dLng / 2);
+        return radius * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Recursive descent parser building the evaluation tree. Subtrees without
+     * inputs are folded into constants.
+     */
+    private static class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Node parse() throws InvalidSyntaxException {
+            skipSpaces();
+            if (position == text.length()) {
+                throw error("Empty function");
+            }
+            Node node = expression();
+            skipSpaces();
+            if (position != text.length()) {
+                throw error("Unexpected '" + text.charAt(position) + "'");
+            }
+            return node;
+        }
+
+        private Node expression() throws InvalidSyntaxException {
+            Node node = term();
+            while (true) {
+                if (accept('+')) {
+                    node = fold(new Binary('+', node, term()));
+                } else if (accept('-')) {
+                    node = fold(new Binary('-', node, term()));
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node term() throws InvalidSyntaxException {
+            Node node = unary();
+            while (true) {
+                if (accept('*')) {
+                    node = fold(new Binary('*', node, unary()));
+                } else if (accept('/')) {
+                    node = fold(new Binary('/', node, unary()));
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node unary() throws InvalidSyntaxException {
+            if (accept('-')) {
+                return fold(new Binary('-', new Constant(0), unary()));
+            }
+            if (accept('+')) {
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary() throws InvalidSyntaxException {
+            skipSpaces();
+            if (position == text.length()) {
+                throw error("Unexpected end of function");
+            }
+            char c = text.charAt(position);
+            if (accept('(')) {
+                Node node = expression();
+                expect(')');
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return number();
+            }
+            if (Character.isLetter(c)) {
+                return identifier();
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        private Node number() throws InvalidSyntaxException {
+            int start = position;
+            while (position < text.length()
+                    && (Character.isDigit(text.charAt(position)) || text
+                            .charAt(position) == '.')) {
+                position++;
+            }
+            if (position < text.length()
+                    && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+                position++;
+                if (position < text.length()
+                        && (text.charAt(position) == '-' || text
+                                .charAt(position) == '+')) {
+                    position++;
+                }
+                while (position < text.length()
+                        && Character.isDigit(text.charAt(position))) {
+                    position++;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(text.substring(start,
+                        position)));
+            } catch (NumberFormatException e) {
+                throw error("Invalid number '"
+                        + text.substring(start, position) + "'");
+            }
+        }
+
+        private Node identifier() throws InvalidSyntaxException {
+            int start = position;
+            while (position < text.length()
+                    && (Character.isLetterOrDigit(text.charAt(position))
+                            || text.charAt(position) == '.' || text
+                            .charAt(position) == '_')) {
+                position++;
+            }
+            String name = text.substring(start, position);
+
+            if (name.equals("relevance") || name.equals("rel")
+                    || name.equals("r")) {
+                return new Node() {
+                    @Override
+                    public double eval(Inputs inputs) {
+                        return inputs.relevance;
+                    }
+                };
+            }
+            if (name.equals("age") || name.equals("doc.age")) {
+                return new Node() {
+                    @Override
+                    public double eval(Inputs inputs) {
+                        return inputs.age;
+                    }
+                };
+            }
+            if (name.equals("doc.var") || name.equals("d")) {
+                final int index = subscript();
+                return new Node() {
+                    @Override
+                    public double eval(Inputs inputs) {
+                        return variable(inputs.documentVariables, index);
+                    }
+                };
+            }
+            if (name.equals("query.var") || name.equals("q")) {
+                final int index = subscript();
+                return new Node() {
+                    @Override
+                    public double eval(Inputs inputs) {
+                        return variable(inputs.queryVariables, index);
+                    }
+                };
+            }
+
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == '(') {
+                return call(name, start);
+            }
+            position = start;
+            throw error("Unknown variable '" + name + "'");
+        }
+
+        private int subscript() throws InvalidSyntaxException {
+            expect('[');
+            skipSpaces();
+            int start = position;
+            while (position < text.length()
+                    && Character.isDigit(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("Expected a variable number");
+            }
+            int index = Integer.parseInt(text.substring(start, position));
+            expect(']');
+            return index;
+        }
+
+        private Node call(String name, int start) throws InvalidSyntaxException {
+            expect('(');
+            final List<Node> arguments = new ArrayList<Node>();
+            if (!accept(')')) {
+                do {
+                    arguments.add(expression());
+                } while (accept(','));
+                expect(')');
+            }
+
+            Integer arity = FUNCTIONS.get(name);
+            if (arity == null) {
+                position = start;
+                throw error("Unknown function '" + name + "'");
+            }
+            if (arity != arguments.size()) {
+                position = start;
+                throw error("Function '" + name + "' takes " + arity
+                        + " arguments, " + arguments.size() + " given");
+            }
+            return fold(Call.of(name, arguments.toArray(new Node[arity])));
+        }
+
+        private Node fold(Node node) {
+            if (node instanceof Binary) {
+                Binary binary = (Binary) node;
+                if (!(binary.left instanceof Constant && binary.right instanceof Constant)) {
+                    return node;
+                }
+            } else if (node instanceof Call) {
+                for (Node argument : ((Call) node).arguments) {
+                    if (!(argument instanceof Constant)) {
+                        return node;
+                    }
+                }
+            } else {
+                return node;
+            }
+            return new Constant(node.eval(null));
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) throws InvalidSyntaxException {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void skipSpaces() {
+            while (position < text.length()
+                    && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private InvalidSyntaxException error(String message) {
+            return new InvalidSyntaxException(message + " at position "
+                    + position + " of '" + text + "'");
+        }
+    }
+
+    private static final Map<String, Integer> FUNCTIONS = new HashMap<String, Integer>();
+    static {
+        FUNCTIONS.put("abs", 1);
+        FUNCTIONS.put("ln", 1);
+        FUNCTIONS.put("log", 1);
+        FUNCTIONS.put("sqrt", 1);
+        FUNCTIONS.put("exp", 1);
+        FUNCTIONS.put("pow", 2);
+        FUNCTIONS.put("max", 2);
+        FUNCTIONS.put("min", 2);
+        FUNCTIONS.put("bit", 2);
+        FUNCTIONS.put("km", 4);
+        FUNCTIONS.put("miles", 4);
+    }
+
+    private static class Binary implements Node {
+        final char operator;
+        final Node left;
+        final Node right;
+
+        Binary(char operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(Inputs inputs) {
+            double a = left.eval(inputs);
+            double b = right.eval(inputs);
+            switch (operator) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            default:
+                return a / b;
+            }
+        }
+    }
+
+    /**
+     * A function call, resolved to the subclass for its function when
+     * parsed, so evaluating it doesn't look the function up.
+     */
+    private abstract static class Call implements Node {
+        final Node[] arguments;
+
+        Call(Node[] arguments) {
+            this.arguments = arguments;
+        }
+
+        static Call of(String name, Node[] arguments) {
+            switch (name) {
+            case "abs":
+                return new UnaryCall(arguments) {
+                    @Override
+                    double apply(double a) {
+                        return Math.abs(a);
+                    }
+                };
+            case "ln":
+            case "log":
+                return new UnaryCall(arguments) {
+                    @Override
+                    double apply(double a) {
+                        return Math.log(a);
+                    }
+                };
+            case "sqrt":
+                return new UnaryCall(arguments) {
+                    @Override
+                    double apply(double a) {
+                        return Math.sqrt(a);
+                    }
+                };
+            case "exp":
+                return new UnaryCall(arguments) {
+                    @Override
+                    double apply(double a) {
+                        return Math.exp(a);
+                    }
+                };
+            case "pow":
+                return new BinaryCall(arguments) {
+                    @Override
+                    double apply(double a, double b) {
+                        return Math.pow(a, b);
+                    }
+                };
+            case "max":
+                return new BinaryCall(arguments) {
+                    @Override
+                    double apply(double a, double b) {
+                        return Math.max(a, b);
+                    }
+                };
+            case "min":
+                return new BinaryCall(arguments) {
+                    @Override
+                    double apply(double a, double b) {
+                        return Math.min(a, b);
+                    }
+                };
+            case "bit":
+                return new BinaryCall(arguments) {
+                    @Override
+                    double apply(double a, double b) {
+                        return ((long) a >> (long) b) & 1;
+                    }
+                };
+            case "km":
+                return new Distance(EARTH_RADIUS_KM, arguments);
+            case "miles":
+                return new Distance(EARTH_RADIUS_MILES, arguments);
+            default:
+                throw new IllegalArgumentException("Unknown function " + name);
+            }
+        }
+    }
+
+    private abstract static class UnaryCall extends Call {
+        private final Node a;
+
+        UnaryCall(Node[] arguments) {
+            super(arguments);
+            this.a = arguments[0];
+        }
+
+        abstract double apply(double a);
+
+        @Override
+        public double eval(Inputs inputs) {
+            return apply(a.eval(inputs));
+        }
+    }
+
+    private abstract static class BinaryCall extends Call {
+        private final Node a;
+        private final Node b;
+
+        BinaryCall(Node[] arguments) {
+            super(arguments);
+            this.a = arguments[0];
+            this.b = arguments[1];
+        }
+
+        abstract double apply(double a, double b);
+
+        @Override
+        public double eval(Inputs inputs) {
+            return apply(a.eval(inputs), b.eval(inputs));
+        }
+    }
+
+    private static class Distance extends Call {
+        private final double radius;
+
+        Distance(double radius, Node[] arguments) {
+            super(arguments);
+            this.radius = radius;
+        }
+
+        @Override
+        public double eval(Inputs inputs) {
+            return distance(radius, arguments[0].eval(inputs),
+                    arguments[1].eval(inputs), arguments[2].eval(inputs),
+                    arguments[3].eval(inputs));
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * A logical index spread over several physical indexes.
+ * <p>
+ * Every document lives in exactly one shard, chosen by consistent hashing of
+ * its docid, so all the per-document operations go to a single shard.
+ * Searches are sent to every shard and merged with {@link FederatedSearch};
+ * functions are installed on every shard.
+ * <p>
+ * Since shards are placed on the hash ring by their position in the list,
+ * appending a shard only relocates about {@code 1 / shards} of the documents.
+ * Reordering or removing shards relocates many more. Relocated documents are
+ * not moved automatically: they have to be re-added.
+ *
+ * @author flaptor
+ */
+public class ShardedIndex implements Index {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<Index> shards;
+    private final Executor executor;
+    private final long searchTimeoutMillis;
+    private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+    /**
+     * @param shards
+     *            the physical indexes
+     * @param executor
+     *            the executor used to reach the shards concurrently, usually
+     *            {@link IndexTankClient#getExecutor()}
+     * @param searchTimeoutMillis
+     *            how long a search waits for the slowest shard
+     */
+    public ShardedIndex(List<? extends Index> shards, Executor executor,
+            long searchTimeoutMillis) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<Index>(shards));
+        this.executor = executor;
+        this.searchTimeoutMillis = searchTimeoutMillis;
+
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash("shard-" + shard + "-" + node), shard);
+            }
+        }
+    }
+
+    public List<Index> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the shard the given document belongs to
+     */
+    public Index getShard(String documentId) {
+        if (null == documentId)
+            throw new IllegalArgumentException("documentId can not be null");
+        return shards.get(shardNumber(documentId));
+    }
+
+    private int shardNumber(String documentId) {
+        SortedMap<Long, Integer> tail = ring.tailMap(hash(documentId));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail
+                .get(tail.firstKey());
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 chars, followed by the MurmurHash3
+     * finalizer to spread similar docids over the ring.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the names of the shards, comma separated
+     */
+    @Override
+    public String getName() {
+        List<String> names = new ArrayList<String>();
+        for (Index shard : shards) {
+            names.add(shard.getName());
+        }
+        return Query.join(names, ",");
+    }
+
+    @Override
+    public SearchResults search(String query) throws IOException,
+            InvalidSyntaxException {
+        return search(Query.forString(query));
+    }
+
+    /**
+     * Searches every shard and merges the results. Fails, as a single index
+     * would, if any shard fails or doesn't answer in time.
+     */
+    @Override
+    public SearchResults search(Query query) throws IOException,
+            InvalidSyntaxException {
+        FederatedSearch.Results results = FederatedSearch.execute(shards,
+                query, searchTimeoutMillis, TimeUnit.MILLISECONDS,
+                FederatedSearch.BY_RELEVANCE, executor);
+
+        for (Exception failure : results.failures.values()) {
+            if (failure instanceof InvalidSyntaxException) {
+                throw (InvalidSyntaxException) failure;
+            } else if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else {
+                throw new RuntimeException(failure);
+            }
+        }
+        if (!results.timedOut.isEmpty()) {
+            throw new SocketTimeoutException(results.timedOut.size() + " of "
+                    + shards.size() + " shards did not answer in "
+                    + searchTimeoutMillis + "ms");
+        }
+
+        return results;
+    }
+
+    /**
+     * Creates every shard. Fails with {@link IndexAlreadyExistsException}
+     * only if all of them already existed. If creating a shard fails
+     * otherwise, the shards this call created are deleted again, as far as
+     * possible, so that a failed create doesn't use up the account's
+     * indexes.
+     */
+    @Override
+    public void create() throws IOException, IndexAlreadyExistsException,
+            MaximumIndexesExceededException {
+        IndexAlreadyExistsException existing = null;
+        List<Index> created = new ArrayList<Index>();
+        boolean completed = false;
+        try {
+            for (Index shard : shards) {
+                try {
+                    shard.create();
+                    created.add(shard);
+                } catch (IndexAlreadyExistsException e) {
+                    existing = e;
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                rollBack(created);
+            }
+        }
+        if (created.isEmpty()) {
+            throw existing;
+        }
+    }
+
+    private static void rollBack(List<Index> created) {
+        for (Index shard : created) {
+            try {
+                shard.delete();
+            } catch (IndexDoesNotExistException e) {
+                // already gone
+            } catch (IOException e) {
+                // left behind, the original failure is reported
+            } catch (RuntimeException e) {
+                // left behind, the original failure is reported
+            }
+        }
+    }
+
+    /**
+     * Deletes every shard. Fails with {@link IndexDoesNotExistException} only
+     * if none of them existed.
+     */
+    @Override
+    public void delete() throws IOException, IndexDoesNotExistException {
+        IndexDoesNotExistException missing = null;
+        int deleted = 0;
+        for (Index shard : shards) {
+            try {
+                shard.delete();
+                deleted++;
+            } catch (IndexDoesNotExistException e) {
+                missing = e;
+            }
+        }
+        if (deleted == 0) {
+            throw missing;
+        }
+    }
+
+    /**
+     * Splits the batch by shard, indexes the parts concurrently and puts the
+     * results back in the original order. If some shards fail, the documents
+     * sent to them are reported as failed, with the shard's error, and the
+     * rest keep their results; only if every shard fails is the error
+     * thrown, as a single index would.
+     */
+    @Override
+    public BatchResults addDocuments(Iterable<Document> documents)
+            throws IOException, IndexDoesNotExistException {
+        List<Document> all = new ArrayList<Document>();
+        final Map<Integer, List<Document>> byShard = new HashMap<Integer, List<Document>>();
+        Map<Integer, List<Integer>> positions = new HashMap<Integer, List<Integer>>();
+
+        for (Document document : documents) {
+            int shard = shardNumber(document.getId());
+            List<Document> part = byShard.get(shard);
+            if (part == null) {
+                part = new ArrayList<Document>();
+                byShard.put(shard, part);
+                positions.put(shard, new ArrayList<Integer>());
+            }
+            part.add(document);
+            positions.get(shard).add(all.size());
+            all.add(document);
+        }
+
+        Map<Integer, FutureTask<BatchResults>> tasks = new HashMap<Integer, FutureTask<BatchResults>>();
+        for (final Integer shard : byShard.keySet()) {
+            FutureTask<BatchResults> task = new FutureTask<BatchResults>(
+                    new Callable<BatchResults>() {
+                        @Override
+                        public BatchResults call() throws Exception {
+                            return shards.get(shard).addDocuments(
+                                    byShard.get(shard));
+                        }
+                    });
+            tasks.put(shard, task);
+            executor.execute(task);
+        }
+
+        Boolean[] results = new Boolean[all.size()];
+        String[] errors = new String[all.size()];
+        boolean hasErrors = false;
+        Exception failure = null;
+        int failedShards = 0;
+        for (Map.Entry<Integer, FutureTask<BatchResults>> entry : tasks
+                .entrySet()) {
+            List<Integer> partPositions = positions.get(entry.getKey());
+            BatchResults part;
+            try {
+                part = await(entry.getValue());
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                part = null;
+                failure = e;
+            } catch (IndexDoesNotExistException e) {
+                part = null;
+                failure = e;
+            } catch (RuntimeException e) {
+                part = null;
+                failure = e;
+            }
+            if (part == null) {
+                failedShards++;
+                hasErrors = true;
+                String error = shards.get(entry.getKey()).getName() + ": "
+                        + failure.getMessage();
+                for (int position : partPositions) {
+                    results[position] = false;
+                    errors[position] = error;
+                }
+                continue;
+            }
+            for (int i = 0; i < partPositions.size(); i++) {
+                int position = partPositions.get(i);
+                results[position] = part.getResult(i);
+                if (!results[position]) {
+                    hasErrors = true;
+                    errors[position] = part.getErrorMessage(i);
+                }
+            }
+        }
+
+        if (failedShards > 0 && failedShards == tasks.size()) {
+            // nothing was written
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) failure;
+            } else {
+                throw (RuntimeException) failure;
+            }
+        }
+
+        List<Boolean> resultList = new ArrayList<Boolean>(results.length);
+        Collections.addAll(resultList, results);
+        List<String> errorList = new ArrayList<String>(errors.length);
+        Collections.addAll(errorList, errors);
+        return new BatchResults(resultList, errorList, all, hasErrors);
+    }
+
+    private static <T> T await(FutureTask<T> task) throws IOException,
+            IndexDoesNotExistException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a shard");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof IndexDoesNotExistException) {
+                throw (IndexDoesNotExistException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields)
+            throws IOException, IndexDoesNotExistException {
+        getShard(documentId).addDocument(documentId, fields);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        getShard(documentId).addDocument(documentId, fields, variables);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables, Map<String, String> categories)
+            throws IOException, IndexDoesNotExistException {
+        getShard(documentId).addDocument(documentId, fields, variables,
+                categories);
+    }
+
+    @Override
+    public void deleteDocument(String documentId) throws IOException,
+            IndexDoesNotExistException {
+        getShard(documentId).deleteDocument(documentId);
+    }
+
+    @Override
+    public void updateVariables(String documentId, Map<Integer, Float> variables)
+            throws IOException, IndexDoesNotExistException {
+        getShard(documentId).updateVariables(documentId, variables);
+    }
+
+    @Override
+    public void updateCategories(String documentId,
+            Map<String, String> variables) throws IOException,
+            IndexDoesNotExistException {
+        getShard(documentId).updateCategories(documentId, variables);
+    }
+
+    @Override
+    public void promote(String documentId, String query) throws IOException,
+            IndexDoesNotExistException {
+        getShard(documentId).promote(documentId, query);
+    }
+
+    @Override
+    public void addFunction(Integer functionIndex, String definition)
+            throws IOException, IndexDoesNotExistException,
+            InvalidSyntaxException {
+        for (Index shard : shards) {
+            shard.addFunction(functionIndex, definition);
+        }
+    }
+
+    @Override
+    public void deleteFunction(Integer functionIndex) throws IOException,
+            IndexDoesNotExistException {
+        for (Index shard : shards) {
+            shard.deleteFunction(functionIndex);
+        }
+    }
+
+    /**
+     * @return the functions of the first shard. They are the same on every
+     *         shard as long as they were installed through this index.
+     */
+    @Override
+    public Map<String, String> listFunctions()
+            throws IndexDoesNotExistException, IOException {
+        return shards.get(0).listFunctions();
+    }
+
+    /**
+     * @return true if every shard exists
+     */
+    @Override
+    public boolean exists() throws IOException {
+        for (Index shard : shards) {
+            if (!shard.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every shard has started
+     */
+    @Override
+    public boolean hasStarted() throws IOException, IndexDoesNotExistException {
+        for (Index shard : shards) {
+            if (!shard.hasStarted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for every shard to start, within a single timeout.
+     */
+    @Override
+    public boolean awaitStarted(long timeout, TimeUnit unit)
+            throws IOException, IndexDoesNotExistException {
+        long timeoutNanos = unit.toNanos(timeout);
+        long startNanos = System.nanoTime();
+        for (Index shard : shards) {
+            long remaining = Math.max(0, timeoutNanos
+                    - (System.nanoTime() - startNanos));
+            if (!shard.awaitStarted(remaining, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a startup that completes once every shard has started
+     */
+    @Override
+    public IndexStartup onStarted() {
+        final IndexStartup all = new IndexStartup();
+        final AtomicInteger pending = new AtomicInteger(shards.size());
+        for (Index shard : shards) {
+            final IndexStartup started = shard.onStarted();
+            started.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.get();
+                        if (pending.decrementAndGet() == 0) {
+                            all.complete(ShardedIndex.this);
+                        }
+                    } catch (ExecutionException e) {
+                        all.fail(e.getCause());
+                    } catch (InterruptedException e) {
+                        all.fail(e);
+                    }
+                }
+            }, executor);
+        }
+        return all;
+    }
+
+    /**
+     * @return the codes of the shards, comma separated
+     */
+    @Override
+    public String getCode() throws IOException, IndexDoesNotExistException {
+        List<String> codes = new ArrayList<String>();
+        for (Index shard : shards) {
+            codes.add(shard.getCode());
+        }
+        return Query.join(codes, ",");
+    }
+
+    /**
+     * @return the creation time of the oldest shard
+     */
+    @Override
+    public Date getCreationTime() throws IOException,
+            IndexDoesNotExistException {
+        Date oldest = null;
+        for (Index shard : shards) {
+            Date created = shard.getCreationTime();
+            if (created != null && (oldest == null || created.before(oldest))) {
+                oldest = created;
+            }
+        }
+        return oldest;
+    }
+
+    @Override
+    public void refreshMetadata() throws IOException,
+            IndexDoesNotExistException {
+        for (Index shard : shards) {
+            shard.refreshMetadata();
+        }
+    }
+
+    /**
+     * @return the metadata of every shard under "shards", plus "started" and
+     *         "size" aggregated over all of them
+     */
+    @Override
+    public Map<String, Object> getMetadata() throws IOException,
+            IndexDoesNotExistException {
+        List<Map<String, Object>> metadatas = new ArrayList<Map<String, Object>>();
+        boolean started = true;
+        long size = 0;
+        for (Index shard : shards) {
+            Map<String, Object> metadata = shard.getMetadata();
+            metadatas.add(metadata);
+            started &= Boolean.TRUE.equals(metadata.get("started"));
+            Object shardSize = metadata.get("size");
+            if (shardSize instanceof Number) {
+                size += ((Number) shardSize).longValue();
+            }
+        }
+
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("started", started);
+        metadata.put("size", size);
+        metadata.put("shards", metadatas);
+        return metadata;
+    }
+}
@@ -0,0 +1,268 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Logs requests slower than a threshold, one JSON object per line: the
+ * endpoint and index, the query parameters in canonical (sorted) order, the
+ * phase timings in milliseconds, the result count and the server's
+ * {@code search_time}.
+ *
+ * <pre>
+ * SlowRequestLog log = new SlowRequestLog(writer, 200, TimeUnit.MILLISECONDS)
+ *         .withSampleRate(0.1).withMaxPerSecond(20);
+ * client.withListener(log);
+ * </pre>
+ *
+ * Requests never wait on the log: captured entries go through a bounded
+ * queue to a writer thread, and are dropped (and counted) when it is full.
+ * Sampling and the per-second cap further limit how much is captured.
+ *
+ * @author flaptor
+ */
+public class SlowRequestLog implements RequestListener, Closeable {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private static class Entry {
+        final long timeMillis = System.currentTimeMillis();
+        final RequestEvent request;
+        final Map<String, String> params;
+
+        Entry(RequestEvent request) {
+            this.request = request;
+            this.params = new TreeMap<String, String>(request.getParams());
+        }
+    }
+
+    // tells the writer thread to stop
+    private static final Entry CLOSE = new Entry(new RequestEvent("", "",
+            null, "", ""));
+
+    private final Writer out;
+    private final long thresholdNanos;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private volatile double sampleRate = 1;
+    private volatile RateLimiter limiter = new RateLimiter(0);
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean closed;
+
+    public SlowRequestLog(Writer out, long threshold, TimeUnit unit) {
+        this(out, threshold, unit, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param out
+     *            where entries are written; only the writer thread uses it
+     * @param queueCapacity
+     *            how many entries can wait to be written before new ones are
+     *            dropped
+     */
+    public SlowRequestLog(Writer out, long threshold, TimeUnit unit,
+            int queueCapacity) {
+        this.out = out;
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "indextank-slow-request-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Captures only a random fraction of the slow requests.
+     *
+     * @param rate
+     *            between 0 and 1; 1 (the default) captures them all
+     * @return this log
+     */
+    public SlowRequestLog withSampleRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException(
+                    "The sample rate must be between 0 and 1");
+        }
+        this.sampleRate = rate;
+        return this;
+    }
+
+    /**
+     * Captures at most this many requests per second, evenly spaced.
+     *
+     * @param maxPerSecond
+     *            the cap, or 0 for none (the default)
+     * @return this log
+     */
+    public SlowRequestLog withMaxPerSecond(double maxPerSecond) {
+        this.limiter = new RateLimiter(maxPerSecond);
+        return this;
+    }
+
+    @Override
+    public void requestStarted(RequestEvent event) {
+    }
+
+    @Override
+    public void requestCompleted(RequestEvent event) {
+        if (event.getTotalNanos() < thresholdNanos || closed) {
+            return;
+        }
+        double rate = sampleRate;
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            return;
+        }
+        if (!limiter.tryAcquire()) {
+            return;
+        }
+        if (queue.offer(new Entry(event))) {
+            captured.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return entries queued for writing so far
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * @return entries dropped because the writer fell behind, or had not
+     *         caught up when the log was closed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return entries lost to write errors
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Writes the queued entries, then closes the writer. Entries not written
+     * within 5 seconds are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // the writer thread may be stuck on a blocked writer, or gone
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+            if (queue.offer(CLOSE, CLOSE_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                writer.join(Math.max(1,
+                        deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            writer.interrupt();
+        }
+        queue.remove(CLOSE);
+        dropped.addAndGet(queue.size());
+        queue.clear();
+        out.close();
+    }
+
+    private void write() {
+        DateFormat dateFormat = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (entry == CLOSE) {
+                flush();
+                return;
+            }
+            try {
+                out.write(format(entry, dateFormat));
+                out.write('\n');
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            } catch (RuntimeException e) {
+                // e.g. a writer failing unchecked: keep the thread alive
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // reported by close()
+        }
+    }
+
+    private static String format(Entry entry, DateFormat dateFormat) {
+        RequestEvent request = entry.request;
+        Map<String, Object> line = new LinkedHashMap<String, Object>();
+        line.put("time", dateFormat.format(new Date(entry.timeMillis)));
+        line.put("method", request.getMethod());
+        line.put("endpoint", request.getEndpoint());
+        line.put("index", request.getIndex());
+        line.put("status", request.getStatus());
+        line.put("total_ms", millis(request.getTotalNanos()));
+        if (request.getServerSearchTimeNanos() >= 0) {
+            line.put("server_ms", millis(request.getServerSearchTimeNanos()));
+        }
+        line.put("wait_ms", millis(request.getConnectionWaitNanos()));
+        line.put("connect_ms", millis(request.getConnectNanos()));
+        line.put("write_ms", millis(request.getWriteNanos()));
+        line.put("first_byte_ms", millis(request.getFirstByteNanos()));
+        line.put("read_ms", millis(request.getReadNanos()));
+        line.put("parse_ms", millis(request.getParseNanos()));
+        line.put("results", request.getResultCount());
+        line.put("request_bytes", request.getRequestBytes());
+        line.put("response_bytes", request.getResponseBytes());
+        line.put("params", entry.params);
+        if (request.getFailure() != null) {
+            line.put("failure", request.getFailure().toString());
+        }
+        return JSONValue.toJSONString(line);
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
@@ -0,0 +1,507 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.simple.JSONValue;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * An index whose document writes go to a {@link WriteAheadSpool} first and
+ * are sent to the underlying index by a background thread, so they survive
+ * outages of the service and restarts of the process, and bursts are
+ * absorbed at disk speed.
+ * <p>
+ * {@code addDocument}, {@code addDocuments}, {@code deleteDocument},
+ * {@code updateVariables} and {@code updateCategories} return as soon as the
+ * write is in the spool; everything else goes straight to the underlying
+ * index. The sender keeps the order of the writes, batching consecutive
+ * additions, and retries with backoff while the index is unreachable or
+ * answers with a server error. Writes the index rejects as invalid (400, or
+ * documents failing in a batch) are counted and skipped. Other client
+ * errors, such as a failed authentication (401, 403), a timeout (408), a
+ * conflict (409) or throttling (429), may clear up, so they are retried too.
+ * Additions too large for one request (413) are sent in smaller batches; a
+ * single document too large is rejected. Any other failure is retried as
+ * well, and {@link #getLastFailure()} tells what is holding the sender back.
+ * <p>
+ * The sender checkpoints its progress in the spool, and on startup resumes
+ * from the last checkpoint. Writes sent after it are sent again, which is
+ * harmless since all of them are idempotent.
+ *
+ * @author flaptor
+ */
+public class SpooledIndex implements Index, Closeable {
+
+    private static final long RETRY_INITIAL_MILLIS = 250;
+    private static final long RETRY_MAX_MILLIS = 30000;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS
+            .toNanos(1);
+
+    private final Index index;
+    private final WriteAheadSpool spool;
+    private final int batchSize;
+    private final Thread sender;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private volatile long sentPosition;
+    private volatile Throwable lastFailure;
+    private volatile boolean closed;
+
+    /**
+     * Starts sending what the spool holds past its checkpoint.
+     *
+     * @param batchSize
+     *            how many consecutive additions to send per
+     *            {@code addDocuments} request
+     */
+    public SpooledIndex(Index index, WriteAheadSpool spool, int batchSize) {
+        this.index = index;
+        this.spool = spool;
+        this.batchSize = batchSize;
+        this.sentPosition = spool.getCheckpoint();
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "indextank-spool-" + index.getName());
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * @return writes the underlying index accepted
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return writes the underlying index rejected, which are not retried
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the last failure the sender retried, or null if the last
+     *         delivery succeeded
+     */
+    public Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return whether every write made so far has been sent
+     */
+    public boolean isDrained() {
+        return sentPosition >= spool.getEnd();
+    }
+
+    /**
+     * Waits until the writes made before the call have been sent.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitDrained(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long target = spool.getEnd();
+        long nanos = unit.toNanos(timeout);
+        progressLock.lock();
+        try {
+            while (sentPosition < target) {
+                if (nanos <= 0 || closed) {
+                    return false;
+                }
+                nanos = progressed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the sender, checkpoints its progress and closes the spool. Writes
+     * not sent yet stay in the spool for the next run.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        sender.interrupt();
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            spool.checkpoint(sentPosition);
+        } finally {
+            spool.close();
+        }
+    }
+
+    private void send() {
+        List<byte[]> records = new ArrayList<byte[]>();
+        long lastCheckpoint = System.nanoTime();
+        long position = sentPosition;
+        while (!closed) {
+            records.clear();
+            long next = spool.read(position, records, batchSize);
+            if (records.isEmpty()) {
+                position = next;
+                try {
+                    spool.awaitAppend(position, 1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            if (!deliver(records)) {
+                return;
+            }
+            position = next;
+            progressLock.lock();
+            try {
+                sentPosition = position;
+                progressed.signalAll();
+            } finally {
+                progressLock.unlock();
+            }
+            if (System.nanoTime() - lastCheckpoint > CHECKPOINT_INTERVAL_NANOS) {
+                try {
+                    spool.checkpoint(position);
+                } catch (IOException e) {
+                    // retried at the next interval, and at close
+                }
+                lastCheckpoint = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Sends the writes in order, retrying until each is accepted or rejected.
+     *
+     * @return false if interrupted by {@link #close()}
+     */
+    private boolean deliver(List<byte[]> records) {
+        List<Map<String, Object>> writes = new ArrayList<Map<String, Object>>();
+        for (byte[] record : records) {
+            try {
+                Object write = JSONValue.parse(new String(record, "UTF-8"));
+                if (write instanceof Map) {
+                    writes.add((Map<String, Object>) write);
+                } else {
+                    rejected.incrementAndGet();
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        int next = 0;
+        int maxGroup = writes.size();
+        long retryMillis = RETRY_INITIAL_MILLIS;
+        while (next < writes.size()) {
+            int count = 1;
+            while (count < maxGroup && isAddition(writes.get(next))
+                    && next + count < writes.size()
+                    && isAddition(writes.get(next + count))) {
+                count++;
+            }
+            List<Map<String, Object>> group = writes.subList(next, next
+                    + count);
+            try {
+                deliverGroup(group);
+                next += count;
+                retryMillis = RETRY_INITIAL_MILLIS;
+                lastFailure = null;
+                continue;
+            } catch (IOException e) {
+                // unreachable: retry
+                lastFailure = e;
+            } catch (IndexDoesNotExistException e) {
+                // may be (re)created: retry
+                lastFailure = e;
+            } catch (UnexpectedCodeException e) {
+                if (e.httpCode == 400) {
+                    rejected.addAndGet(count);
+                    next += count;
+                    continue;
+                }
+                if (e.httpCode == 413) {
+                    if (count > 1) {
+                        // send the rest of this call in smaller batches
+                        maxGroup = (count + 1) / 2;
+                    } else {
+                        rejected.incrementAndGet();
+                        next++;
+                    }
+                    continue;
+                }
+                // 401, 408, 409, 429, 5xx...: may succeed later
+                lastFailure = e;
+            } catch (IllegalArgumentException e) {
+                // not a valid write
+                rejected.addAndGet(count);
+                next += count;
+                continue;
+            } catch (RuntimeException e) {
+                // e.g. an unparseable response from a proxy: retry, rather
+                // than let the sender die
+                lastFailure = e;
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (closed) {
+                return false;
+            }
+            retryMillis = Math.min(retryMillis * 2, RETRY_MAX_MILLIS);
+        }
+        return true;
+    }
+
+    private void deliverGroup(List<Map<String, Object>> group)
+            throws IOException, IndexDoesNotExistException {
+        Map<String, Object> first = group.get(0);
+        String operation = (String) first.get("op");
+        if (isAddition(first)) {
+            List<Document> documents = new ArrayList<Document>(group.size());
+            for (Map<String, Object> write : group) {
+                documents.add(Document.fromDocumentMap(write));
+            }
+            BatchResults results = index.addDocuments(documents);
+            for (int i = 0; i < documents.size(); i++) {
+                if (results.getResult(i)) {
+                    sent.incrementAndGet();
+                } else {
+                    rejected.incrementAndGet();
+                }
+            }
+            return;
+        }
+
+        Object docid = first.get("docid");
+        if (!(docid instanceof String)) {
+            throw new IllegalArgumentException("Invalid docid");
+        }
+        if ("delete".equals(operation)) {
+            index.deleteDocument((String) docid);
+        } else if ("variables".equals(operation)) {
+            index.updateVariables((String) docid,
+                    Document.variablesFromJson(first.get("variables")));
+        } else if ("categories".equals(operation)) {
+            index.updateCategories((String) docid,
+                    (Map<String, String>) first.get("categories"));
+        } else {
+            throw new IllegalArgumentException("Unknown operation "
+                    + operation);
+        }
+        sent.incrementAndGet();
+    }
+
+    private static boolean isAddition(Map<String, Object> write) {
+        return "add".equals(write.get("op"));
+    }
+
+    private void spool(String operation, Map<String, Object> write)
+            throws IOException {
+        if (closed) {
+            throw new IOException("The index is closed");
+        }
+        write.put("op", operation);
+        spool.append(JSONValue.toJSONString(write).getBytes("UTF-8"));
+    }
+
+    @Override
+    public String getName() {
+        return index.getName();
+    }
+
+    @Override
+    public SearchResults search(String query) throws IOException,
+            InvalidSyntaxException {
+        return index.search(query);
+    }
+
+    @Override
+    public SearchResults search(Query query) throws IOException,
+            InvalidSyntaxException {
+        return index.search(query);
+    }
+
+    @Override
+    public void create() throws IOException, IndexAlreadyExistsException,
+            MaximumIndexesExceededException {
+        index.create();
+    }
+
+    @Override
+    public void delete() throws IOException, IndexDoesNotExistException {
+        index.delete();
+    }
+
+    /**
+     * @return every document as accepted, since they are only spooled
+     */
+    @Override
+    public BatchResults addDocuments(Iterable<Document> documents)
+            throws IOException, IndexDoesNotExistException {
+        List<Document> all = new ArrayList<Document>();
+        for (Document document : documents) {
+            spool("add", document.toDocumentMap());
+            all.add(document);
+        }
+        return new BatchResults(new ArrayList<Boolean>(Collections.nCopies(
+                all.size(), true)), new ArrayList<String>(Collections.nCopies(
+                all.size(), (String) null)), all, false);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields)
+            throws IOException, IndexDoesNotExistException {
+        addDocument(documentId, fields, null, null);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        addDocument(documentId, fields, variables, null);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables, Map<String, String> categories)
+            throws IOException, IndexDoesNotExistException {
+        spool("add", new Document(documentId, fields, variables, categories)
+                .toDocumentMap());
+    }
+
+    @Override
+    public void deleteDocument(String documentId) throws IOException,
+            IndexDoesNotExistException {
+        if (null == documentId)
+            throw new IllegalArgumentException("documentId can not be null");
+        Map<String, Object> write = new HashMap<String, Object>();
+        write.put("docid", documentId);
+        spool("delete", write);
+    }
+
+    @Override
+    public void updateVariables(String documentId, Map<Integer, Float> variables)
+            throws IOException, IndexDoesNotExistException {
+        if (null == documentId)
+            throw new IllegalArgumentException("documentId can not be null");
+        Map<String, Object> write = new HashMap<String, Object>();
+        write.put("docid", documentId);
+        write.put("variables", variables);
+        spool("variables", write);
+    }
+
+    @Override
+    public void updateCategories(String documentId,
+            Map<String, String> variables) throws IOException,
+            IndexDoesNotExistException {
+        if (null == documentId)
+            throw new IllegalArgumentException("documentId can not be null");
+        Map<String, Object> write = new HashMap<String, Object>();
+        write.put("docid", documentId);
+        write.put("categories", variables);
+        spool("categories", write);
+    }
+
+    @Override
+    public void promote(String documentId, String query) throws IOException,
+            IndexDoesNotExistException {
+        index.promote(documentId, query);
+    }
+
+    @Override
+    public void addFunction(Integer functionIndex, String definition)
+            throws IOException, IndexDoesNotExistException,
+            InvalidSyntaxException {
+        index.addFunction(functionIndex, definition);
+    }
+
+    @Override
+    public void deleteFunction(Integer functionIndex) throws IOException,
+            IndexDoesNotExistException {
+        index.deleteFunction(functionIndex);
+    }
+
+    @Override
+    public Map<String, String> listFunctions()
+            throws IndexDoesNotExistException, IOException {
+        return index.listFunctions();
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return index.exists();
+    }
+
+    @Override
+    public boolean hasStarted() throws IOException,
+            IndexDoesNotExistException {
+        return index.hasStarted();
+    }
+
+    @Override
+    public boolean awaitStarted(long timeout, TimeUnit unit)
+            throws IOException, IndexDoesNotExistException {
+        return index.awaitStarted(timeout, unit);
+    }
+
+    @Override
+    public IndexStartup onStarted() {
+        return index.onStarted();
+    }
+
+    @Override
+    public String getCode() throws IOException, IndexDoesNotExistException {
+        return index.getCode();
+    }
+
+    @Override
+    public Date getCreationTime() throws IOException,
+            IndexDoesNotExistException {
+        return index.getCreationTime();
+    }
+
+    @Override
+    public void refreshMetadata() throws IOException,
+            IndexDoesNotExistException {
+        index.refreshMetadata();
+    }
+
+    @Override
+    public Map<String, Object> getMetadata() throws IOException,
+            IndexDoesNotExistException {
+        return index.getMetadata();
+    }
+}
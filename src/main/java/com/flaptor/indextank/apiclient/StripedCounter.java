@@ -0,0 +1,65 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, picked by the calling thread, so
+ * threads updating it concurrently rarely touch the same cache line. Adding
+ * is a single uncontended atomic increment; reading sums every cell and is
+ * only exact when no one is adding.
+ *
+ * @author flaptor
+ */
+class StripedCounter {
+
+    // cells are 8 longs (a 64-byte cache line) apart
+    private static final int SPACING = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+            * SPACING);
+
+    void increment() {
+        add(1);
+    }
+
+    void decrement() {
+        add(-1);
+    }
+
+    void add(long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * SPACING);
+        }
+        return sum;
+    }
+
+    /**
+     * Sums and clears the cells. Additions made concurrently are counted
+     * either in the result or in the counter, never in both.
+     */
+    long sumThenReset() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.getAndSet(i * SPACING, 0);
+        }
+        return sum;
+    }
+
+    private static int cell() {
+        // thread ids are sequential, the multiplication spreads neighbours
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & (STRIPES - 1)) * SPACING;
+    }
+
+    private static int stripes() {
+        int processors = Math.min(64, Runtime.getRuntime()
+                .availableProcessors());
+        return Integer.highestOneBit(Math.max(1, processors * 2 - 1));
+    }
+}
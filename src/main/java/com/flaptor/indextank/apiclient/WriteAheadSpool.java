@@ -0,0 +1,470 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records kept in memory-mapped segment files, with a
+ * checkpoint of how far it has been consumed. Appending is a copy into the
+ * page cache, so records survive a crash of the process as soon as
+ * {@link #append(byte[])} returns; {@link #withForce(boolean)} makes them
+ * survive a crash of the machine too, at the cost of a disk flush per record.
+ * <p>
+ * Records are addressed by positions, which only grow: {@link #read} from a
+ * position returns the records after it and the position to read from next,
+ * and {@link #checkpoint(long)} persists the position consumers have
+ * finished with, deleting the segments before it. After a restart, reading
+ * from {@link #getCheckpoint()} replays whatever was not checkpointed. Each
+ * record is checksummed, so a record torn by a crash is discarded on the next
+ * open along with anything after it.
+ * <p>
+ * Appends from several threads are serialized by a lock; reads don't take it
+ * and can run concurrently with appends. A spool locks its directory while
+ * open, so a directory can only be used by one spool at a time.
+ *
+ * @author flaptor
+ */
+public class WriteAheadSpool implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 32 << 20;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOCK = "lock";
+    // the directories of the spools open in this process
+    private static final Set<String> LOCKED = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // record length and checksum
+    private static final int HEADER_BYTES = 8;
+    // in place of a record length, sends readers to the next segment
+    private static final int END_OF_SEGMENT = -1;
+
+    private static class Segment {
+        final long number;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    // held while open, so that no other spool uses the directory
+    private final String lockPath;
+    private final FileChannel lockChannel;
+    private final CheckpointFile checkpointFile;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Condition appended = appendLock.newCondition();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private volatile int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private volatile boolean force;
+    private volatile boolean closed;
+
+    // guarded by appendLock
+    private Segment current;
+    private int currentOffset;
+
+    // the position after the last complete record; publishes the records
+    // before it to readers
+    private volatile long end;
+    private volatile long checkpoint;
+
+    /**
+     * Opens the spool in the given directory, creating it if needed, and
+     * recovers the records left by a previous run.
+     *
+     * @throws IOException
+     *             also if another spool, in this process or another, has the
+     *             directory open
+     */
+    public WriteAheadSpool(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        // closing any channel to the lock file may release the locks the
+        // process holds on it, so spools of this process are checked first
+        this.lockPath = directory.getCanonicalPath();
+        if (!LOCKED.add(lockPath)) {
+            throw new IOException(directory + " is in use by another spool");
+        }
+        FileLock acquired = null;
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(new File(directory, LOCK), "rw")
+                    .getChannel();
+            acquired = channel.tryLock();
+        } finally {
+            if (acquired == null) {
+                if (channel != null) {
+                    channel.close();
+                }
+                LOCKED.remove(lockPath);
+            }
+        }
+        if (acquired == null) {
+            throw new IOException(directory
+                    + " is in use by another process");
+        }
+        this.lockChannel = channel;
+        this.checkpointFile = new CheckpointFile(new File(directory,
+                CHECKPOINT));
+        try {
+            recover();
+        } catch (IOException e) {
+            releaseLock();
+            throw e;
+        } catch (RuntimeException e) {
+            releaseLock();
+            throw e;
+        }
+    }
+
+    private void recover() throws IOException {
+        this.checkpoint = checkpointFile.read();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long number = segmentNumber(file);
+                if (number < 0) {
+                    continue;
+                }
+                if (number < segmentOf(checkpoint)) {
+                    // consumed, but not deleted before the last shutdown
+                    file.delete();
+                } else {
+                    segments.put(number, map(number, file, file.length()));
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            end = checkpoint;
+        } else {
+            current = segments.lastEntry().getValue();
+            currentOffset = recover(current);
+            end = position(current.number, currentOffset);
+        }
+    }
+
+    /**
+     * Sets the size of segments created from now on. Records larger than a
+     * segment get a segment of their own.
+     *
+     * @return this spool
+     */
+    public WriteAheadSpool withSegmentBytes(int bytes) {
+        if (bytes < HEADER_BYTES * 2) {
+            throw new IllegalArgumentException("Segments are too small");
+        }
+        this.segmentBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Makes {@link #append(byte[])} flush the record to disk before
+     * returning. Off by default.
+     *
+     * @return this spool
+     */
+    public WriteAheadSpool withForce(boolean force) {
+        this.force = force;
+        return this;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record
+     *            a non-empty record
+     * @return the position after the record
+     */
+    public long append(byte[] record) throws IOException {
+        if (record.length == 0) {
+            throw new IllegalArgumentException("Records can not be empty");
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        int needed = HEADER_BYTES + record.length;
+
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The spool is closed");
+            }
+            if (current == null
+                    || current.buffer.capacity() - currentOffset < needed) {
+                roll(needed);
+            }
+            ByteBuffer buffer = current.buffer.duplicate();
+            buffer.position(currentOffset);
+            buffer.putInt(record.length);
+            buffer.putInt((int) checksum.getValue());
+            buffer.put(record);
+            if (force) {
+                current.buffer.force();
+            }
+            currentOffset += needed;
+            end = position(current.number, currentOffset);
+            appended.signalAll();
+            return end;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records after a position.
+     *
+     * @param from
+     *            a position returned by this spool, at or after the
+     *            checkpoint
+     * @param records
+     *            where the records are added
+     * @param maxRecords
+     *            how many records to read at most
+     * @return the position after the last record read, to read from next
+     */
+    public long read(long from, List<byte[]> records, int maxRecords) {
+        long position = from;
+        long limit = end;
+        int read = 0;
+        while (read < maxRecords && position < limit) {
+            Segment segment = segments.get(segmentOf(position));
+            int offset = offsetOf(position);
+            // a segment ends at a marker, at an unwritten (zero) length left
+            // by a crash while rolling, or when there is no room for more
+            int length = END_OF_SEGMENT;
+            if (segment != null
+                    && segment.buffer.capacity() - offset >= HEADER_BYTES) {
+                length = segment.buffer.getInt(offset);
+            }
+            if (length <= 0) {
+                position = position(segmentOf(position) + 1, 0);
+                continue;
+            }
+            byte[] record = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + HEADER_BYTES);
+            buffer.get(record);
+            records.add(record);
+            read++;
+            position = position(segment.number, offset + HEADER_BYTES
+                    + length);
+        }
+        return position;
+    }
+
+    /**
+     * Waits until records are appended after a position.
+     *
+     * @return whether there are records after the position
+     */
+    public boolean awaitAppend(long position, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        appendLock.lock();
+        try {
+            while (end <= position && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = appended.awaitNanos(nanos);
+            }
+            return end > position;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * @return the position after the last record
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the last position passed to {@link #checkpoint(long)}, where
+     *         reading resumes after a restart
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Persists the position consumers have finished with, and deletes the
+     * segments entirely before it. Earlier positions are ignored.
+     */
+    public void checkpoint(long position) throws IOException {
+        if (position > end) {
+            throw new IllegalArgumentException("Position " + position
+                    + " is past the end of the spool");
+        }
+        checkpointLock.lock();
+        try {
+            if (position <= checkpoint) {
+                return;
+            }
+            checkpointFile.write(position);
+            checkpoint = position;
+
+            for (Entry<Long, Segment> entry : segments.headMap(
+                    segmentOf(position)).entrySet()) {
+                Segment segment = entry.getValue();
+                if (segment == current) {
+                    continue;
+                }
+                // the mapping goes away with the buffer; on platforms that
+                // can't delete mapped files, the next open deletes it
+                segments.remove(entry.getKey());
+                segment.file.delete();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the current segment, stops appending and releases the
+     * directory. Pending {@link #awaitAppend} calls return.
+     */
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null) {
+                current.buffer.force();
+            }
+            appended.signalAll();
+        } finally {
+            appendLock.unlock();
+        }
+        releaseLock();
+    }
+
+    private void releaseLock() {
+        try {
+            // closing the channel releases the lock
+            lockChannel.close();
+        } catch (IOException e) {
+            // released when the process exits
+        } finally {
+            LOCKED.remove(lockPath);
+        }
+    }
+
+    private void roll(int needed) throws IOException {
+        long number;
+        if (current == null) {
+            number = segmentOf(end) + (offsetOf(end) > 0 ? 1 : 0);
+        } else {
+            if (current.buffer.capacity() - currentOffset >= 4) {
+                current.buffer.putInt(currentOffset, END_OF_SEGMENT);
+            }
+            number = current.number + 1;
+        }
+        File file = new File(directory, String.format("%s%016d%s",
+                SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = map(number, file, Math.max(segmentBytes, needed));
+        segments.put(number, segment);
+        current = segment;
+        currentOffset = 0;
+    }
+
+    /**
+     * Finds the end of the valid records of a segment.
+     */
+    private static int recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        CRC32 checksum = new CRC32();
+        while (buffer.capacity() - offset >= HEADER_BYTES) {
+            int length = buffer.getInt(offset);
+            if (length <= 0
+                    || length > buffer.capacity() - offset - HEADER_BYTES) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.position(offset + HEADER_BYTES);
+            buffer.get(record);
+            checksum.reset();
+            checksum.update(record);
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private static Segment map(long number, File file, long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(number, file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long segmentNumber(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long position(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}
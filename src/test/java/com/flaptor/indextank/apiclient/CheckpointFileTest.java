@@ -0,0 +1,116 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointFileTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void startsAtZero() throws IOException {
+        CheckpointFile checkpoint = new CheckpointFile(new File(
+                folder.getRoot(), "checkpoint"));
+        assertEquals(0, checkpoint.read());
+    }
+
+    @Test
+    public void keepsTheLastPosition() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint");
+        CheckpointFile checkpoint = new CheckpointFile(file);
+        checkpoint.write(42);
+        checkpoint.write(1L << 40);
+        assertEquals(1L << 40, new CheckpointFile(file).read());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        checkpoint.delete();
+        assertFalse(file.exists());
+        assertEquals(0, checkpoint.read());
+    }
+
+    @Test
+    public void resumesOnTheSameSource() throws IOException {
+        File source = source("line one\nline two\n");
+        File file = new File(folder.getRoot(), "checkpoint");
+        new CheckpointFile(file, source).write(9);
+        assertEquals(9, new CheckpointFile(file, source).read());
+    }
+
+    @Test
+    public void refusesAChangedSource() throws IOException {
+        File source = source("line one\nline two\n");
+        File file = new File(folder.getRoot(), "checkpoint");
+        new CheckpointFile(file, source).write(9);
+
+        write(source, "line zero\nline one\nline two\n");
+        try {
+            new CheckpointFile(file, source).read();
+            fail("resumed on a changed source");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("changed"));
+        }
+    }
+
+    @Test
+    public void refusesARewrittenSourceOfTheSameSize() throws IOException {
+        File source = source("line one\n");
+        File file = new File(folder.getRoot(), "checkpoint");
+        new CheckpointFile(file, source).write(9);
+
+        write(source, "line two\n");
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+        try {
+            new CheckpointFile(file, source).read();
+            fail("resumed on a changed source");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void acceptsCheckpointsWithoutTheSource() throws IOException {
+        File source = source("line one\nline two\n");
+        File file = new File(folder.getRoot(), "checkpoint");
+        write(file, "9");
+        assertEquals(9, new CheckpointFile(file, source).read());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsGarbage() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint");
+        write(file, "not a position");
+        new CheckpointFile(file).read();
+    }
+
+    private File source(String content) throws IOException {
+        File source = folder.newFile();
+        write(source, content);
+        return source;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(US_ASCII));
+        } finally {
+            out.close();
+        }
+        assertEquals(content, new String(Files.readAllBytes(file.toPath()),
+                US_ASCII));
+    }
+}
@@ -0,0 +1,125 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ScoringFunctionTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void followsOperatorPrecedence() throws InvalidSyntaxException {
+        assertEquals(7, evaluate("1 + 2 * 3"), DELTA);
+        assertEquals(9, evaluate("(1 + 2) * 3"), DELTA);
+        assertEquals(1, evaluate("8 / 4 / 2"), DELTA);
+        assertEquals(-1, evaluate("-(2 - 1)"), DELTA);
+        assertEquals(2.5e-3, evaluate("2.5e-3"), DELTA);
+    }
+
+    @Test
+    public void readsInputs() throws InvalidSyntaxException {
+        ScoringFunction.Inputs inputs = new ScoringFunction.Inputs();
+        inputs.relevance = 2;
+        inputs.age = 100;
+        inputs.documentVariables = Collections.singletonMap(0, 3);
+        inputs.queryVariables = Collections.singletonMap(1, 5f);
+
+        assertEquals(2, compile("relevance").evaluate(inputs), DELTA);
+        assertEquals(2, compile("rel").evaluate(inputs), DELTA);
+        assertEquals(-100, compile("-age").evaluate(inputs), DELTA);
+        assertEquals(-100, compile("-doc.age").evaluate(inputs), DELTA);
+        assertEquals(15, compile("doc.var[0] * query.var[1]").evaluate(inputs),
+                DELTA);
+        assertEquals(15, compile("d[0] * q[1]").evaluate(inputs), DELTA);
+        // missing variables are 0
+        assertEquals(0, compile("d[7] + q[0]").evaluate(inputs), DELTA);
+    }
+
+    @Test
+    public void callsFunctions() throws InvalidSyntaxException {
+        assertEquals(3, evaluate("abs(-3)"), DELTA);
+        assertEquals(1, evaluate("log(exp(1))"), DELTA);
+        assertEquals(8, evaluate("pow(2, 3)"), DELTA);
+        assertEquals(4, evaluate("max(sqrt(16), min(1, 2))"), DELTA);
+        assertEquals(1, evaluate("bit(5, 2)"), DELTA);
+        assertEquals(0, evaluate("bit(5, 1)"), DELTA);
+        // a degree of latitude
+        assertEquals(111.19, evaluate("km(0, 0, 1, 0)"), 0.01);
+        assertEquals(69.09, evaluate("miles(0, 0, 1, 0)"), 0.01);
+    }
+
+    @Test
+    public void rejectsInvalidDefinitions() {
+        String[] invalid = { "", "  ", "1 +", "(1 + 2", "1 2", "foo",
+                "foo(1)", "pow(1)", "max(1, 2, 3)", "d[]", "d[x]", "q 1",
+                "1..2", "#" };
+        for (String definition : invalid) {
+            try {
+                compile(definition);
+                fail("compiled '" + definition + "'");
+            } catch (InvalidSyntaxException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(
+                        "'" + definition + "'"));
+            }
+        }
+    }
+
+    @Test
+    public void compilesListedFunctions() throws InvalidSyntaxException {
+        Map<String, String> listed = new HashMap<String, String>();
+        listed.put("0", "-age");
+        listed.put("2", "relevance * 2");
+        Map<Integer, ScoringFunction> compiled = ScoringFunction
+                .compileAll(listed);
+        assertEquals(2, compiled.size());
+        assertEquals("relevance * 2", compiled.get(2).getDefinition());
+    }
+
+    @Test
+    public void reranksHits() throws InvalidSyntaxException {
+        List<Map<String, Object>> hits = new ArrayList<Map<String, Object>>();
+        hits.add(hit("a", 0.75, "1"));
+        hits.add(hit("b", 0.5, "10"));
+        hits.add(hit("c", 2.0, "0"));
+
+        List<Map<String, Object>> ranked = compile("relevance + d[0] * q[0]")
+                .rerank(hits, Collections.singletonMap(0, 1f), 0);
+        assertEquals("b", ranked.get(0).get("docid"));
+        assertEquals("c", ranked.get(1).get("docid"));
+        assertEquals("a", ranked.get(2).get("docid"));
+
+        ranked = compile("relevance + d[0] * q[0]").rerank(hits,
+                Collections.<Integer, Float> emptyMap(), 0);
+        assertEquals("c", ranked.get(0).get("docid"));
+        // the hits themselves are left in order
+        assertEquals("a", hits.get(0).get("docid"));
+    }
+
+    private static Map<String, Object> hit(String docid, double relevance,
+            String variable) {
+        Map<String, Object> hit = new HashMap<String, Object>();
+        hit.put("docid", docid);
+        hit.put("query_relevance_score", relevance);
+        hit.put("variable_0", variable);
+        return hit;
+    }
+
+    private static double evaluate(String definition)
+            throws InvalidSyntaxException {
+        return compile(definition).evaluate(new ScoringFunction.Inputs());
+    }
+
+    private static ScoringFunction compile(String definition)
+            throws InvalidSyntaxException {
+        return ScoringFunction.compile(definition);
+    }
+}
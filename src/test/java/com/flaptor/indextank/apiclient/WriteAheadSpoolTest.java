@@ -0,0 +1,187 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadSpoolTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysWhatWasNotCheckpointed() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadSpool spool = new WriteAheadSpool(directory);
+        long first = spool.append(bytes("a"));
+        spool.append(bytes("b"));
+        spool.append(bytes("c"));
+        spool.checkpoint(first);
+        spool.close();
+
+        spool = new WriteAheadSpool(directory);
+        try {
+            assertEquals(first, spool.getCheckpoint());
+            assertEquals(list("b", "c"), readAll(spool));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void discardsATornRecordAndWhatFollows() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadSpool spool = new WriteAheadSpool(directory);
+        spool.append(bytes("first"));
+        long torn = spool.append(bytes("second"));
+        spool.append(bytes("third"));
+        spool.append(bytes("fourth"));
+        spool.close();
+
+        // corrupt the payload of the third record, past its 8 byte header
+        File segment = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".spool");
+            }
+        })[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek((int) torn + 8);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+
+        spool = new WriteAheadSpool(directory);
+        try {
+            assertEquals(torn, spool.getEnd());
+            assertEquals(list("first", "second"), readAll(spool));
+            spool.append(bytes("again"));
+            assertEquals(list("first", "second", "again"), readAll(spool));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void rollsSegmentsAndDeletesConsumedOnes() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadSpool spool = new WriteAheadSpool(directory)
+                .withSegmentBytes(64);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            spool.append(bytes("record-" + i));
+            expected.add("record-" + i);
+        }
+        // larger than a segment
+        String large = new String(new char[200]).replace('\0', 'x');
+        spool.append(bytes(large));
+        expected.add(large);
+        assertEquals(expected, readAll(spool));
+
+        spool.checkpoint(spool.getEnd());
+        spool.close();
+        assertEquals(1, segments(directory));
+
+        spool = new WriteAheadSpool(directory);
+        try {
+            assertEquals(new ArrayList<String>(), readAll(spool));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void readsInChunks() throws IOException {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.newFolder());
+        try {
+            for (int i = 0; i < 5; i++) {
+                spool.append(bytes(Integer.toString(i)));
+            }
+            List<byte[]> records = new ArrayList<byte[]>();
+            long next = spool.read(spool.getCheckpoint(), records, 2);
+            assertEquals(2, records.size());
+            next = spool.read(next, records, 10);
+            assertEquals(5, records.size());
+            assertEquals(spool.getEnd(), next);
+            assertArrayEquals(bytes("4"), records.get(4));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void locksItsDirectory() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadSpool spool = new WriteAheadSpool(directory);
+        try {
+            new WriteAheadSpool(directory);
+            fail("opened a directory in use");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            spool.close();
+        }
+        new WriteAheadSpool(directory).close();
+    }
+
+    @Test
+    public void refusesToAppendOnceClosed() throws IOException {
+        WriteAheadSpool spool = new WriteAheadSpool(folder.newFolder());
+        spool.close();
+        try {
+            spool.append(bytes("late"));
+            fail("appended to a closed spool");
+        } catch (IOException e) {
+            assertFalse(spool.getEnd() > 0);
+        }
+    }
+
+    private static List<String> readAll(WriteAheadSpool spool) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        spool.read(spool.getCheckpoint(), records, Integer.MAX_VALUE);
+        List<String> strings = new ArrayList<String>();
+        for (byte[] record : records) {
+            strings.add(new String(record, UTF_8));
+        }
+        return strings;
+    }
+
+    private static int segments(File directory) {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".spool")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<String> list(String... strings) {
+        List<String> list = new ArrayList<String>();
+        for (String string : strings) {
+            list.add(string);
+        }
+        return list;
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(UTF_8);
+    }
+}
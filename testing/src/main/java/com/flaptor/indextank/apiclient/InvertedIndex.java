@@ -0,0 +1,675 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.simple.JSONValue;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * The in-memory contents of a {@link LocalIndex}: the stored documents, a
+ * positional inverted index over their fields, the scoring functions and the
+ * promotions.
+ * <p>
+ * Searches take the request parameters of the search API (see
+ * {@link IndexTankClient.Query#toParameterMap()}), so the same code serves
+ * {@link LocalIndex} and HTTP stand-ins. Searches run concurrently with each
+ * other; writes are exclusive.
+ *
+ * @author flaptor
+ */
+class InvertedIndex {
+
+    private static final int DEFAULT_LENGTH = 10;
+
+    private static class StoredDocument {
+        final String docid;
+        final Map<String, String> fields;
+        final Map<Integer, Float> variables = new HashMap<Integer, Float>();
+        final Map<String, String> categories = new HashMap<String, String>();
+        final long timestamp;
+
+        StoredDocument(String docid, Map<String, String> fields,
+                long timestamp) {
+            this.docid = docid;
+            this.fields = fields;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Hit {
+        final int document;
+        final double relevance;
+        final double score;
+        final boolean promoted;
+
+        Hit(int document, double relevance, double score, boolean promoted) {
+            this.document = document;
+            this.relevance = relevance;
+            this.score = score;
+            this.promoted = promoted;
+        }
+    }
+
+    // best first: promoted, then by score, then newest
+    private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) {
+            if (a.promoted != b.promoted) {
+                return a.promoted ? -1 : 1;
+            }
+            int byScore = Double.compare(b.score, a.score);
+            return byScore != 0 ? byScore : b.document - a.document;
+        }
+    };
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<StoredDocument> documents = new ArrayList<StoredDocument>();
+    private final Deque<Integer> freeIds = new ArrayDeque<Integer>();
+    // field -> term -> document -> sorted positions
+    private final Map<String, TreeMap<String, Map<Integer, int[]>>> postings = new HashMap<String, TreeMap<String, Map<Integer, int[]>>>();
+    // normalized query -> promoted docids
+    private final Map<String, Set<String>> promotions = new HashMap<String, Set<String>>();
+    private final Map<Integer, ScoringFunction> functions = new ConcurrentHashMap<Integer, ScoringFunction>();
+
+    InvertedIndex() {
+        try {
+            // new indexes sort by recency, like the hosted service
+            addFunction(0, "-age");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces a document.
+     *
+     * @throws IllegalArgumentException
+     *             if the document is invalid
+     */
+    void addDocument(String docid, Map<String, String> fields,
+            Map<Integer, Float> variables, Map<String, String> categories) {
+        validate(docid, fields);
+        StoredDocument document = new StoredDocument(docid,
+                new HashMap<String, String>(fields), timestamp(fields));
+        if (variables != null) {
+            document.variables.putAll(variables);
+        }
+        if (categories != null) {
+            setCategories(document, categories);
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(docid);
+            if (id != null) {
+                unindex(id, documents.get(id));
+            } else {
+                id = freeIds.poll();
+                if (id == null) {
+                    id = documents.size();
+                    documents.add(null);
+                }
+                ids.put(docid, id);
+            }
+            documents.set(id, document);
+            index(id, document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void deleteDocument(String docid) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.remove(docid);
+            if (id != null) {
+                unindex(id, documents.get(id));
+                documents.set(id, null);
+                freeIds.push(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the document doesn't exist
+     */
+    boolean updateVariables(String docid, Map<Integer, Float> variables) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(docid);
+            if (id == null) {
+                return false;
+            }
+            documents.get(id).variables.putAll(variables);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the document doesn't exist
+     */
+    boolean updateCategories(String docid, Map<String, String> categories) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(docid);
+            if (id == null) {
+                return false;
+            }
+            setCategories(documents.get(id), categories);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void promote(String docid, String query) {
+        lock.writeLock().lock();
+        try {
+            String key = normalize(query);
+            Set<String> promoted = promotions.get(key);
+            if (promoted == null) {
+                promoted = new LinkedHashSet<String>();
+                promotions.put(key, promoted);
+            }
+            promoted.add(docid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void addFunction(int functionIndex, String definition)
+            throws InvalidSyntaxException {
+        functions.put(functionIndex, ScoringFunction.compile(definition));
+    }
+
+    void deleteFunction(int functionIndex) {
+        functions.remove(functionIndex);
+    }
+
+    Map<String, String> listFunctions() {
+        Map<String, String> definitions = new HashMap<String, String>();
+        for (Entry<Integer, ScoringFunction> function : functions.entrySet()) {
+            definitions.put(String.valueOf(function.getKey()), function
+                    .getValue().getDefinition());
+        }
+        return definitions;
+    }
+
+    /**
+     * Runs a search.
+     *
+     * @param params
+     *            the parameters of the search API: {@code q}, {@code start},
+     *            {@code len}, {@code function}, {@code fetch},
+     *            {@code snippet}, {@code fetch_variables},
+     *            {@code fetch_categories}, {@code category_filters},
+     *            {@code filter_docvarN}, {@code filter_functionN} and
+     *            {@code varN}
+     * @throws InvalidSyntaxException
+     *             if the query or a parameter is invalid
+     */
+    SearchResults search(Map<String, String> params)
+            throws InvalidSyntaxException {
+        long startNanos = System.nanoTime();
+        String queryString = params.get("q");
+        LocalQuery query = LocalQuery.parse(queryString);
+        int start = intParam(params, "start", 0);
+        int length = intParam(params, "len", DEFAULT_LENGTH);
+        int functionIndex = intParam(params, "function", 0);
+        ScoringFunction function = functions.get(functionIndex);
+        if (function == null) {
+            throw new InvalidSyntaxException("Function " + functionIndex
+                    + " is not defined");
+        }
+
+        Map<Integer, Float> queryVariables = new HashMap<Integer, Float>();
+        Map<Integer, List<double[]>> variableFilters = new HashMap<Integer, List<double[]>>();
+        Map<Integer, List<double[]>> functionFilters = new HashMap<Integer, List<double[]>>();
+        for (Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey();
+            if (name.startsWith("var")) {
+                queryVariables.put(index(name, 3), floatParam(param));
+            } else if (name.startsWith("filter_docvar")) {
+                variableFilters.put(index(name, 13), ranges(param));
+            } else if (name.startsWith("filter_function")) {
+                int filterFunction = index(name, 15);
+                if (!functions.containsKey(filterFunction)) {
+                    throw new InvalidSyntaxException("Function "
+                            + filterFunction + " is not defined");
+                }
+                functionFilters.put(filterFunction, ranges(param));
+            }
+        }
+        Map<String, Collection<?>> categoryFilters = categoryFilters(params
+                .get("category_filters"));
+
+        ScoringFunction.Inputs inputs = new ScoringFunction.Inputs();
+        inputs.queryVariables = queryVariables;
+        long now = System.currentTimeMillis() / 1000;
+        PriorityQueue<Hit> top = new PriorityQueue<Hit>(Math.max(1, start
+                + length), Collections.reverseOrder(BEST_FIRST));
+        Map<String, Map<String, Integer>> facets = new HashMap<String, Map<String, Integer>>();
+        long matches = 0;
+
+        lock.readLock().lock();
+        try {
+            Set<String> promoted = promotions.get(normalize(queryString));
+            candidates: for (Entry<Integer, Double> match : query
+                    .evaluate(this).entrySet()) {
+                StoredDocument document = documents.get(match.getKey());
+                if (!matchesCategories(document, categoryFilters)) {
+                    continue;
+                }
+                for (Entry<Integer, List<double[]>> filter : variableFilters
+                        .entrySet()) {
+                    Float value = document.variables.get(filter.getKey());
+                    if (!inRanges(value == null ? 0 : value, filter.getValue())) {
+                        continue candidates;
+                    }
+                }
+
+                inputs.relevance = match.getValue();
+                inputs.age = now - document.timestamp;
+                inputs.documentVariables = document.variables;
+                for (Entry<Integer, List<double[]>> filter : functionFilters
+                        .entrySet()) {
+                    if (!inRanges(functions.get(filter.getKey()).evaluate(
+                            inputs), filter.getValue())) {
+                        continue candidates;
+                    }
+                }
+
+                matches++;
+                for (Entry<String, String> category : document.categories
+                        .entrySet()) {
+                    Map<String, Integer> counts = facets.get(category.getKey());
+                    if (counts == null) {
+                        counts = new HashMap<String, Integer>();
+                        facets.put(category.getKey(), counts);
+                    }
+                    Integer count = counts.get(category.getValue());
+                    counts.put(category.getValue(), count == null ? 1
+                            : count + 1);
+                }
+
+                if (start + length > 0) {
+                    top.offer(new Hit(match.getKey(), match.getValue(),
+                            function.evaluate(inputs), promoted != null
+                                    && promoted.contains(document.docid)));
+                    if (top.size() > start + length) {
+                        top.poll();
+                    }
+                }
+            }
+
+            List<Hit> hits = new ArrayList<Hit>(top);
+            Collections.sort(hits, BEST_FIRST);
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+            for (Hit hit : hits.subList(Math.min(start, hits.size()),
+                    hits.size())) {
+                results.add(result(hit, documents.get(hit.document), params,
+                        query));
+            }
+            return new SearchResults(matches,
+                    (System.nanoTime() - startNanos) / 1e9f, results, facets);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // query evaluation, called with the read lock held
+
+    Map<Integer, int[]> postings(String field, String term) {
+        TreeMap<String, Map<Integer, int[]>> terms = postings.get(field);
+        return terms == null ? null : terms.get(term);
+    }
+
+    Collection<Map<Integer, int[]>> postingsWithPrefix(String field,
+            String prefix) {
+        TreeMap<String, Map<Integer, int[]>> terms = postings.get(field);
+        if (terms == null) {
+            return Collections.emptyList();
+        }
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE).values();
+    }
+
+    Collection<Integer> allDocuments() {
+        return ids.values();
+    }
+
+    double idf(int documentFrequency) {
+        return Math.log(1 + (double) ids.size() / documentFrequency);
+    }
+
+    /**
+     * Splits text into lower case terms, at every character that is not a
+     * letter or a digit.
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private void index(int id, StoredDocument document) {
+        for (Entry<String, Map<String, List<Integer>>> field : termPositions(
+                document).entrySet()) {
+            TreeMap<String, Map<Integer, int[]>> terms = postings.get(field
+                    .getKey());
+            if (terms == null) {
+                terms = new TreeMap<String, Map<Integer, int[]>>();
+                postings.put(field.getKey(), terms);
+            }
+            for (Entry<String, List<Integer>> term : field.getValue()
+                    .entrySet()) {
+                Map<Integer, int[]> termPostings = terms.get(term.getKey());
+                if (termPostings == null) {
+                    termPostings = new HashMap<Integer, int[]>();
+                    terms.put(term.getKey(), termPostings);
+                }
+                int[] positions = new int[term.getValue().size()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = term.getValue().get(i);
+                }
+                termPostings.put(id, positions);
+            }
+        }
+    }
+
+    private void unindex(int id, StoredDocument document) {
+        for (Entry<String, Map<String, List<Integer>>> field : termPositions(
+                document).entrySet()) {
+            TreeMap<String, Map<Integer, int[]>> terms = postings.get(field
+                    .getKey());
+            for (String term : field.getValue().keySet()) {
+                Map<Integer, int[]> termPostings = terms.get(term);
+                termPostings.remove(id);
+                if (termPostings.isEmpty()) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Map<String, List<Integer>>> termPositions(
+            StoredDocument document) {
+        Map<String, Map<String, List<Integer>>> fields = new HashMap<String, Map<String, List<Integer>>>();
+        for (Entry<String, String> field : document.fields.entrySet()) {
+            if (field.getValue() == null) {
+                continue;
+            }
+            Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+            List<String> terms = tokenize(field.getValue());
+            for (int i = 0; i < terms.size(); i++) {
+                List<Integer> termPositions = positions.get(terms.get(i));
+                if (termPositions == null) {
+                    termPositions = new ArrayList<Integer>();
+                    positions.put(terms.get(i), termPositions);
+                }
+                termPositions.add(i);
+            }
+            fields.put(field.getKey(), positions);
+        }
+        return fields;
+    }
+
+    private static void setCategories(StoredDocument document,
+            Map<String, String> categories) {
+        for (Entry<String, String> category : categories.entrySet()) {
+            if (category.getValue() == null
+                    || category.getValue().trim().length() == 0) {
+                document.categories.remove(category.getKey());
+            } else {
+                document.categories.put(category.getKey(), category.getValue());
+            }
+        }
+    }
+
+    private static void validate(String docid, Map<String, String> fields) {
+        if (docid == null || docid.length() == 0) {
+            throw new IllegalArgumentException("Invalid docid");
+        }
+        try {
+            if (docid.getBytes("UTF-8").length > 1024) {
+                throw new IllegalArgumentException(
+                        "docid can not be longer than 1024 bytes");
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("Document without fields");
+        }
+    }
+
+    private static long timestamp(Map<String, String> fields) {
+        String timestamp = fields.get("timestamp");
+        if (timestamp != null) {
+            try {
+                return Long.parseLong(timestamp.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid timestamp '"
+                        + timestamp + "'");
+            }
+        }
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private Map<String, Object> result(Hit hit, StoredDocument document,
+            Map<String, String> params, LocalQuery query) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("docid", document.docid);
+        result.put("query_relevance_score", hit.relevance);
+
+        String fetch = params.get("fetch");
+        if (fetch != null) {
+            for (String field : fetch.split(",")) {
+                field = field.trim();
+                if (field.equals("*")) {
+                    result.putAll(document.fields);
+                } else if (document.fields.containsKey(field)) {
+                    result.put(field, document.fields.get(field));
+                }
+            }
+        }
+        String snippet = params.get("snippet");
+        if (snippet != null) {
+            Set<String> terms = new HashSet<String>(
+                    tokenize(params.get("q")));
+            for (String field : snippet.split(",")) {
+                field = field.trim();
+                String value = document.fields.get(field);
+                if (value != null) {
+                    result.put("snippet_" + field, highlight(value, terms));
+                }
+            }
+        }
+        if ("true".equals(params.get("fetch_variables"))) {
+            for (Entry<Integer, Float> variable : document.variables
+                    .entrySet()) {
+                result.put("variable_" + variable.getKey(), variable.getValue());
+            }
+        }
+        if ("true".equals(params.get("fetch_categories"))) {
+            for (Entry<String, String> category : document.categories
+                    .entrySet()) {
+                result.put("category_" + category.getKey(),
+                        category.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static String highlight(String text, Set<String> terms) {
+        StringBuilder highlighted = new StringBuilder();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+                continue;
+            }
+            if (start >= 0) {
+                String word = text.substring(start, i);
+                if (terms.contains(word.toLowerCase())) {
+                    highlighted.append("<b>").append(word).append("</b>");
+                } else {
+                    highlighted.append(word);
+                }
+                start = -1;
+            }
+            if (i < text.length()) {
+                highlighted.append(text.charAt(i));
+            }
+        }
+        return highlighted.toString();
+    }
+
+    private static boolean matchesCategories(StoredDocument document,
+            Map<String, Collection<?>> categoryFilters) {
+        for (Entry<String, Collection<?>> filter : categoryFilters.entrySet()) {
+            String value = document.categories.get(filter.getKey());
+            if (value == null || !filter.getValue().contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inRanges(double value, List<double[]> ranges) {
+        for (double[] range : ranges) {
+            if (value >= range[0] && value <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Collection<?>> categoryFilters(String json)
+            throws InvalidSyntaxException {
+        if (json == null) {
+            return Collections.emptyMap();
+        }
+        Object parsed = JSONValue.parse(json);
+        if (!(parsed instanceof Map)) {
+            throw new InvalidSyntaxException("Invalid category_filters");
+        }
+        Map<String, Collection<?>> filters = new HashMap<String, Collection<?>>();
+        for (Object entry : ((Map<?, ?>) parsed).entrySet()) {
+            Object values = ((Entry<?, ?>) entry).getValue();
+            if (!(values instanceof Collection)) {
+                throw new InvalidSyntaxException("Invalid category_filters");
+            }
+            filters.put(String.valueOf(((Entry<?, ?>) entry).getKey()),
+                    new HashSet<Object>((Collection<?>) values));
+        }
+        return filters;
+    }
+
+    private static List<double[]> ranges(Entry<String, String> param)
+            throws InvalidSyntaxException {
+        List<double[]> ranges = new ArrayList<double[]>();
+        for (String range : param.getValue().split(",")) {
+            String[] bounds = range.split(":");
+            if (bounds.length != 2) {
+                throw new InvalidSyntaxException("Invalid range '" + range
+                        + "' in " + param.getKey());
+            }
+            try {
+                ranges.add(new double[] {
+                        bounds[0].trim().equals("*") ? Double.NEGATIVE_INFINITY
+                                : Double.parseDouble(bounds[0]),
+                        bounds[1].trim().equals("*") ? Double.POSITIVE_INFINITY
+                                : Double.parseDouble(bounds[1]) });
+            } catch (NumberFormatException e) {
+                throw new InvalidSyntaxException("Invalid range '" + range
+                        + "' in " + param.getKey());
+            }
+        }
+        return ranges;
+    }
+
+    private static int index(String name, int prefixLength)
+            throws InvalidSyntaxException {
+        try {
+            return Integer.parseInt(name.substring(prefixLength));
+        } catch (NumberFormatException e) {
+            throw new InvalidSyntaxException("Invalid parameter " + name);
+        }
+    }
+
+    private static float floatParam(Entry<String, String> param)
+            throws InvalidSyntaxException {
+        try {
+            return Float.parseFloat(param.getValue());
+        } catch (NumberFormatException e) {
+            throw new InvalidSyntaxException("Invalid value for "
+                    + param.getKey());
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String name,
+            int defaultValue) throws InvalidSyntaxException {
+        String value = params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new InvalidSyntaxException("Invalid value for " + name);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new InvalidSyntaxException("Invalid value for " + name);
+        }
+    }
+
+    private static String normalize(String query) {
+        return query == null ? "" : query.trim().toLowerCase();
+    }
+}
@@ -0,0 +1,110 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.HttpCodeException;
+
+/**
+ * An {@link ApiClient} whose indexes live in memory, for tests and
+ * benchmarks that shouldn't depend on the network or the hosted service.
+ * <p>
+ * Indexes support the same operations and report the same errors as hosted
+ * ones: field queries, phrases and boolean operators, categories and facets,
+ * document variables, scoring functions, variable and function filters and
+ * promotions. They start as soon as they are created. Nothing is persisted.
+ *
+ * @author flaptor
+ */
+public class LocalApiClient implements ApiClient {
+
+    private final int maxIndexes;
+    private final ConcurrentSkipListMap<String, LocalIndex> indexes = new ConcurrentSkipListMap<String, LocalIndex>();
+    // serializes creations, so the index limit holds
+    private final ReentrantLock creating = new ReentrantLock();
+    private final Random random = new Random();
+
+    /**
+     * Creates a client with no limit on the number of indexes.
+     */
+    public LocalApiClient() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxIndexes
+     *            number of indexes after which creating another one fails
+     *            with {@link MaximumIndexesExceededException}
+     */
+    public LocalApiClient(int maxIndexes) {
+        this.maxIndexes = maxIndexes;
+    }
+
+    @Override
+    public LocalIndex getIndex(String indexName) {
+        LocalIndex index = indexes.get(indexName);
+        if (index == null) {
+            LocalIndex created = new LocalIndex(this, indexName);
+            index = indexes.putIfAbsent(indexName, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public LocalIndex createIndex(String indexName) throws IOException,
+            IndexAlreadyExistsException, MaximumIndexesExceededException {
+        LocalIndex index = getIndex(indexName);
+        index.create();
+        return index;
+    }
+
+    @Override
+    public void deleteIndex(String indexName) throws IOException,
+            IndexDoesNotExistException {
+        getIndex(indexName).delete();
+    }
+
+    @Override
+    public List<LocalIndex> listIndexes() throws IOException {
+        List<LocalIndex> existing = new ArrayList<LocalIndex>();
+        for (LocalIndex index : indexes.values()) {
+            if (index.exists()) {
+                existing.add(index);
+            }
+        }
+        return existing;
+    }
+
+    void create(LocalIndex index) throws IndexAlreadyExistsException,
+            MaximumIndexesExceededException {
+        creating.lock();
+        try {
+            if (index.getContents() != null) {
+                throw new IndexAlreadyExistsException(new HttpCodeException(
+                        204, "An index with that name already exists"));
+            }
+            int count = 0;
+            for (LocalIndex other : indexes.values()) {
+                if (other.getContents() != null) {
+                    count++;
+                }
+            }
+            if (count >= maxIndexes) {
+                throw new MaximumIndexesExceededException(
+                        new HttpCodeException(409,
+                                "Too many indexes for this account"));
+            }
+            index.create(Integer.toString(random.nextInt(Integer.MAX_VALUE),
+                    36));
+        } finally {
+            creating.unlock();
+        }
+    }
+}
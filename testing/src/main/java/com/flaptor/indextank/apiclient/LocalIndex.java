@@ -0,0 +1,294 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.HttpCodeException;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+
+/**
+ * An index held in memory by a {@link LocalApiClient}. It behaves like a
+ * hosted index, errors included, but starts right away and never makes a
+ * request.
+ *
+ * @author flaptor
+ */
+public class LocalIndex implements Index {
+
+    private final LocalApiClient client;
+    private final String name;
+    private final AtomicReference<Contents> contents = new AtomicReference<Contents>();
+
+    /**
+     * What an existing index holds, along with its metadata.
+     */
+    static class Contents {
+        final InvertedIndex index = new InvertedIndex();
+        final String code;
+        final Date creationTime = new Date();
+
+        Contents(String code) {
+            this.code = code;
+        }
+    }
+
+    LocalIndex(LocalApiClient client, String name) {
+        this.client = client;
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public SearchResults search(String query) throws IOException,
+            InvalidSyntaxException {
+        return search(Query.forString(query));
+    }
+
+    @Override
+    public SearchResults search(Query query) throws IOException,
+            InvalidSyntaxException {
+        return search(query.toParameterMap());
+    }
+
+    /**
+     * Runs a search given the parameters of the search API.
+     */
+    SearchResults search(Map<String, String> params)
+            throws InvalidSyntaxException {
+        Contents current = contents.get();
+        if (current == null) {
+            throw new UnexpectedCodeException(new HttpCodeException(404,
+                    "No index existed for the given name"));
+        }
+        return current.index.search(params);
+    }
+
+    @Override
+    public void create() throws IOException, IndexAlreadyExistsException,
+            MaximumIndexesExceededException {
+        client.create(this);
+    }
+
+    boolean create(String code) {
+        return contents.compareAndSet(null, new Contents(code));
+    }
+
+    @Override
+    public void delete() throws IOException, IndexDoesNotExistException {
+        if (contents.getAndSet(null) == null) {
+            throw doesNotExist();
+        }
+    }
+
+    @Override
+    public BatchResults addDocuments(Iterable<Document> documents)
+            throws IOException, IndexDoesNotExistException {
+        InvertedIndex index = index();
+        List<Boolean> results = new ArrayList<Boolean>();
+        List<String> errors = new ArrayList<String>();
+        List<Document> documentsList = new ArrayList<Document>();
+        boolean hasErrors = false;
+
+        for (Document document : documents) {
+            documentsList.add(document);
+            Map<String, Object> map = document.toDocumentMap();
+            try {
+                index.addDocument(document.getId(),
+                        (Map<String, String>) map.get("fields"),
+                        (Map<Integer, Float>) map.get("variables"),
+                        (Map<String, String>) map.get("categories"));
+                results.add(true);
+                errors.add(null);
+            } catch (IllegalArgumentException e) {
+                results.add(false);
+                errors.add(e.getMessage());
+                hasErrors = true;
+            }
+        }
+        return new BatchResults(results, errors, documentsList, hasErrors);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields)
+            throws IOException, IndexDoesNotExistException {
+        addDocument(documentId, fields, null);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        addDocument(documentId, fields, variables, null);
+    }
+
+    @Override
+    public void addDocument(String documentId, Map<String, String> fields,
+            Map<Integer, Float> variables, Map<String, String> categories)
+            throws IOException, IndexDoesNotExistException {
+        try {
+            index().addDocument(documentId, fields, variables, categories);
+        } catch (IllegalArgumentException e) {
+            throw new UnexpectedCodeException(new HttpCodeException(400,
+                    e.getMessage()));
+        }
+    }
+
+    @Override
+    public void deleteDocument(String documentId) throws IOException,
+            IndexDoesNotExistException {
+        index().deleteDocument(documentId);
+    }
+
+    @Override
+    public void updateVariables(String documentId,
+            Map<Integer, Float> variables) throws IOException,
+            IndexDoesNotExistException {
+        if (!index().updateVariables(documentId, variables)) {
+            throw new UnexpectedCodeException(new HttpCodeException(400,
+                    "No document for docid " + documentId));
+        }
+    }
+
+    @Override
+    public void updateCategories(String documentId,
+            Map<String, String> variables) throws IOException,
+            IndexDoesNotExistException {
+        if (!index().updateCategories(documentId, variables)) {
+            throw new UnexpectedCodeException(new HttpCodeException(400,
+                    "No document for docid " + documentId));
+        }
+    }
+
+    @Override
+    public void promote(String documentId, String query) throws IOException,
+            IndexDoesNotExistException {
+        index().promote(documentId, query);
+    }
+
+    @Override
+    public void addFunction(Integer functionIndex, String definition)
+            throws IOException, IndexDoesNotExistException,
+            InvalidSyntaxException {
+        index().addFunction(functionIndex, definition);
+    }
+
+    @Override
+    public void deleteFunction(Integer functionIndex) throws IOException,
+            IndexDoesNotExistException {
+        index().deleteFunction(functionIndex);
+    }
+
+    @Override
+    public Map<String, String> listFunctions()
+            throws IndexDoesNotExistException, IOException {
+        return index().listFunctions();
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return contents.get() != null;
+    }
+
+    @Override
+    public boolean hasStarted() throws IOException,
+            IndexDoesNotExistException {
+        index();
+        return true;
+    }
+
+    @Override
+    public boolean awaitStarted(long timeout, TimeUnit unit)
+            throws IOException, IndexDoesNotExistException {
+        return hasStarted();
+    }
+
+    @Override
+    public IndexStartup onStarted() {
+        IndexStartup startup = new IndexStartup();
+        if (contents.get() == null) {
+            startup.fail(doesNotExist());
+        } else {
+            startup.complete(this);
+        }
+        return startup;
+    }
+
+    @Override
+    public String getCode() throws IOException, IndexDoesNotExistException {
+        return contents().code;
+    }
+
+    @Override
+    public Date getCreationTime() throws IOException,
+            IndexDoesNotExistException {
+        return contents().creationTime;
+    }
+
+    @Override
+    public void refreshMetadata() throws IOException,
+            IndexDoesNotExistException {
+        contents();
+    }
+
+    @Override
+    public Map<String, Object> getMetadata() throws IOException,
+            IndexDoesNotExistException {
+        Contents current = contents();
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("started", true);
+        metadata.put("code", current.code);
+        metadata.put("creation_time", formatTime(current.creationTime));
+        metadata.put("size", (long) current.index.size());
+        metadata.put("public_search", false);
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @return the contents of this index, or null if it doesn't exist
+     */
+    Contents getContents() {
+        return contents.get();
+    }
+
+    private Contents contents() throws IndexDoesNotExistException {
+        Contents current = contents.get();
+        if (current == null) {
+            throw doesNotExist();
+        }
+        return current;
+    }
+
+    private InvertedIndex index() throws IndexDoesNotExistException {
+        return contents().index;
+    }
+
+    private static IndexDoesNotExistException doesNotExist() {
+        return new IndexDoesNotExistException(new HttpCodeException(404,
+                "No index existed for the given name"));
+    }
+
+    static String formatTime(Date time) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssz");
+        return format.format(time);
+    }
+}
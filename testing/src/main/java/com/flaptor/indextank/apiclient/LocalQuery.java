@@ -0,0 +1,367 @@
+package com.flaptor.indextank.apiclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A parsed search query, evaluated against an {@link InvertedIndex}.
+ * <p>
+ * Supports the query syntax of the search API: terms, {@code "phrases"},
+ * {@code field:term}, {@code field:(...)}, trailing-{@code *} prefixes,
+ * {@code AND}, {@code OR}, {@code NOT}, {@code +}/{@code -} and parentheses.
+ * Terms without a field search the {@code text} field, and terms next to each
+ * other must all match.
+ *
+ * @author flaptor
+ */
+abstract class LocalQuery {
+
+    static final String DEFAULT_FIELD = "text";
+
+    /**
+     * @return the relevance of every matching document, by internal id
+     */
+    abstract Map<Integer, Double> evaluate(InvertedIndex index);
+
+    static LocalQuery parse(String query) throws InvalidSyntaxException {
+        if (query == null) {
+            throw new InvalidSyntaxException("Missing query");
+        }
+        return new Parser(query).parse();
+    }
+
+    private static class Terms extends LocalQuery {
+        final String field;
+        final List<String> terms;
+        final boolean prefix;
+
+        Terms(String field, List<String> terms, boolean prefix) {
+            this.field = field;
+            this.terms = terms;
+            this.prefix = prefix;
+        }
+
+        @Override
+        Map<Integer, Double> evaluate(InvertedIndex index) {
+            if (terms.size() == 1) {
+                return prefix ? prefixScores(index) : termScores(index,
+                        terms.get(0));
+            }
+
+            // a phrase: every term, at consecutive positions
+            List<Map<Integer, int[]>> postings = new ArrayList<Map<Integer, int[]>>();
+            for (String term : terms) {
+                Map<Integer, int[]> termPostings = index.postings(field, term);
+                if (termPostings == null) {
+                    return new HashMap<Integer, Double>();
+                }
+                postings.add(termPostings);
+            }
+            double idf = 0;
+            for (Map<Integer, int[]> termPostings : postings) {
+                idf += index.idf(termPostings.size());
+            }
+
+            Map<Integer, Double> scores = new HashMap<Integer, Double>();
+            for (Entry<Integer, int[]> first : smallest(postings).entrySet()) {
+                int[] starts = postings.get(0).get(first.getKey());
+                if (starts == null) {
+                    continue;
+                }
+                int occurrences = 0;
+                for (int start : starts) {
+                    if (phraseAt(postings, first.getKey(), start)) {
+                        occurrences++;
+                    }
+                }
+                if (occurrences > 0) {
+                    scores.put(first.getKey(), Math.sqrt(occurrences) * idf);
+                }
+            }
+            return scores;
+        }
+
+        private Map<Integer, Double> termScores(InvertedIndex index,
+                String term) {
+            Map<Integer, int[]> termPostings = index.postings(field, term);
+            Map<Integer, Double> scores = new HashMap<Integer, Double>();
+            if (termPostings != null) {
+                double idf = index.idf(termPostings.size());
+                for (Entry<Integer, int[]> posting : termPostings.entrySet()) {
+                    scores.put(posting.getKey(),
+                            Math.sqrt(posting.getValue().length) * idf);
+                }
+            }
+            return scores;
+        }
+
+        private Map<Integer, Double> prefixScores(InvertedIndex index) {
+            Map<Integer, Double> scores = new HashMap<Integer, Double>();
+            for (Map<Integer, int[]> termPostings : index.postingsWithPrefix(
+                    field, terms.get(0))) {
+                double idf = index.idf(termPostings.size());
+                for (Entry<Integer, int[]> posting : termPostings.entrySet()) {
+                    add(scores, posting.getKey(),
+                            Math.sqrt(posting.getValue().length) * idf);
+                }
+            }
+            return scores;
+        }
+
+        private static boolean phraseAt(List<Map<Integer, int[]>> postings,
+                Integer document, int start) {
+            for (int i = 1; i < postings.size(); i++) {
+                int[] positions = postings.get(i).get(document);
+                if (positions == null
+                        || Arrays.binarySearch(positions, start + i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class And extends LocalQuery {
+        final List<LocalQuery> required = new ArrayList<LocalQuery>();
+        final List<LocalQuery> excluded = new ArrayList<LocalQuery>();
+
+        @Override
+        Map<Integer, Double> evaluate(InvertedIndex index) {
+            Map<Integer, Double> scores;
+            if (required.isEmpty()) {
+                scores = new HashMap<Integer, Double>();
+                for (Integer document : index.allDocuments()) {
+                    scores.put(document, 0.0);
+                }
+            } else {
+                List<Map<Integer, Double>> results = new ArrayList<Map<Integer, Double>>();
+                for (LocalQuery query : required) {
+                    results.add(query.evaluate(index));
+                }
+                Map<Integer, Double> smallest = smallest(results);
+                scores = new HashMap<Integer, Double>();
+                candidates: for (Entry<Integer, Double> candidate : smallest
+                        .entrySet()) {
+                    double score = 0;
+                    for (Map<Integer, Double> result : results) {
+                        Double partial = result.get(candidate.getKey());
+                        if (partial == null) {
+                            continue candidates;
+                        }
+                        score += partial;
+                    }
+                    scores.put(candidate.getKey(), score);
+                }
+            }
+            for (LocalQuery query : excluded) {
+                if (scores.isEmpty()) {
+                    break;
+                }
+                scores.keySet().removeAll(query.evaluate(index).keySet());
+            }
+            return scores;
+        }
+    }
+
+    private static class Or extends LocalQuery {
+        final List<LocalQuery> alternatives = new ArrayList<LocalQuery>();
+
+        @Override
+        Map<Integer, Double> evaluate(InvertedIndex index) {
+            Map<Integer, Double> scores = new HashMap<Integer, Double>();
+            for (LocalQuery query : alternatives) {
+                for (Entry<Integer, Double> score : query.evaluate(index)
+                        .entrySet()) {
+                    add(scores, score.getKey(), score.getValue());
+                }
+            }
+            return scores;
+        }
+    }
+
+    private static void add(Map<Integer, Double> scores, Integer document,
+            double score) {
+        Double previous = scores.get(document);
+        scores.put(document, previous == null ? score : previous + score);
+    }
+
+    private static <T extends Map<Integer, ?>> T smallest(List<T> maps) {
+        T smallest = maps.get(0);
+        for (T map : maps) {
+            if (map.size() < smallest.size()) {
+                smallest = map;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Recursive descent parser. Operators are only recognized in upper case,
+     * like in the search API.
+     */
+    private static class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        LocalQuery parse() throws InvalidSyntaxException {
+            LocalQuery query = or(DEFAULT_FIELD);
+            skipSpaces();
+            if (position < text.length()) {
+                throw error("Unexpected '" + text.charAt(position) + "'");
+            }
+            return query;
+        }
+
+        private LocalQuery or(String field) throws InvalidSyntaxException {
+            Or or = new Or();
+            or.alternatives.add(and(field));
+            while (acceptOperator("OR")) {
+                or.alternatives.add(and(field));
+            }
+            return or.alternatives.size() == 1 ? or.alternatives.get(0) : or;
+        }
+
+        private LocalQuery and(String field) throws InvalidSyntaxException {
+            And and = new And();
+            do {
+                boolean negated = false;
+                while (true) {
+                    if (acceptOperator("NOT") || accept('-')) {
+                        negated = !negated;
+                    } else if (!accept('+')) {
+                        break;
+                    }
+                }
+                LocalQuery clause = primary(field);
+                if (clause == null) {
+                    continue;
+                }
+                (negated ? and.excluded : and.required).add(clause);
+            } while (acceptOperator("AND") || startsClause());
+
+            if (and.required.isEmpty() && and.excluded.isEmpty()) {
+                throw error("Empty query");
+            }
+            return and.required.size() == 1 && and.excluded.isEmpty() ? and.required
+                    .get(0) : and;
+        }
+
+        /**
+         * @return the clause, or null for a term without indexable content
+         *         (punctuation, for instance)
+         */
+        private LocalQuery primary(String field) throws InvalidSyntaxException {
+            skipSpaces();
+            if (position == text.length()) {
+                throw error("Unexpected end of query");
+            }
+            if (accept('(')) {
+                LocalQuery query = or(field);
+                expect(')');
+                return query;
+            }
+            if (text.charAt(position) == '"') {
+                position++;
+                int end = text.indexOf('"', position);
+                if (end < 0) {
+                    throw error("Unterminated phrase");
+                }
+                List<String> terms = InvertedIndex.tokenize(text.substring(
+                        position, end));
+                position = end + 1;
+                return terms.isEmpty() ? null : new Terms(field, terms, false);
+            }
+
+            int start = position;
+            while (position < text.length() && !isDelimiter(text.charAt(position))) {
+                if (text.charAt(position) == ':' && start < position) {
+                    String name = text.substring(start, position);
+                    position++;
+                    skipSpaces();
+                    if (position == text.length()
+                            || isDelimiter(text.charAt(position))
+                            && text.charAt(position) != '('
+                            && text.charAt(position) != '"') {
+                        throw error("Missing value for field '" + name + "'");
+                    }
+                    return primary(name);
+                }
+                position++;
+            }
+            if (start == position) {
+                throw error("Unexpected '" + text.charAt(position) + "'");
+            }
+
+            String word = text.substring(start, position);
+            boolean prefix = word.endsWith("*");
+            List<String> terms = InvertedIndex.tokenize(prefix ? word
+                    .substring(0, word.length() - 1) : word);
+            if (terms.isEmpty()) {
+                return null;
+            }
+            return new Terms(field, terms, prefix && terms.size() == 1);
+        }
+
+        private boolean startsClause() {
+            skipSpaces();
+            return position < text.length() && text.charAt(position) != ')'
+                    && !lookingAtOperator("OR");
+        }
+
+        private boolean acceptOperator(String operator) {
+            if (lookingAtOperator(operator)) {
+                position += operator.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean lookingAtOperator(String operator) {
+            skipSpaces();
+            int end = position + operator.length();
+            return text.startsWith(operator, position)
+                    && end < text.length()
+                    && Character.isWhitespace(text.charAt(end));
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) throws InvalidSyntaxException {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void skipSpaces() {
+            while (position < text.length()
+                    && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isDelimiter(char c) {
+            return Character.isWhitespace(c) || c == '(' || c == ')'
+                    || c == '"';
+        }
+
+        private InvalidSyntaxException error(String message) {
+            return new InvalidSyntaxException(message + " at position "
+                    + position + " of '" + text + "'");
+        }
+    }
+}
@@ -0,0 +1,643 @@
+package com.flaptor.indextank.apiclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.SearchResults;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that speaks the v1 REST API on top of a
+ * {@link LocalApiClient}, so that {@link IndexTankClient} can be exercised
+ * end to end over loopback.
+ * <p>
+ * Responses can be delayed following a {@link Latency} distribution, failed
+ * at random with a given status code (503, 409, 400...) before touching the
+ * indexes, and request bodies over a size limit are rejected with 413. Each
+ * setting applies to every endpoint or to a single one: {@code "indexes"},
+ * {@code "index"}, {@code "docs"}, {@code "variables"}, {@code "categories"},
+ * {@code "search"}, {@code "promote"} or {@code "functions"}.
+ *
+ * <pre>
+ * StandInServer server = new StandInServer(new LocalApiClient())
+ *         .withLatency(&quot;search&quot;, StandInServer.Latency.logNormal(20, 0.5))
+ *         .withErrorRate(&quot;docs&quot;, 503, 0.01).start(0);
+ * IndexTankClient client = new IndexTankClient(server.getApiUrl());
+ * </pre>
+ *
+ * Run the JVM with {@code -Dsun.net.httpserver.nodelay=true} when measuring
+ * latency: without TCP_NODELAY, responses written as headers then body wait
+ * for the client's delayed ACK, adding ~40ms to every request. The JDK reads
+ * the property once, when its HTTP server classes load, so it can't be set
+ * reliably at run time.
+ *
+ * @author flaptor
+ */
+public class StandInServer implements Closeable {
+
+    /**
+     * A distribution of response delays.
+     */
+    public static abstract class Latency {
+
+        public abstract long nextNanos(Random random);
+
+        public static Latency none() {
+            return fixed(0);
+        }
+
+        public static Latency fixed(final double millis) {
+            return new Latency() {
+                @Override
+                public long nextNanos(Random random) {
+                    return toNanos(millis);
+                }
+            };
+        }
+
+        public static Latency uniform(final double minMillis,
+                final double maxMillis) {
+            return new Latency() {
+                @Override
+                public long nextNanos(Random random) {
+                    return toNanos(minMillis + random.nextDouble()
+                            * (maxMillis - minMillis));
+                }
+            };
+        }
+
+        public static Latency exponential(final double meanMillis) {
+            return new Latency() {
+                @Override
+                public long nextNanos(Random random) {
+                    return toNanos(-meanMillis * Math.log(1 - random.nextDouble()));
+                }
+            };
+        }
+
+        /**
+         * A long-tailed distribution, typical of real services.
+         *
+         * @param medianMillis
+         *            the median delay
+         * @param sigma
+         *            the spread; 0.5 puts the 99th percentile at about 3.2
+         *            times the median
+         */
+        public static Latency logNormal(final double medianMillis,
+                final double sigma) {
+            return new Latency() {
+                @Override
+                public long nextNanos(Random random) {
+                    return toNanos(medianMillis
+                            * Math.exp(sigma * random.nextGaussian()));
+                }
+            };
+        }
+
+        private static long toNanos(double millis) {
+            return (long) (Math.max(0, millis) * 1000000);
+        }
+    }
+
+    private static class Fault {
+        final int code;
+        final double rate;
+
+        Fault(int code, double rate) {
+            this.code = code;
+            this.rate = rate;
+        }
+    }
+
+    private static final String ALL_ENDPOINTS = "*";
+    private static final String INDEXES_PATH = "/v1/indexes";
+
+    private final LocalApiClient engine;
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    private final Map<String, List<Fault>> faults = new ConcurrentHashMap<String, List<Fault>>();
+    private volatile int maxPayloadBytes = Integer.MAX_VALUE;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param engine
+     *            the client holding the indexes this server exposes
+     */
+    public StandInServer(LocalApiClient engine) {
+        this.engine = engine;
+    }
+
+    public StandInServer withLatency(Latency latency) {
+        return withLatency(ALL_ENDPOINTS, latency);
+    }
+
+    public StandInServer withLatency(String endpoint, Latency latency) {
+        latencies.put(endpoint, latency);
+        return this;
+    }
+
+    /**
+     * Fails the given fraction of requests with the given status code. Rates
+     * for different codes add up; setting the rate of a code again replaces
+     * it, so a rate of 0 turns it off.
+     */
+    public StandInServer withErrorRate(int code, double rate) {
+        return withErrorRate(ALL_ENDPOINTS, code, rate);
+    }
+
+    public StandInServer withErrorRate(String endpoint, int code, double rate) {
+        List<Fault> endpointFaults = new ArrayList<Fault>();
+        if (faults.containsKey(endpoint)) {
+            for (Fault fault : faults.get(endpoint)) {
+                if (fault.code != code) {
+                    endpointFaults.add(fault);
+                }
+            }
+        }
+        if (rate > 0) {
+            endpointFaults.add(new Fault(code, rate));
+        }
+        faults.put(endpoint, endpointFaults);
+        return this;
+    }
+
+    /**
+     * Rejects request bodies longer than the given size with 413.
+     */
+    public StandInServer withMaxPayloadBytes(int maxPayloadBytes) {
+        this.maxPayloadBytes = maxPayloadBytes;
+        return this;
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port
+     *            the port, or 0 for any free one
+     * @return this server
+     */
+    public StandInServer start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "indextank-standin-"
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(INDEXES_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (RuntimeException e) {
+                    respond(exchange, 500, String.valueOf(e));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the URL to build an {@link IndexTankClient} with. It carries
+     *         a dummy password, which is not checked.
+     */
+    public String getApiUrl() {
+        return "http://:standin@127.0.0.1:" + getPort() + "/";
+    }
+
+    /**
+     * @return the number of requests received so far, failed ones included
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the size of the request bodies read so far
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath()
+                .substring(INDEXES_PATH.length()).split("/");
+        // path[0] is empty; then index name, resource and sub-resource
+        String endpoint = endpoint(path);
+        if (endpoint == null) {
+            respond(exchange, 404, "Unknown resource");
+            return;
+        }
+
+        try {
+            delay(endpoint);
+        } catch (InterruptedIOException e) {
+            return;
+        }
+        Integer fault = fault(endpoint);
+        if (fault != null) {
+            respond(exchange, fault, "Injected failure");
+            return;
+        }
+        String body = readBody(exchange);
+        if (body == null) {
+            respond(exchange, 413, "Payload too large");
+            return;
+        }
+        Map<String, String> params = queryParams(exchange.getRequestURI()
+                .getRawQuery());
+
+        try {
+            if (endpoint.equals("indexes")) {
+                serveIndexes(exchange, method);
+            } else {
+                LocalIndex index = engine.getIndex(path[1]);
+                if (endpoint.equals("index")) {
+                    serveIndex(exchange, method, index);
+                } else if (endpoint.equals("docs")) {
+                    serveDocs(exchange, method, index, body, params);
+                } else if (endpoint.equals("variables")) {
+                    Map<String, Object> data = jsonObject(body);
+                    requireMethod(method, "PUT");
+                    index.updateVariables((String) data.get("docid"), Document
+                            .variablesFromJson(data.get("variables")));
+                    respond(exchange, 200, null);
+                } else if (endpoint.equals("categories")) {
+                    Map<String, Object> data = jsonObject(body);
+                    requireMethod(method, "PUT");
+                    index.updateCategories((String) data.get("docid"),
+                            (Map<String, String>) data.get("categories"));
+                    respond(exchange, 200, null);
+                } else if (endpoint.equals("search")) {
+                    requireMethod(method, "GET");
+                    serveSearch(exchange, index, params);
+                } else if (endpoint.equals("promote")) {
+                    Map<String, Object> data = jsonObject(body);
+                    requireMethod(method, "PUT");
+                    index.promote((String) data.get("docid"),
+                            (String) data.get("query"));
+                    respond(exchange, 200, null);
+                } else {
+                    serveFunctions(exchange, method, index, path, body);
+                }
+            }
+        } catch (IndexDoesNotExistException e) {
+            respond(exchange, 404, e.getMessage());
+        } catch (InvalidSyntaxException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (UnexpectedCodeException e) {
+            respond(exchange, e.httpCode, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (ClassCastException e) {
+            respond(exchange, 400, "Invalid request");
+        }
+    }
+
+    private static String endpoint(String[] path) {
+        if (path.length > 0 && path[0].length() > 0) {
+            return null;
+        }
+        if (path.length <= 1) {
+            return "indexes";
+        }
+        if (path[1].length() == 0) {
+            return null;
+        }
+        if (path.length == 2) {
+            return "index";
+        }
+        String resource = path[2];
+        if (resource.equals("docs")) {
+            if (path.length == 3) {
+                return "docs";
+            }
+            if (path.length == 4
+                    && (path[3].equals("variables") || path[3]
+                            .equals("categories"))) {
+                return path[3];
+            }
+            return null;
+        }
+        if (path.length == 3
+                && (resource.equals("search") || resource.equals("promote"))) {
+            return resource;
+        }
+        if (resource.equals("functions") && path.length <= 4) {
+            return "functions";
+        }
+        return null;
+    }
+
+    private void serveIndexes(HttpExchange exchange, String method)
+            throws IOException, IndexDoesNotExistException {
+        requireMethod(method, "GET");
+        Map<String, Object> listing = new HashMap<String, Object>();
+        for (LocalIndex index : engine.listIndexes()) {
+            try {
+                listing.put(index.getName(), index.getMetadata());
+            } catch (IndexDoesNotExistException e) {
+                // deleted while listing
+            }
+        }
+        respond(exchange, 200, JSONValue.toJSONString(listing));
+    }
+
+    private void serveIndex(HttpExchange exchange, String method,
+            LocalIndex index) throws IOException, IndexDoesNotExistException {
+        if (method.equals("GET")) {
+            respond(exchange, 200, JSONValue.toJSONString(index.getMetadata()));
+        } else if (method.equals("PUT")) {
+            try {
+                index.create();
+                respond(exchange, 201,
+                        JSONValue.toJSONString(index.getMetadata()));
+            } catch (IndexAlreadyExistsException e) {
+                respond(exchange, 204, null);
+            } catch (MaximumIndexesExceededException e) {
+                respond(exchange, 409, e.getMessage());
+            }
+        } else if (method.equals("DELETE")) {
+            index.delete();
+            respond(exchange, 200, null);
+        } else {
+            respond(exchange, 405, "Method not allowed");
+        }
+    }
+
+    private void serveDocs(HttpExchange exchange, String method,
+            LocalIndex index, String body, Map<String, String> params)
+            throws IOException, IndexDoesNotExistException {
+        if (method.equals("DELETE")) {
+            String docid = params.get("docid");
+            if (docid == null) {
+                throw new IllegalArgumentException("Missing docid");
+            }
+            index.deleteDocument(docid);
+            respond(exchange, 200, null);
+            return;
+        }
+        requireMethod(method, "PUT");
+
+        Object data = JSONValue.parse(body);
+        if (data instanceof Map) {
+            Map<String, Object> document = (Map<String, Object>) data;
+            index.addDocument(docid(document),
+                    (Map<String, String>) document.get("fields"),
+                    Document.variablesFromJson(document.get("variables")),
+                    (Map<String, String>) document.get("categories"));
+            respond(exchange, 200, null);
+        } else if (data instanceof List) {
+            List<Document> documents = new ArrayList<Document>();
+            for (Object item : (List<Object>) data) {
+                documents.add(Document
+                        .fromDocumentMap((Map<String, Object>) item));
+            }
+            IndexTankClient.BatchResults batch = index.addDocuments(documents);
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+            for (int i = 0; i < documents.size(); i++) {
+                Map<String, Object> result = new HashMap<String, Object>();
+                result.put("added", batch.getResult(i));
+                if (!batch.getResult(i)) {
+                    result.put("error", batch.getErrorMessage(i));
+                }
+                results.add(result);
+            }
+            respond(exchange, 200, JSONValue.toJSONString(results));
+        } else {
+            throw new IllegalArgumentException("Invalid document");
+        }
+    }
+
+    private static String docid(Map<String, Object> data) {
+        Object docid = data.get("docid");
+        if (!(docid instanceof String)) {
+            throw new IllegalArgumentException("Invalid docid");
+        }
+        return (String) docid;
+    }
+
+    private void serveSearch(HttpExchange exchange, LocalIndex index,
+            Map<String, String> params) throws IOException,
+            InvalidSyntaxException {
+        SearchResults results = index.search(params);
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("matches", results.matches);
+        response.put("search_time", String.valueOf(results.searchTime));
+        response.put("results", results.results);
+        response.put("facets", results.facets);
+        response.put("query", params.get("q"));
+        respond(exchange, 200, JSONValue.toJSONString(response));
+    }
+
+    private void serveFunctions(HttpExchange exchange, String method,
+            LocalIndex index, String[] path, String body) throws IOException,
+            IndexDoesNotExistException, InvalidSyntaxException {
+        if (path.length == 3) {
+            requireMethod(method, "GET");
+            respond(exchange, 200, JSONValue.toJSONString(index.listFunctions()));
+            return;
+        }
+        int function;
+        try {
+            function = Integer.parseInt(path[3]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid function index");
+        }
+        if (method.equals("PUT")) {
+            Object definition = jsonObject(body).get("definition");
+            if (!(definition instanceof String)) {
+                throw new IllegalArgumentException("Missing definition");
+            }
+            index.addFunction(function, (String) definition);
+            respond(exchange, 200, null);
+        } else {
+            requireMethod(method, "DELETE");
+            index.deleteFunction(function);
+            respond(exchange, 200, null);
+        }
+    }
+
+    private void delay(String endpoint) throws InterruptedIOException {
+        Latency latency = latencies.get(endpoint);
+        if (latency == null) {
+            latency = latencies.get(ALL_ENDPOINTS);
+        }
+        if (latency == null) {
+            return;
+        }
+        long nanos = latency.nextNanos(random());
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private Integer fault(String endpoint) {
+        double draw = random().nextDouble();
+        for (String key : new String[] { endpoint, ALL_ENDPOINTS }) {
+            List<Fault> endpointFaults = faults.get(key);
+            if (endpointFaults == null) {
+                continue;
+            }
+            for (Fault fault : endpointFaults) {
+                if (draw < fault.rate) {
+                    return fault.code;
+                }
+                draw -= fault.rate;
+            }
+        }
+        return null;
+    }
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private static Random random() {
+        return RANDOM.get();
+    }
+
+    /**
+     * @return the body, or null if it is over the payload limit
+     */
+    private String readBody(HttpExchange exchange) throws IOException {
+        int limit = maxPayloadBytes;
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) > limit) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                // checked while reading
+            }
+        }
+
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+            if (body.size() > limit) {
+                return null;
+            }
+        }
+        bytesReceived.addAndGet(body.size());
+        return body.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body)
+            throws IOException {
+        if (code == 204 || body == null) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new UnexpectedCodeException(
+                    new IndexTankClient.HttpCodeException(405,
+                            "Method not allowed"));
+        }
+    }
+
+    private static Map<String, Object> jsonObject(String body) {
+        Object parsed = JSONValue.parse(body);
+        if (!(parsed instanceof Map)) {
+            throw new IllegalArgumentException("Invalid request body");
+        }
+        return (Map<String, Object>) parsed;
+    }
+
+    private static Map<String, String> queryParams(String query)
+            throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}
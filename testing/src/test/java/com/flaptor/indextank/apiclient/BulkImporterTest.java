@@ -0,0 +1,173 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.flaptor.indextank.apiclient.BulkImporter.Format;
+import com.flaptor.indextank.apiclient.BulkImporter.Summary;
+
+public class BulkImporterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalIndex index;
+
+    @Before
+    public void createIndex() throws Exception {
+        index = new LocalApiClient().createIndex("import");
+    }
+
+    @Test
+    public void importsEveryLineAndForgetsTheCheckpoint() throws Exception {
+        File input = ndjson(0, 50);
+        Summary summary = new BulkImporter(index, input, Format.NDJSON)
+                .withChunkBytes(128).withParallelism(3).withBatchSize(4)
+                .run();
+
+        assertEquals(50, summary.lines);
+        assertEquals(50, summary.added);
+        assertEquals(0, summary.failed);
+        assertEquals(0, summary.resumedFrom);
+        assertEquals(50L, size());
+        assertFalse(checkpointOf(input).getFile().exists());
+    }
+
+    @Test
+    public void resumesFromTheCheckpoint() throws Exception {
+        File input = ndjson(0, 10);
+        long offset = line(0).length() * 6L;
+        checkpointOf(input).write(offset);
+
+        Summary summary = new BulkImporter(index, input, Format.NDJSON)
+                .withChunkBytes(64).run();
+
+        assertEquals(offset, summary.resumedFrom);
+        assertEquals(4, summary.lines);
+        assertEquals(4L, size());
+        assertEquals(0, index.search("word5").matches);
+        assertEquals(1, index.search("word6").matches);
+        assertEquals(1, index.search("word9").matches);
+        assertFalse(checkpointOf(input).getFile().exists());
+    }
+
+    @Test
+    public void refusesToResumeOnAChangedInput() throws Exception {
+        File input = ndjson(0, 10);
+        checkpointOf(input).write(line(0).length() * 6L);
+        append(input, line(10));
+
+        try {
+            new BulkImporter(index, input, Format.NDJSON).run();
+            fail("resumed on a changed input");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("changed"));
+        }
+        assertEquals(0L, size());
+        assertTrue(checkpointOf(input).getFile().exists());
+    }
+
+    @Test
+    public void readsCsvWithAByteOrderMark() throws Exception {
+        File input = folder.newFile("docs.csv");
+        FileOutputStream out = new FileOutputStream(input);
+        try {
+            out.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+            out.write(("docid;text;variable_0;category_color\r\n"
+                    + "a;\"first; quoted\";1.5;red\r\n"
+                    + "b;second;;\r\n").getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+
+        Summary summary = new BulkImporter(index, input, Format.CSV)
+                .withCsvDelimiter(';').run();
+
+        assertEquals(2, summary.added);
+        assertEquals(0, summary.failed);
+        assertEquals("a", index.search("quoted").results.get(0).get("docid"));
+        assertEquals(1, index.search("second").matches);
+    }
+
+    @Test
+    public void countsLinesThatDoNotParse() throws Exception {
+        File input = ndjson(0, 3);
+        append(input, "{\"docid\": \n");
+        append(input, line(3));
+
+        Summary summary = new BulkImporter(index, input, Format.NDJSON).run();
+
+        assertEquals(5, summary.lines);
+        assertEquals(4, summary.added);
+        assertEquals(1, summary.failed);
+        assertTrue(summary.errors.get(0), summary.errors.get(0).startsWith(
+                "line at " + line(0).length() * 3));
+    }
+
+    @Test
+    public void splitsCsvLines() {
+        assertEquals(Arrays.asList("a", "b, c", "say \"hi\"", ""),
+                BulkImporter.parseCsvLine("a,\"b, c\",\"say \"\"hi\"\"\",",
+                        ','));
+    }
+
+    @Test
+    public void retriesOnlyWhatMaySucceedLater() {
+        for (int code : new int[] { 401, 408, 409, 429, 500, 503 }) {
+            assertTrue(String.valueOf(code), BulkImporter.isTransient(code));
+        }
+        for (int code : new int[] { 400, 403, 404, 413 }) {
+            assertFalse(String.valueOf(code), BulkImporter.isTransient(code));
+        }
+    }
+
+    private Object size() throws Exception {
+        return index.getMetadata().get("size");
+    }
+
+    private File ndjson(int from, int to) throws IOException {
+        File input = folder.newFile();
+        for (int i = from; i < to; i++) {
+            append(input, line(i));
+        }
+        return input;
+    }
+
+    /**
+     * @return the line of the i-th document; all lines of documents 0 to 9
+     *         have the same length
+     */
+    private static String line(int i) {
+        return "{\"docid\": \"doc" + i + "\", \"fields\": {\"text\": \"word"
+                + i + "\"}}\n";
+    }
+
+    private static CheckpointFile checkpointOf(File input) {
+        return new CheckpointFile(new File(input.getPath() + ".checkpoint"),
+                input);
+    }
+
+    private static void append(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
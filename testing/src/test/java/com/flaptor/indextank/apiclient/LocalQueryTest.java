@@ -0,0 +1,120 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+public class LocalQueryTest {
+
+    private static LocalIndex index;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        index = new LocalApiClient().createIndex("queries");
+        add("d1", "the quick brown fox", "animals");
+        add("d2", "the lazy dog", "animals");
+        add("d3", "quick thinking", "people");
+        add("d4", "brown quick fox", "animals");
+        index.addFunction(1, "relevance");
+    }
+
+    @Test
+    public void matchesTermsInTheTextField() throws Exception {
+        assertMatches("quick", "d1", "d3", "d4");
+        assertMatches("Quick", "d1", "d3", "d4");
+        assertMatches("animals");
+    }
+
+    @Test
+    public void requiresAdjacentTerms() throws Exception {
+        assertMatches("quick fox", "d1", "d4");
+        assertMatches("quick or dog");
+    }
+
+    @Test
+    public void matchesPhrasesInOrder() throws Exception {
+        assertMatches("\"quick brown\"", "d1");
+        assertMatches("\"brown quick\"", "d4");
+        assertMatches("\"quick fox\"", "d4");
+    }
+
+    @Test
+    public void combinesWithOperators() throws Exception {
+        assertMatches("quick OR dog", "d1", "d2", "d3", "d4");
+        assertMatches("quick AND fox", "d1", "d4");
+        assertMatches("quick AND NOT fox", "d3");
+        assertMatches("quick -fox", "d3");
+        assertMatches("+quick +brown", "d1", "d4");
+        assertMatches("(lazy OR thinking) the", "d2");
+        assertMatches("NOT NOT dog", "d2");
+    }
+
+    @Test
+    public void excludesFromEverything() throws Exception {
+        assertMatches("-fox", "d2", "d3");
+    }
+
+    @Test
+    public void searchesNamedFields() throws Exception {
+        assertMatches("title:people", "d3");
+        assertMatches("title:(animals) AND dog", "d2");
+        assertMatches("title:(people OR animals) -brown", "d2", "d3");
+        assertMatches("title:\"animals\" fox", "d1", "d4");
+    }
+
+    @Test
+    public void expandsPrefixes() throws Exception {
+        assertMatches("qu*", "d1", "d3", "d4");
+        assertMatches("th*", "d1", "d2", "d3");
+        assertMatches("title:peo*", "d3");
+    }
+
+    @Test
+    public void ranksMoreMatchingTermsFirstByRelevance() throws Exception {
+        assertEquals("d1", index.search(Query.forString("brown OR fox OR the")
+                .withScoringFunction(1)).results.get(0).get("docid"));
+    }
+
+    @Test
+    public void rejectsInvalidQueries() {
+        String[] invalid = { "", "   ", "(quick", "quick)", "\"quick",
+                "title:", "title: )", "quick OR ", "quick AND ", "()" };
+        for (String query : invalid) {
+            try {
+                LocalQuery.parse(query);
+                fail("parsed '" + query + "'");
+            } catch (InvalidSyntaxException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(
+                        "'" + query + "'"));
+            }
+        }
+    }
+
+    private static void assertMatches(String query, String... docids)
+            throws Exception {
+        Set<String> found = new TreeSet<String>();
+        for (Map<String, Object> hit : index.search(query).results) {
+            found.add((String) hit.get("docid"));
+        }
+        assertEquals(query, new TreeSet<String>(Arrays.asList(docids)), found);
+    }
+
+    private static void add(String docid, String text, String title)
+            throws Exception {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("text", text);
+        fields.put("title", title);
+        index.addDocument(docid, fields);
+    }
+}
@@ -0,0 +1,224 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flaptor.indextank.apiclient.AliasedIndex.Change;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+import com.flaptor.indextank.apiclient.IndexTankClient.Query;
+
+public class ReindexerTest {
+
+    private static final int DOCUMENTS = 50;
+
+    private ExecutorService executor;
+    private LocalIndex current;
+    private LocalIndex next;
+    private AliasedIndex alias;
+
+    @Before
+    public void createIndexes() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        LocalApiClient client = new LocalApiClient();
+        current = client.createIndex("v1");
+        next = client.createIndex("v2");
+        alias = new AliasedIndex("products", current);
+        List<Document> documents = new ArrayList<Document>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(document("doc" + i, "original"));
+        }
+        current.addDocuments(documents);
+    }
+
+    @After
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void copiesEveryDocumentAndSwaps() throws Exception {
+        Reindexer.Summary summary = reindexer().run(everything());
+
+        assertEquals(DOCUMENTS, summary.copied);
+        assertSame(current, summary.previous);
+        assertSame(next, alias.getTarget());
+        assertEquals((long) DOCUMENTS, next.getMetadata().get("size"));
+        assertEquals("original", state(next, "doc7"));
+    }
+
+    @Test
+    public void replaysWritesMadeDuringTheCopyInOrder() throws Exception {
+        final AtomicBoolean written = new AtomicBoolean();
+        Reindexer reindexer = reindexer().withTransformer(
+                new Reindexer.Transformer() {
+                    @Override
+                    public Document transform(Document document) {
+                        if (written.compareAndSet(false, true)) {
+                            writeThroughAlias();
+                        }
+                        return document;
+                    }
+                });
+        Reindexer.Summary summary = reindexer.run(everything());
+
+        assertEquals(9, summary.replayed);
+        assertEquals(current.getMetadata().get("size"),
+                next.getMetadata().get("size"));
+        assertEquals("changed", state(next, "doc0"));
+        assertEquals(3f, variable(next, "doc0"), 0);
+        assertNull(state(next, "doc1"));
+        assertEquals("readded", state(next, "doc2"));
+        assertNull(state(next, "gone"));
+        assertEquals("added", state(next, "new0"));
+        assertEquals("batch", state(next, "new1"));
+    }
+
+    private void writeThroughAlias() {
+        try {
+            alias.addDocument("doc0", fields("doc0", "changed"));
+            alias.updateVariables("doc0", Collections.singletonMap(0, 3f));
+            alias.deleteDocument("doc1");
+            alias.deleteDocument("doc2");
+            alias.addDocument("doc2", fields("doc2", "readded"));
+            alias.addDocument("gone", fields("gone", "temporary"));
+            alias.deleteDocument("gone");
+            alias.addDocument("new0", fields("new0", "added"));
+            List<Document> batch = new ArrayList<Document>();
+            batch.add(document("new1", "batch"));
+            alias.addDocuments(batch);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void recordsWritesToTheSameDocumentInOrder() throws Exception {
+        Queue<Change> changes = alias.startRecording();
+        alias.addDocument("doc0", fields("doc0", "first"));
+        alias.updateCategories("doc0", Collections.singletonMap("color",
+                "red"));
+        alias.addDocument("doc0", fields("doc0", "second"));
+        alias.deleteDocument("doc3");
+        alias.addDocument("doc3", fields("doc3", "back"));
+        assertEquals(5, changes.size());
+
+        reindexer().replay(changes, next);
+        alias.stopRecording();
+
+        assertEquals("second", state(next, "doc0"));
+        assertEquals("back", state(next, "doc3"));
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    public void transformsCopiedAndReplayedDocuments() throws Exception {
+        final AtomicBoolean written = new AtomicBoolean();
+        Reindexer reindexer = reindexer().withTransformer(
+                new Reindexer.Transformer() {
+                    @Override
+                    public Document transform(Document document) {
+                        if (written.compareAndSet(false, true)) {
+                            try {
+                                alias.addDocument("late", fields("late",
+                                        "late"));
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                        if (document.getId().endsWith("9")) {
+                            return null;
+                        }
+                        Map<String, String> fields = new HashMap<String, String>();
+                        fields.put("text", "common " + document.getId());
+                        fields.put("version", "two");
+                        return new Document(document.getId(), fields, null,
+                                null);
+                    }
+                });
+        reindexer.run(everything());
+
+        // doc9, doc19, doc29, doc39 and doc49 are left out; the late
+        // document may be both copied and replayed
+        assertEquals((long) DOCUMENTS - 5 + 1, next.getMetadata().get("size"));
+        assertEquals(DOCUMENTS - 5 + 1, next.search("version:two").matches);
+        assertNull(state(next, "doc19"));
+    }
+
+    @Test
+    public void refusesATransformerChangingDocids() throws Exception {
+        Reindexer reindexer = reindexer().withTransformer(
+                new Reindexer.Transformer() {
+                    @Override
+                    public Document transform(Document document) {
+                        return document("other" + document.getId(), "x");
+                    }
+                });
+        try {
+            reindexer.run(everything());
+            fail("swapped with a transformer changing docids");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertSame(current, alias.getTarget());
+        // and a new reindex can start
+        alias.startRecording();
+    }
+
+    private Reindexer reindexer() {
+        return new Reindexer(alias, next, executor).withPageSize(7)
+                .withBatchSize(5).withParallelism(2);
+    }
+
+    /**
+     * Two partitions that together match every document.
+     */
+    private static Query[] everything() {
+        return new Query[] { Query.forString("common AND title:even"),
+                Query.forString("common AND NOT title:even") };
+    }
+
+    private static String state(Index index, String docid) throws Exception {
+        List<Map<String, Object>> hits = index.search(Query.forString(docid)
+                .withFetchFields("state")).results;
+        return hits.isEmpty() ? null : (String) hits.get(0).get("state");
+    }
+
+    private static float variable(Index index, String docid)
+            throws Exception {
+        Map<String, Object> hit = index.search(Query.forString(docid)
+                .withFetchVariables()).results.get(0);
+        return ((Number) hit.get("variable_0")).floatValue();
+    }
+
+    private static Document document(String docid, String state) {
+        return new Document(docid, fields(docid, state), null, null);
+    }
+
+    /**
+     * @return the fields of a document findable by its docid, with a state
+     *         to tell its versions apart
+     */
+    private static Map<String, String> fields(String docid, String state) {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("text", "common " + docid);
+        fields.put("title", docid.hashCode() % 2 == 0 ? "even" : "odd");
+        fields.put("state", state);
+        return fields;
+    }
+}
@@ -0,0 +1,166 @@
+package com.flaptor.indextank.apiclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flaptor.indextank.apiclient.IndexTankClient.BatchResults;
+import com.flaptor.indextank.apiclient.IndexTankClient.Document;
+
+public class ShardedIndexTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void routesTheSameDocumentToTheSameShard() {
+        LocalApiClient client = new LocalApiClient();
+        ShardedIndex first = sharded(client, "s", 4);
+        ShardedIndex second = sharded(client, "s", 4);
+        for (int i = 0; i < 1000; i++) {
+            String docid = "doc" + i;
+            assertSame(first.getShard(docid), second.getShard(docid));
+        }
+    }
+
+    @Test
+    public void spreadsDocumentsEvenly() {
+        ShardedIndex index = sharded(new LocalApiClient(), "s", 4);
+        int[] counts = new int[4];
+        for (int i = 0; i < 10000; i++) {
+            counts[index.getShards().indexOf(index.getShard("doc" + i))]++;
+        }
+        for (int count : counts) {
+            assertTrue(String.valueOf(count), count > 2000 && count < 3000);
+        }
+    }
+
+    @Test
+    public void movesFewDocumentsToANewShard() {
+        LocalApiClient client = new LocalApiClient();
+        ShardedIndex four = sharded(client, "s", 4);
+        ShardedIndex five = sharded(client, "s", 5);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String docid = "doc" + i;
+            Index before = four.getShard(docid);
+            Index after = five.getShard(docid);
+            if (before != after) {
+                // only to the new shard, never between the old ones
+                assertSame(five.getShards().get(4), after);
+                moved++;
+            }
+        }
+        assertTrue(String.valueOf(moved), moved > 1500 && moved < 2500);
+    }
+
+    @Test
+    public void addsEachDocumentToItsShard() throws Exception {
+        ShardedIndex index = sharded(new LocalApiClient(), "s", 3);
+        index.create();
+        List<Document> documents = documents(30);
+        BatchResults results = index.addDocuments(documents);
+
+        assertFalse(results.hasErrors());
+        for (int i = 0; i < documents.size(); i++) {
+            assertTrue(results.getResult(i));
+            String docid = documents.get(i).getId();
+            assertEquals(1, index.getShard(docid).search(docid).matches);
+        }
+        assertEquals(30, index.search("common").matches);
+    }
+
+    @Test
+    public void rollsBackAFailedCreate() throws Exception {
+        LocalApiClient client = new LocalApiClient(2);
+        ShardedIndex index = sharded(client, "s", 3);
+        try {
+            index.create();
+            fail("created more indexes than allowed");
+        } catch (MaximumIndexesExceededException e) {
+            // expected
+        }
+        assertEquals(0, client.listIndexes().size());
+    }
+
+    @Test
+    public void keepsShardsThatAlreadyExisted() throws Exception {
+        LocalApiClient client = new LocalApiClient(2);
+        client.createIndex("s0");
+        ShardedIndex index = sharded(client, "s", 3);
+        try {
+            index.create();
+            fail("created more indexes than allowed");
+        } catch (MaximumIndexesExceededException e) {
+            // expected
+        }
+        assertEquals(1, client.listIndexes().size());
+        assertTrue(index.getShards().get(0).exists());
+    }
+
+    @Test
+    public void reportsTheDocumentsOfAFailedShard() throws Exception {
+        ShardedIndex index = sharded(new LocalApiClient(), "s", 3);
+        index.create();
+        Index failed = index.getShards().get(1);
+        failed.delete();
+
+        List<Document> documents = documents(30);
+        BatchResults results = index.addDocuments(documents);
+
+        assertTrue(results.hasErrors());
+        for (int i = 0; i < documents.size(); i++) {
+            boolean inFailed = index.getShard(documents.get(i).getId())
+                    == failed;
+            assertEquals(!inFailed, results.getResult(i));
+            if (inFailed) {
+                assertTrue(results.getErrorMessage(i), results
+                        .getErrorMessage(i).startsWith("s1: "));
+            }
+        }
+    }
+
+    @Test(expected = IndexDoesNotExistException.class)
+    public void failsWhenEveryShardFails() throws Exception {
+        sharded(new LocalApiClient(), "s", 3).addDocuments(documents(30));
+    }
+
+    private ShardedIndex sharded(LocalApiClient client, String prefix,
+            int shards) {
+        List<Index> indexes = new ArrayList<Index>();
+        for (int i = 0; i < shards; i++) {
+            indexes.add(client.getIndex(prefix + i));
+        }
+        return new ShardedIndex(indexes, executor, 1000);
+    }
+
+    private static List<Document> documents(int count) {
+        List<Document> documents = new ArrayList<Document>();
+        for (int i = 0; i < count; i++) {
+            documents.add(new Document("doc" + i, Collections.singletonMap(
+                    "text", "common doc" + i), null, null));
+        }
+        return documents;
+    }
+}